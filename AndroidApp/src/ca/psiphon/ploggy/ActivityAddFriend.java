@@ -23,7 +23,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Date;
 
 import android.app.PendingIntent;
 import android.content.ContentResolver;
@@ -123,7 +122,7 @@ public class ActivityAddFriend extends ActivitySendIdentityByNfc implements View
             try {
                 Identity.PublicIdentity publicIdentity = Json.fromJson(payload, Identity.PublicIdentity.class);
                 Protocol.validatePublicIdentity(publicIdentity);
-                Data.Friend friend = new Data.Friend(publicIdentity, new Date());
+                Data.Friend friend = new Data.Friend(publicIdentity, Clock.getInstance().now());
                 // TODO: display validation error?
                 mReceivedFriend = friend;
                 showFriend();
@@ -150,7 +149,7 @@ public class ActivityAddFriend extends ActivitySendIdentityByNfc implements View
                     String payload = Utils.readInputStreamToString(inputStream);
                     Identity.PublicIdentity publicIdentity = Json.fromJson(payload, Identity.PublicIdentity.class);
                     Protocol.validatePublicIdentity(publicIdentity);
-                    Data.Friend friend = new Data.Friend(publicIdentity, new Date());
+                    Data.Friend friend = new Data.Friend(publicIdentity, Clock.getInstance().now());
                     // TODO: display validation error?
                     mReceivedFriend = friend;
                     showFriend();
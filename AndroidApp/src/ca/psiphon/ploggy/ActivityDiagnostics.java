@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.widget.TextView;
+
+/**
+ * User interface for displaying the current engine Metrics snapshot.
+ *
+ * The snapshot is refreshed periodically while the Activity is in the foreground.
+ */
+public class ActivityDiagnostics extends ActivitySendIdentityByNfc {
+
+    private static final String LOG_TAG = "Diagnostics";
+
+    private static final int REFRESH_PERIOD_MILLISECONDS = 2000;
+
+    private TextView mMetricsText;
+    private Handler mHandler;
+    private Runnable mRefreshTask;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+
+        mMetricsText = (TextView)findViewById(R.id.diagnostics_metrics_text);
+        mHandler = new Handler();
+        mRefreshTask = new Runnable() {
+            @Override
+            public void run() {
+                show();
+                mHandler.postDelayed(this, REFRESH_PERIOD_MILLISECONDS);
+            }
+        };
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        mHandler.post(mRefreshTask);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mRefreshTask);
+    }
+
+    private void show() {
+        String json = Metrics.getInstance().getSnapshotJson();
+        try {
+            mMetricsText.setText(new JSONObject(json).toString(2));
+        } catch (JSONException e) {
+            Log.addEntry(LOG_TAG, e.getMessage());
+            mMetricsText.setText(json);
+        }
+    }
+}
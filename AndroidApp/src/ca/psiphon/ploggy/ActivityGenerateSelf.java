@@ -19,7 +19,6 @@
 
 package ca.psiphon.ploggy;
 
-import java.util.Date;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -167,7 +166,7 @@ public class ActivityGenerateSelf extends ActivitySendIdentityByNfc implements V
                                 Identity.makePrivateIdentity(
                                         mGenerateResult.mX509KeyMaterial,
                                         mGenerateResult.mHiddenServiceKeyMaterial),
-                                new Date()));
+                                Clock.getInstance().now()));
 
                 Utils.hideKeyboard(this);
 
@@ -140,6 +140,9 @@ public class ActivityMain extends ActivitySendIdentityByNfc {
             // TODO: temporary feature for prototype
             Log.composeEmail(this);
             return true;
+        case R.id.action_diagnostics:
+            startActivity(new Intent(this, ActivityDiagnostics.class));
+            return true;
         case R.id.action_quit:
             stopService(new Intent(this, PloggyService.class));
             finish();
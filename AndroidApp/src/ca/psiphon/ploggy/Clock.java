@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Source of time and scheduled execution for background work.
+ *
+ * Engine, Data, Log and the schedulers read the current time and create their executors
+ * only through the current Clock instance. By default, this is the system clock with real
+ * thread pools. Tests may install a SimulatedClock, which runs scheduled tasks in virtual
+ * time, deterministically and on the caller's thread, so that days of scheduling behavior
+ * can be exercised in seconds.
+ */
+public abstract class Clock {
+
+    public abstract long currentTimeMillis();
+
+    public abstract ScheduledExecutorService newScheduledThreadPool(int threadPoolSize);
+
+    public Date now() {
+        return new Date(currentTimeMillis());
+    }
+
+    public Calendar getCalendar() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(currentTimeMillis());
+        return calendar;
+    }
+
+    // ---- Singleton ----
+    private static Clock instance = new SystemClock();
+    public static synchronized Clock getInstance() {
+        return instance;
+    }
+    public static synchronized void setInstance(Clock clock) {
+        instance = clock;
+    }
+    // -------------------
+
+    public static class SystemClock extends Clock {
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public ScheduledExecutorService newScheduledThreadPool(int threadPoolSize) {
+            return Executors.newScheduledThreadPool(threadPoolSize);
+        }
+    }
+
+    /**
+     * Deterministic clock for tests.
+     *
+     * Virtual time only moves forward in advance(). Tasks submitted to executors created by this
+     * clock are queued by due time (ties run in submission order) and are run, one at a time, by
+     * advance(). Tasks submitted by running tasks are run in the same advance() call when due.
+     */
+    public static class SimulatedClock extends Clock {
+
+        private long mCurrentTimeMillis;
+        private long mNextSequenceNumber;
+        private PriorityQueue<SimulatedTask<?>> mTaskQueue;
+
+        public SimulatedClock(long startTimeMillis) {
+            mCurrentTimeMillis = startTimeMillis;
+            mNextSequenceNumber = 0;
+            mTaskQueue = new PriorityQueue<SimulatedTask<?>>();
+        }
+
+        @Override
+        public synchronized long currentTimeMillis() {
+            return mCurrentTimeMillis;
+        }
+
+        @Override
+        public ScheduledExecutorService newScheduledThreadPool(int threadPoolSize) {
+            // Pool size is ignored: simulated tasks never run concurrently
+            return new SimulatedScheduledExecutorService(this);
+        }
+
+        public void advance(long milliseconds) {
+            long targetTimeMillis;
+            synchronized(this) {
+                targetTimeMillis = mCurrentTimeMillis + milliseconds;
+            }
+            while (true) {
+                SimulatedTask<?> task;
+                synchronized(this) {
+                    task = mTaskQueue.peek();
+                    if (task == null || task.mDueTimeMillis > targetTimeMillis) {
+                        mCurrentTimeMillis = targetTimeMillis;
+                        return;
+                    }
+                    mTaskQueue.poll();
+                    mCurrentTimeMillis = task.mDueTimeMillis;
+                }
+                // Run outside the lock, as tasks may schedule more tasks or read the time
+                task.run();
+            }
+        }
+
+        public void runPending() {
+            advance(0);
+        }
+
+        public synchronized int getPendingTaskCount() {
+            return mTaskQueue.size();
+        }
+
+        private synchronized void enqueue(SimulatedTask<?> task) {
+            task.mSequenceNumber = mNextSequenceNumber++;
+            mTaskQueue.add(task);
+        }
+
+        private synchronized void removeAll(SimulatedScheduledExecutorService executor) {
+            Iterator<SimulatedTask<?>> iterator = mTaskQueue.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().mExecutor == executor) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private static class SimulatedTask<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        private final SimulatedScheduledExecutorService mExecutor;
+        // Positive period is fixed rate; negative period is fixed delay; zero is one-shot
+        private final long mPeriodMillis;
+        private long mDueTimeMillis;
+        private long mSequenceNumber;
+
+        SimulatedTask(SimulatedScheduledExecutorService executor, Callable<V> callable, long dueTimeMillis) {
+            super(callable);
+            mExecutor = executor;
+            mPeriodMillis = 0;
+            mDueTimeMillis = dueTimeMillis;
+        }
+
+        SimulatedTask(SimulatedScheduledExecutorService executor, Runnable runnable, long dueTimeMillis, long periodMillis) {
+            super(runnable, null);
+            mExecutor = executor;
+            mPeriodMillis = periodMillis;
+            mDueTimeMillis = dueTimeMillis;
+        }
+
+        @Override
+        public void run() {
+            if (mPeriodMillis == 0) {
+                super.run();
+            } else if (runAndReset() && !mExecutor.isShutdown()) {
+                SimulatedClock clock = mExecutor.mClock;
+                mDueTimeMillis =
+                        (mPeriodMillis > 0) ? mDueTimeMillis + mPeriodMillis : clock.currentTimeMillis() - mPeriodMillis;
+                clock.enqueue(this);
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mDueTimeMillis - mExecutor.mClock.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            if (other instanceof SimulatedTask) {
+                SimulatedTask<?> otherTask = (SimulatedTask<?>)other;
+                if (mDueTimeMillis != otherTask.mDueTimeMillis) {
+                    return mDueTimeMillis < otherTask.mDueTimeMillis ? -1 : 1;
+                }
+                return mSequenceNumber < otherTask.mSequenceNumber ? -1 : 1;
+            }
+            long delta = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+            return delta == 0 ? 0 : (delta < 0 ? -1 : 1);
+        }
+    }
+
+    private static class SimulatedScheduledExecutorService
+            extends AbstractExecutorService implements ScheduledExecutorService {
+
+        private final SimulatedClock mClock;
+        private volatile boolean mIsShutdown;
+
+        SimulatedScheduledExecutorService(SimulatedClock clock) {
+            mClock = clock;
+            mIsShutdown = false;
+        }
+
+        private <V> SimulatedTask<V> enqueue(SimulatedTask<V> task) {
+            if (mIsShutdown) {
+                throw new RejectedExecutionException("executor shut down");
+            }
+            mClock.enqueue(task);
+            return task;
+        }
+
+        private long dueTime(long delay, TimeUnit unit) {
+            return mClock.currentTimeMillis() + Math.max(0, unit.toMillis(delay));
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            schedule(command, 0, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            return enqueue(new SimulatedTask<Object>(this, command, dueTime(delay, unit), 0));
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            return enqueue(new SimulatedTask<V>(this, callable, dueTime(delay, unit)));
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+            if (period <= 0) {
+                throw new IllegalArgumentException();
+            }
+            return enqueue(new SimulatedTask<Object>(this, command, dueTime(initialDelay, unit), unit.toMillis(period)));
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+            if (delay <= 0) {
+                throw new IllegalArgumentException();
+            }
+            return enqueue(new SimulatedTask<Object>(this, command, dueTime(initialDelay, unit), -unit.toMillis(delay)));
+        }
+
+        @Override
+        public void shutdown() {
+            mIsShutdown = true;
+            mClock.removeAll(this);
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown();
+            return new ArrayList<Runnable>();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return mIsShutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return mIsShutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return mIsShutdown;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip content coding for friend request and response bodies.
+ *
+ * Negotiated with standard HTTP headers. A client sends "Accept-Encoding: gzip" and the server
+ * compresses its response. A server sends "Accept-Encoding: gzip" in its responses, after which
+ * the client compresses request bodies to that server. Older peers send neither header and
+ * continue to get uncompressed bodies.
+ */
+public class Compression {
+
+    public static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+    public static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+    public static final String GZIP_ENCODING = "gzip";
+
+    // Below this size, the gzip header and trailer outweigh any savings
+    public static final int MIN_COMPRESSED_BODY_BYTES = 256;
+
+    public static boolean isGzip(String headerValue) {
+        return headerValue != null && headerValue.toLowerCase(Locale.US).contains(GZIP_ENCODING);
+    }
+
+    public static boolean shouldCompress(byte[] body) {
+        return body.length >= MIN_COMPRESSED_BODY_BYTES;
+    }
+
+    public static byte[] compress(byte[] body) throws IOException {
+        long startTime = System.nanoTime();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(body.length/2);
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream);
+        gzipOutputStream.write(body);
+        gzipOutputStream.close();
+        byte[] compressedBody = outputStream.toByteArray();
+
+        Metrics metrics = Metrics.getInstance();
+        metrics.getHistogram(Metrics.COMPRESSION_TIME_MICROSECONDS).record((System.nanoTime() - startTime)/1000);
+        Metrics.Counter uncompressedBytes = metrics.getCounter(Metrics.COMPRESSION_UNCOMPRESSED_BYTES);
+        Metrics.Counter compressedBytes = metrics.getCounter(Metrics.COMPRESSION_COMPRESSED_BYTES);
+        uncompressedBytes.add(body.length);
+        compressedBytes.add(compressedBody.length);
+        metrics.getGauge(Metrics.COMPRESSION_RATIO_PERCENT).set(100*compressedBytes.get()/uncompressedBytes.get());
+        return compressedBody;
+    }
+
+    public static InputStream decompress(InputStream inputStream, long maxBytes) throws IOException {
+        // The decompressed size is bounded separately, since a small compressed body may expand
+        // to a very large one
+        return new Utils.BoundedInputStream(new GZIPInputStream(inputStream), maxBytes);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control and idle reaping for web server connections.
+ *
+ * A connection is admitted on accept, before any TLS work, if under the global limit. At the
+ * limit, the new connection is rejected: an unidentified connection never evicts an established
+ * one. Once the TLS handshake identifies the peer, the connection must also be under the per-peer
+ * limit, so one friend's reconnecting or leaking client can't take every slot.
+ *
+ * A connection is idle once its handshake or a request completes, while it waits for its next
+ * request. Idle connections are reaped after the idle timeout, which is longer than WebClient's
+ * pooled connection idle timeout, so a well-behaved client closes its end first. A connection
+ * that hasn't completed its handshake isn't idle; the server's read timeout bounds it.
+ */
+public class ConnectionAdmission {
+
+    public interface Connection {
+        // Must not call back into ConnectionAdmission other than removeConnection
+        public void close();
+    }
+
+    private static class ConnectionState {
+        public String mPeerCertificateFingerprint;
+        public boolean mIsIdle;
+        public long mIdleTimestamp;
+
+        public ConnectionState(long now) {
+            mPeerCertificateFingerprint = null;
+            mIsIdle = false;
+            mIdleTimestamp = now;
+        }
+    }
+
+    private final int mMaxConnections;
+    private final int mMaxConnectionsPerPeer;
+    private final long mIdleTimeoutMilliseconds;
+    private final HashMap<Connection, ConnectionState> mConnections;
+    private final HashMap<String, Integer> mPeerConnectionCounts;
+
+    // Across all personas' web servers
+    private static final AtomicInteger mOpenConnectionCount = new AtomicInteger(0);
+
+    public ConnectionAdmission(int maxConnections, int maxConnectionsPerPeer, long idleTimeoutMilliseconds) {
+        mMaxConnections = maxConnections;
+        mMaxConnectionsPerPeer = maxConnectionsPerPeer;
+        mIdleTimeoutMilliseconds = idleTimeoutMilliseconds;
+        mConnections = new HashMap<Connection, ConnectionState>();
+        mPeerConnectionCounts = new HashMap<String, Integer>();
+    }
+
+    public synchronized boolean admitConnection(Connection connection) {
+        Metrics metrics = Metrics.getInstance();
+        if (mConnections.size() >= mMaxConnections) {
+            metrics.getCounter(Metrics.WEB_SERVER_CONNECTIONS_REJECTED).increment();
+            return false;
+        }
+        mConnections.put(connection, new ConnectionState(Clock.getInstance().currentTimeMillis()));
+        updateOpenConnections(1);
+        metrics.getCounter(Metrics.WEB_SERVER_CONNECTIONS_ACCEPTED).increment();
+        return true;
+    }
+
+    public synchronized boolean admitPeer(Connection connection, String peerCertificateFingerprint) {
+        // Returns false, and removes the connection, when the peer is over its limit. Repeated
+        // calls for the same connection, once admitted, return true.
+        ConnectionState state = mConnections.get(connection);
+        if (state == null) {
+            return false;
+        }
+        if (state.mPeerCertificateFingerprint != null) {
+            return true;
+        }
+        Integer count = mPeerConnectionCounts.get(peerCertificateFingerprint);
+        if (count != null && count >= mMaxConnectionsPerPeer) {
+            removeConnectionState(connection);
+            Metrics.getInstance().getCounter(Metrics.WEB_SERVER_CONNECTIONS_REJECTED).increment();
+            return false;
+        }
+        state.mPeerCertificateFingerprint = peerCertificateFingerprint;
+        mPeerConnectionCounts.put(peerCertificateFingerprint, count == null ? 1 : count + 1);
+        return true;
+    }
+
+    public synchronized void markBusy(Connection connection) {
+        ConnectionState state = mConnections.get(connection);
+        if (state != null) {
+            state.mIsIdle = false;
+        }
+    }
+
+    public synchronized void markIdle(Connection connection) {
+        ConnectionState state = mConnections.get(connection);
+        if (state != null) {
+            state.mIsIdle = true;
+            state.mIdleTimestamp = Clock.getInstance().currentTimeMillis();
+        }
+    }
+
+    public synchronized void removeConnection(Connection connection) {
+        removeConnectionState(connection);
+    }
+
+    public void reapIdleConnections() {
+        // Connections are closed outside the lock, as closing may block or call removeConnection
+        List<Connection> reapedConnections = new ArrayList<Connection>();
+        synchronized(this) {
+            long now = Clock.getInstance().currentTimeMillis();
+            Iterator<Map.Entry<Connection, ConnectionState>> iterator = mConnections.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Connection, ConnectionState> entry = iterator.next();
+                ConnectionState state = entry.getValue();
+                if (state.mIsIdle && now - state.mIdleTimestamp >= mIdleTimeoutMilliseconds) {
+                    iterator.remove();
+                    decrementPeerConnectionCount(state.mPeerCertificateFingerprint);
+                    reapedConnections.add(entry.getKey());
+                }
+            }
+            updateOpenConnections(-reapedConnections.size());
+        }
+        Metrics.getInstance().getCounter(Metrics.WEB_SERVER_CONNECTIONS_REAPED).add(reapedConnections.size());
+        for (Connection connection : reapedConnections) {
+            connection.close();
+        }
+    }
+
+    public synchronized void closeAllConnections() {
+        // Closes under the lock, so no connection is admitted while stopping
+        List<Connection> connections = new ArrayList<Connection>(mConnections.keySet());
+        mConnections.clear();
+        mPeerConnectionCounts.clear();
+        updateOpenConnections(-connections.size());
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void removeConnectionState(Connection connection) {
+        ConnectionState state = mConnections.remove(connection);
+        if (state != null) {
+            decrementPeerConnectionCount(state.mPeerCertificateFingerprint);
+            updateOpenConnections(-1);
+        }
+    }
+
+    private void decrementPeerConnectionCount(String peerCertificateFingerprint) {
+        if (peerCertificateFingerprint == null) {
+            return;
+        }
+        Integer count = mPeerConnectionCounts.get(peerCertificateFingerprint);
+        if (count == null || count <= 1) {
+            mPeerConnectionCounts.remove(peerCertificateFingerprint);
+        } else {
+            mPeerConnectionCounts.put(peerCertificateFingerprint, count - 1);
+        }
+    }
+
+    private static void updateOpenConnections(int delta) {
+        Metrics.getInstance().getGauge(Metrics.WEB_SERVER_OPEN_CONNECTIONS).set(mOpenConnectionCount.addAndGet(delta));
+    }
+}
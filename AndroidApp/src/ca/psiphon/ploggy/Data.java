@@ -43,6 +43,9 @@ import android.content.Context;
  * Simple consistency is provided: data changes are first written to a commit file, then the commit
  * file replaces the data file. In memory structures are replaced only after the file write succeeds.
  * 
+ * Each persona (a distinct self identity with its own friends) has its own Data instance and
+ * data directory. The default persona uses the original data directory.
+ *
  * If local security is added to the scope of Ploggy, here's where we'd interface with SQLCipher and/or
  * KeyChain, etc.
  */
@@ -153,11 +156,18 @@ public class Data {
         }
     }
 
-    // ---- Singleton ----
-    private static Data instance = null;
+    public static final String DEFAULT_PERSONA = "default";
+
+    // ---- Singleton (per persona) ----
+    private static HashMap<String, Data> instances = new HashMap<String, Data>();
     public static synchronized Data getInstance() {
+        return getInstance(DEFAULT_PERSONA);
+    }
+    public static synchronized Data getInstance(String persona) {
+       Data instance = instances.get(persona);
        if(instance == null) {
-          instance = new Data();
+          instance = new Data(persona);
+          instances.put(persona, instance);
        }
        return instance;
     }
@@ -172,20 +182,40 @@ public class Data {
     // ...eventually use file system for map tiles etc.
        
     private static final String DATA_DIRECTORY = "ploggyData"; 
+    private static final String PERSONA_DATA_DIRECTORY_FORMAT_STRING = "ploggyData-%s"; 
     private static final String SELF_FILENAME = "self.json"; 
     private static final String SELF_STATUS_FILENAME = "selfStatus.json"; 
     private static final String FRIENDS_FILENAME = "friends.json"; 
     private static final String FRIEND_STATUS_FILENAME_FORMAT_STRING = "%s-friendStatus.json"; 
     private static final String COMMIT_FILENAME_SUFFIX = ".commit"; 
     
+    final String mPersona;
+    final String mDirectoryName;
     Self mSelf;
     Status mSelfStatus;
     ArrayList<Friend> mFriends;
+    // Friend ids by TLS certificate fingerprint, for identifying web server peers
+    HashMap<String, String> mFriendIdsByCertificateFingerprint;
     HashMap<String, Status> mFriendStatuses;
+    // Last received status timestamps not yet written to the friends file; see
+    // updateFriendLastReceivedStatusTimestampLazily
+    HashMap<String, Date> mUnsavedFriendLastReceivedStatusTimestamps;
+
+    private Data(String persona) {
+        mPersona = persona;
+        mUnsavedFriendLastReceivedStatusTimestamps = new HashMap<String, Date>();
+        mDirectoryName =
+                persona.equals(DEFAULT_PERSONA) ?
+                        DATA_DIRECTORY : String.format(PERSONA_DATA_DIRECTORY_FORMAT_STRING, persona);
+    }
+
+    public String getPersona() {
+        return mPersona;
+    }
 
     public synchronized void reset() throws Utils.ApplicationError {
-        // Warning: deletes all files in DATA_DIRECTORY (not recursively)
-        File directory = Utils.getApplicationContext().getDir(DATA_DIRECTORY, Context.MODE_PRIVATE);
+        // Warning: deletes all files in this persona's data directory (not recursively)
+        File directory = getDirectory();
         directory.mkdirs();
         boolean deleteFailed = false;
         for (String child : directory.list()) {
@@ -223,8 +253,9 @@ public class Data {
             try {
                 mSelfStatus = Json.fromJson(readFile(SELF_STATUS_FILENAME), Status.class);
             } catch (DataNotFoundError e) {
-                // If there's no previous status, return a blank one
-                return new Status(new ArrayList<Message>(), new Location(null, 0, 0, 0, null));
+                // If there's no previous status, use a blank one. It's kept, so repeated calls
+                // return the same object until the status changes.
+                mSelfStatus = new Status(new ArrayList<Message>(), new Location(null, 0, 0, 0, null));
             }
         }
         return mSelfStatus;
@@ -241,7 +272,7 @@ public class Data {
         writeFile(SELF_STATUS_FILENAME, Json.toJson(newStatus));
         mSelfStatus = newStatus;
         Log.addEntry(LOG_TAG, "added your message");
-        Events.post(new Events.UpdatedSelfStatus());
+        Events.post(new Events.UpdatedSelfStatus(mPersona));
     }
 
     public synchronized void updateSelfStatusLocation(Data.Location location) throws Utils.ApplicationError {
@@ -250,7 +281,7 @@ public class Data {
         writeFile(SELF_STATUS_FILENAME, Json.toJson(newStatus));
         mSelfStatus = newStatus;
         Log.addEntry(LOG_TAG, "updated your location");
-        Events.post(new Events.UpdatedSelfStatus());
+        Events.post(new Events.UpdatedSelfStatus(mPersona));
     }
 
     private void loadFriends() throws Utils.ApplicationError {
@@ -260,6 +291,11 @@ public class Data {
             } catch (DataNotFoundError e) {
                 mFriends = new ArrayList<Friend>();
             }
+            mFriendIdsByCertificateFingerprint = new HashMap<String, String>();
+            for (Friend friend : mFriends) {
+                mFriendIdsByCertificateFingerprint.put(
+                        X509.getCertificateFingerprint(friend.mPublicIdentity.mX509Certificate), friend.mId);
+            }
         }
     }
     
@@ -292,16 +328,15 @@ public class Data {
         throw new DataNotFoundError();
     }
 
-    public synchronized Friend getFriendByCertificate(String certificate) throws Utils.ApplicationError, DataNotFoundError {
+    public synchronized Friend getFriendByCertificateFingerprint(String certificateFingerprint) throws Utils.ApplicationError, DataNotFoundError {
         loadFriends();
         synchronized(mFriends) {
-            for (Friend friend : mFriends) {
-                if (friend.mPublicIdentity.mX509Certificate.equals(certificate)) {
-                    return friend;
-                }
+            String id = mFriendIdsByCertificateFingerprint.get(certificateFingerprint);
+            if (id == null) {
+                throw new DataNotFoundError();
             }
+            return getFriendById(id);
         }
-        throw new DataNotFoundError();
     }
 
     public synchronized void addFriend(Friend friend) throws Utils.ApplicationError {
@@ -327,6 +362,8 @@ public class Data {
             newFriends.add(friend);
             writeFile(FRIENDS_FILENAME, Json.toJson(newFriends));
             mFriends.add(friend);
+            mFriendIdsByCertificateFingerprint.put(
+                    X509.getCertificateFingerprint(friend.mPublicIdentity.mX509Certificate), friend.mId);
             Log.addEntry(LOG_TAG, "added friend: " + friend.mPublicIdentity.mNickname);
             Events.post(new Events.AddedFriend(friend.mId));
         }
@@ -348,6 +385,16 @@ public class Data {
 
     public synchronized void updateFriend(Friend friend) throws Utils.ApplicationError {
         loadFriends();
+        Date unsavedLastReceivedStatusTimestamp = mUnsavedFriendLastReceivedStatusTimestamps.remove(friend.mId);
+        if (unsavedLastReceivedStatusTimestamp != null &&
+                (friend.mLastReceivedStatusTimestamp == null ||
+                 unsavedLastReceivedStatusTimestamp.after(friend.mLastReceivedStatusTimestamp))) {
+            friend = new Friend(
+                    friend.mPublicIdentity,
+                    friend.mAddedTimestamp,
+                    friend.mLastSentStatusTimestamp,
+                    unsavedLastReceivedStatusTimestamp);
+        }
         synchronized(mFriends) {
             ArrayList<Friend> newFriends = new ArrayList<Friend>(mFriends);
             updateFriendHelper(newFriends, friend);
@@ -370,12 +417,16 @@ public class Data {
             new Friend(
                 friend.mPublicIdentity,
                 friend.mAddedTimestamp,
-                new Date(),
+                Clock.getInstance().now(),
                 friend.mLastReceivedStatusTimestamp));
     }
     
     public synchronized Date getFriendLastReceivedStatusTimestamp(String friendId) throws Utils.ApplicationError {
         Friend friend = getFriendById(friendId);
+        Date unsavedLastReceivedStatusTimestamp = mUnsavedFriendLastReceivedStatusTimestamps.get(friendId);
+        if (unsavedLastReceivedStatusTimestamp != null) {
+            return unsavedLastReceivedStatusTimestamp;
+        }
         return friend.mLastReceivedStatusTimestamp;
     }
     
@@ -387,7 +438,14 @@ public class Data {
                 friend.mPublicIdentity,
                 friend.mAddedTimestamp,
                 friend.mLastSentStatusTimestamp,
-                new Date()));
+                Clock.getInstance().now()));
+    }
+
+    public synchronized void updateFriendLastReceivedStatusTimestampLazily(String friendId) throws Utils.ApplicationError {
+        // For a received status that's unchanged: the timestamp is kept in memory, with no
+        // friends file write or update event, and is written with the friend's next update
+        getFriendById(friendId);
+        mUnsavedFriendLastReceivedStatusTimestamps.put(friendId, Clock.getInstance().now());
     }
     
     private void removeFriendHelper(String id, List<Friend> list) throws DataNotFoundError {
@@ -413,8 +471,12 @@ public class Data {
             removeFriendHelper(id, newFriends);
             writeFile(FRIENDS_FILENAME, Json.toJson(newFriends));
             removeFriendHelper(id, mFriends);
+            mUnsavedFriendLastReceivedStatusTimestamps.remove(id);
+            mFriendIdsByCertificateFingerprint.remove(
+                    X509.getCertificateFingerprint(friend.mPublicIdentity.mX509Certificate));
             Log.addEntry(LOG_TAG, "removed friend: " + friend.mPublicIdentity.mNickname);
-            Events.post(new Events.RemovedFriend(id));
+            Events.post(new Events.RemovedFriend(
+                    id, getSelf().mPublicIdentity.mX509Certificate, friend.mPublicIdentity.mX509Certificate));
         }
     }
 
@@ -448,10 +510,10 @@ public class Data {
         Events.post(new Events.UpdatedFriendStatus(friend, status, previousStatus));
     }
 
-    private static String readFile(String filename) throws Utils.ApplicationError, DataNotFoundError {
+    private String readFile(String filename) throws Utils.ApplicationError, DataNotFoundError {
         FileInputStream inputStream = null;
         try {
-            File directory = Utils.getApplicationContext().getDir(DATA_DIRECTORY, Context.MODE_PRIVATE);
+            File directory = getDirectory();
             String commitFilename = filename + COMMIT_FILENAME_SUFFIX;
             File commitFile = new File(directory, commitFilename);
             File file = new File(directory, filename);
@@ -472,10 +534,11 @@ public class Data {
         }        
     }
 
-    private static void writeFile(String filename, String value) throws Utils.ApplicationError {
+    private void writeFile(String filename, String value) throws Utils.ApplicationError {
+        long startTime = System.nanoTime();
         FileOutputStream outputStream = null;
         try {
-            File directory = Utils.getApplicationContext().getDir(DATA_DIRECTORY, Context.MODE_PRIVATE);
+            File directory = getDirectory();
             String commitFilename = filename + COMMIT_FILENAME_SUFFIX;
             File commitFile = new File(directory, commitFilename);
             File file = new File(directory, filename);
@@ -492,9 +555,15 @@ public class Data {
                 } catch (IOException e) {
                 }
             }
+            Metrics.getInstance().getHistogram(Metrics.DATA_WRITE_LATENCY_MICROSECONDS).record(
+                    (System.nanoTime() - startTime)/1000);
         }
     }
 
+    private File getDirectory() {
+        return Utils.getApplicationContext().getDir(mDirectoryName, Context.MODE_PRIVATE);
+    }
+
     private static void replaceFileIfExists(File commitFile, File file) throws IOException {
         if (commitFile.exists()) {
             file.delete();
@@ -502,8 +571,8 @@ public class Data {
         }
     }
     
-    private static void deleteFile(String filename) throws Utils.ApplicationError {
-        File directory = Utils.getApplicationContext().getDir(DATA_DIRECTORY, Context.MODE_PRIVATE);
+    private void deleteFile(String filename) throws Utils.ApplicationError {
+        File directory = getDirectory();
         File file = new File(directory, filename);
         if (!file.delete()) {
             if (file.exists()) {
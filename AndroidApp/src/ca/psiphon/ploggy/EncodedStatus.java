@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.io.IOException;
+
+/**
+ * An immutable, response-ready encoding of a status.
+ *
+ * The self status changes far less often than friends pull it, so the Engine encodes it once per
+ * change and WebServer writes the same bytes to every pull. The byte arrays are shared and must
+ * not be modified.
+ */
+public class EncodedStatus {
+
+    private static final String LOG_TAG = "Encoded Status";
+
+    public final Data.Status mStatus;
+    public final long mVersion;
+    public final byte[] mBody;
+    // Null when the body is too small to be worth compressing
+    public final byte[] mCompressedBody;
+    public final String mEntityTag;
+
+    private EncodedStatus(Data.Status status, long version, byte[] body, byte[] compressedBody, String entityTag) {
+        mStatus = status;
+        mVersion = version;
+        mBody = body;
+        mCompressedBody = compressedBody;
+        mEntityTag = entityTag;
+    }
+
+    public static EncodedStatus encode(Data.Status status, long version) throws Utils.ApplicationError {
+        try {
+            String statusJson = Json.toJson(status);
+            byte[] body = statusJson.getBytes("UTF-8");
+            byte[] compressedBody = Compression.shouldCompress(body) ? Compression.compress(body) : null;
+            Metrics.getInstance().getCounter(Metrics.ENGINE_SELF_STATUS_ENCODINGS).increment();
+            return new EncodedStatus(
+                    status,
+                    version,
+                    body,
+                    compressedBody,
+                    Protocol.getStatusEntityTag(statusJson));
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+}
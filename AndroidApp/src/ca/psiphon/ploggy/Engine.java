@@ -21,15 +21,19 @@ package ca.psiphon.ploggy;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
@@ -46,17 +50,21 @@ import com.squareup.otto.Subscribe;
  * Coordinator for background Ploggy work.
  * 
  * The Engine:
- * - schedule friend status push/pulls
+ * - schedule friend status push/pulls; optionally aligned into shared wake windows
  * - maintains a worker thread pool for background tasks (pushing/pulling
  *   friends and handling friend requests
  * - runs the local location monitor
- * - (re)-starts and stops the local web server and Tor Hidden Service to
+ * - (re)-starts and stops the local web servers and Tor Hidden Services to
  *   handle requests from friends
+ * - supports multiple personas, each with its own Data, web server and
+ *   Hidden Service, all served by one Tor process
+ * - starts up in background stages, posting EngineStartupProgress as each
+ *   stage completes
  *   
  * An Engine instance is intended to be run via an Android Service set to
  * foreground mode (i.e., long running).
  */
-public class Engine implements OnSharedPreferenceChangeListener, WebServer.RequestHandler {
+public class Engine implements OnSharedPreferenceChangeListener {
     
     private static final String LOG_TAG = "Engine";
     
@@ -72,25 +80,138 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
         }
     }
 
+    // Start up stages, in order. Each completed stage posts an EngineStartupProgress event.
+    public enum StartupStage {
+        DATA_LOADED,
+        WEB_SERVER_STARTED,
+        TOR_STARTED,
+        CIRCUIT_ESTABLISHED,
+        PULLS_SCHEDULED,
+        FIRST_PULL_COMPLETED
+    }
+
+    // A persona is a distinct self identity with its own Data, friends, web server (trusting
+    // only its own friends) and Hidden Service. Personas share the worker pool and Tor process.
+    private class Persona implements WebServer.RequestHandler, PullSchedule.RequestTasks {
+        public final String mName;
+        public final Data mData;
+        // Sharing and pull preferences; see getPersonaSharedPreferences
+        public final SharedPreferences mSharedPreferences;
+        public final long mPullPeriodMilliseconds;
+        public final PullSchedule mPullSchedule;
+        public final WakeWindowScheduler mWakeWindowScheduler;
+        // Entity tag of each friend's last pulled status, sent with the next pull
+        public final Map<String, String> mFriendStatusEntityTags;
+        // Friends whose web server rejected the exchange request, and when to try it again
+        public final Map<String, Long> mFriendExchangeRetryTimes;
+        // Friends whose responses the non-blocking client doesn't handle
+        public final Set<String> mFriendsWithoutNonBlockingPull;
+        public WebServer mWebServer;
+        // Self status as served to pulls; rebuilt when the self status changes
+        public EncodedStatus mEncodedSelfStatus;
+        public long mSelfStatusVersion;
+
+        public Persona(
+                String name,
+                SharedPreferences sharedPreferences,
+                ScheduledExecutorService taskThreadPool,
+                long pullPeriodMilliseconds,
+                WakeWindowScheduler wakeWindowScheduler) {
+            mName = name;
+            mData = Data.getInstance(name);
+            mSharedPreferences = sharedPreferences;
+            mPullPeriodMilliseconds = pullPeriodMilliseconds;
+            mWakeWindowScheduler = wakeWindowScheduler;
+            mPullSchedule = new PullSchedule(taskThreadPool, pullPeriodMilliseconds, wakeWindowScheduler, this);
+            mFriendStatusEntityTags = new ConcurrentHashMap<String, String>();
+            mFriendExchangeRetryTimes = new ConcurrentHashMap<String, Long>();
+            mFriendsWithoutNonBlockingPull = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        }
+
+        @Override
+        public void submitTask(Runnable task) {
+            Engine.this.submitTask(task);
+        }
+
+        @Override
+        public Runnable makePullTask(String friendId) {
+            return Engine.this.makePullTask(this, friendId);
+        }
+
+        @Override
+        public Runnable makePushTask(String friendId) {
+            return Engine.this.makePushTask(this, friendId);
+        }
+
+        @Override
+        public Runnable makeExchangeTask(String friendId) {
+            Long retryTime = mFriendExchangeRetryTimes.get(friendId);
+            if (retryTime != null) {
+                if (Clock.getInstance().currentTimeMillis() < retryTime) {
+                    return null;
+                }
+                mFriendExchangeRetryTimes.remove(friendId);
+            }
+            return Engine.this.makeExchangeTask(this, friendId);
+        }
+
+        @Override
+        public EncodedStatus handlePullStatusRequest(String friendCertificateFingerprint) throws Utils.ApplicationError {
+            return Engine.this.handlePullStatusRequest(this, friendCertificateFingerprint);
+        }
+
+        @Override
+        public void handlePushStatusRequest(String friendCertificateFingerprint, Data.Status status) throws Utils.ApplicationError {
+            Engine.this.handlePushStatusRequest(this, friendCertificateFingerprint, status);
+        }
+
+        @Override
+        public EncodedStatus handleExchangeStatusRequest(String friendCertificateFingerprint, Data.Status status) throws Utils.ApplicationError {
+            return Engine.this.handleExchangeStatusRequest(this, friendCertificateFingerprint, status);
+        }
+    }
+
     private Context mContext;
     private Handler mHandler;
     private Runnable mRestartTask;
     private SharedPreferences mSharedPreferences;
+    private List<String> mPersonaNames;
+    private List<Persona> mPersonas;
     private ScheduledExecutorService mTaskThreadPool;
-    private HashMap<String, ScheduledFuture<?>> mFriendPullTasks;
+    private ScheduledFuture<?> mWakeWindowTask;
     private LocationMonitor mLocationMonitor;
-    private WebServer mWebServer;
     private TorWrapper mTorWrapper;
     private List<NewMessage> mNewMessages;
+    private long mStartTimestamp;
+    private long mLastStartupStageTimestamp;
+    private long mTimeToFirstPullMilliseconds;
+    private StartupStage mLastStartupStage;
+    private Semaphore mPrewarmPermits;
+    private boolean mNonBlockingFriendPulls;
     
     private static final int THREAD_POOL_SIZE = 30;
 
+    private static final String PERSONA_PREFERENCES_NAME_FORMAT_STRING = "persona-%s";
+
+    // Connections are pre-warmed this long before scheduled pulls, within the pooled
+    // connection idle timeout; and only a few at once, to leave Tor capacity for real requests
+    private static final long PREWARM_LEAD_MILLISECONDS = 15*1000;
+    private static final int MAX_CONCURRENT_PREWARMS = 2;
+
+    // After a friend refuses an exchange request, separate push and pull requests are used
+    // for this long before trying the exchange again
+    private static final long EXCHANGE_RETRY_MILLISECONDS = 60*60*1000;
+
     public Engine(Context context) {
+        this(context, Arrays.asList(Data.DEFAULT_PERSONA));
+    }
+
+    public Engine(Context context, List<String> personaNames) {
         Utils.initSecureRandom();
         mContext = context;
+        mPersonaNames = new ArrayList<String>(personaNames);
         mHandler = new Handler();
-        // TODO: distinct instance of preferences for each persona
-        // e.g., getSharedPreferencesName("persona1");
+        // Engine-wide preferences, and the default persona's; see getPersonaSharedPreferences
         mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
         // TODO: persistent (on disk) new-message state?
         // Note: new-messages is not cleared in start() or stop(), so its state is retained when the Engine restarts
@@ -100,19 +221,164 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
     public synchronized void start() throws Utils.ApplicationError {
         Log.addEntry(LOG_TAG, "starting...");
         Events.register(this);
-        mTaskThreadPool = Executors.newScheduledThreadPool(THREAD_POOL_SIZE);
-        mFriendPullTasks = new HashMap<String, ScheduledFuture<?>>();
+        mStartTimestamp = Clock.getInstance().currentTimeMillis();
+        mLastStartupStageTimestamp = mStartTimestamp;
+        mTimeToFirstPullMilliseconds = -1;
+        mLastStartupStage = null;
+        mTaskThreadPool = Clock.getInstance().newScheduledThreadPool(THREAD_POOL_SIZE);
+        mPrewarmPermits = new Semaphore(MAX_CONCURRENT_PREWARMS);
+        boolean alignFriendPulls = getBooleanPreference(R.string.preferenceAlignFriendPulls);
+        WebClient.setHedgeThreadPool(
+                getBooleanPreference(R.string.preferenceHedgeFriendConnects) ? mTaskThreadPool : null);
+        mNonBlockingFriendPulls = getBooleanPreference(R.string.preferenceNonBlockingFriendPulls);
+        mPersonas = new ArrayList<Persona>();
+        for (String personaName : mPersonaNames) {
+            SharedPreferences sharedPreferences = getPersonaSharedPreferences(personaName);
+            long pullPeriodMilliseconds =
+                    getIntPreference(sharedPreferences, R.string.preferenceLocationPullFrequencyInMinutes)*60*1000;
+            WakeWindowScheduler wakeWindowScheduler = null;
+            if (alignFriendPulls) {
+                wakeWindowScheduler = new WakeWindowScheduler(pullPeriodMilliseconds);
+            }
+            mPersonas.add(
+                    new Persona(personaName, sharedPreferences, mTaskThreadPool, pullPeriodMilliseconds, wakeWindowScheduler));
+        }
         mLocationMonitor = new LocationMonitor(this);
         mLocationMonitor.start();
-        startHiddenService();
-        schedulePullFriends();
         mSharedPreferences.registerOnSharedPreferenceChangeListener(this);
+        for (Persona persona : mPersonas) {
+            persona.mSharedPreferences.registerOnSharedPreferenceChangeListener(this);
+        }
+        // start() is called on the main thread; the remaining, heavier stages run in the worker pool
+        final ScheduledExecutorService startupThreadPool = mTaskThreadPool;
+        final List<Persona> startupPersonas = mPersonas;
+        mTaskThreadPool.submit(new Runnable() {
+            public void run() {
+                runStartupStages(startupThreadPool, startupPersonas);
+            }
+        });
         Log.addEntry(LOG_TAG, "started");
     }
 
+    private void runStartupStages(ScheduledExecutorService startupThreadPool, List<Persona> personas) {
+        // The Engine lock isn't held while waiting on Tor, so event handlers and stop() aren't
+        // blocked by start up. When the Engine is stopped or restarted meanwhile, this start up
+        // sequence is abandoned: the thread pool it was started with is no longer current.
+        try {
+            // Loading self, friends and self status warms the Data caches for the following stages
+            for (Persona persona : personas) {
+                persona.mData.getSelf();
+                persona.mData.getFriends();
+                persona.mData.getSelfStatus();
+            }
+            if (!completeStartupStage(startupThreadPool, StartupStage.DATA_LOADED)) {
+                return;
+            }
+            synchronized(this) {
+                if (startupThreadPool != mTaskThreadPool) {
+                    return;
+                }
+                stopHiddenService();
+                startWebServer();
+            }
+            if (!completeStartupStage(startupThreadPool, StartupStage.WEB_SERVER_STARTED)) {
+                return;
+            }
+            synchronized(this) {
+                if (startupThreadPool != mTaskThreadPool) {
+                    return;
+                }
+                startTor();
+            }
+            TorWrapper torWrapper = getStartupTorWrapper(startupThreadPool);
+            if (torWrapper == null) {
+                return;
+            }
+            torWrapper.awaitStarted();
+            if (!completeStartupStage(startupThreadPool, StartupStage.TOR_STARTED)) {
+                return;
+            }
+            torWrapper = getStartupTorWrapper(startupThreadPool);
+            if (torWrapper == null) {
+                return;
+            }
+            if (torWrapper.awaitCircuitEstablished()) {
+                if (!completeStartupStage(startupThreadPool, StartupStage.CIRCUIT_ESTABLISHED)) {
+                    return;
+                }
+            } else {
+                // Pulls are still scheduled; each pull checks for an established circuit
+                Log.addEntry(LOG_TAG, "no Tor circuit established during start up");
+            }
+            synchronized(this) {
+                if (startupThreadPool != mTaskThreadPool) {
+                    return;
+                }
+                schedulePullFriends();
+            }
+            completeStartupStage(startupThreadPool, StartupStage.PULLS_SCHEDULED);
+        } catch (Utils.ApplicationError e) {
+            Log.addEntry(LOG_TAG, "failed to complete start up");
+        }
+    }
+
+    private synchronized TorWrapper getStartupTorWrapper(ScheduledExecutorService startupThreadPool) {
+        return (startupThreadPool == mTaskThreadPool) ? mTorWrapper : null;
+    }
+
+    private synchronized boolean completeStartupStage(ScheduledExecutorService startupThreadPool, StartupStage stage) {
+        if (startupThreadPool != mTaskThreadPool) {
+            return false;
+        }
+        long now = Clock.getInstance().currentTimeMillis();
+        long stageMilliseconds = now - mLastStartupStageTimestamp;
+        long elapsedMilliseconds = now - mStartTimestamp;
+        mLastStartupStageTimestamp = now;
+        mLastStartupStage = stage;
+        Metrics metrics = Metrics.getInstance();
+        if (stage == StartupStage.TOR_STARTED) {
+            metrics.getGauge(Metrics.TOR_BOOTSTRAP_MILLISECONDS).set(stageMilliseconds);
+        } else if (stage == StartupStage.CIRCUIT_ESTABLISHED) {
+            metrics.getGauge(Metrics.TOR_FIRST_CIRCUIT_MILLISECONDS).set(elapsedMilliseconds);
+        } else if (stage == StartupStage.FIRST_PULL_COMPLETED) {
+            mTimeToFirstPullMilliseconds = elapsedMilliseconds;
+            metrics.getGauge(Metrics.ENGINE_TIME_TO_FIRST_PULL_MILLISECONDS).set(elapsedMilliseconds);
+        }
+        Log.addEntry(
+                LOG_TAG,
+                String.format(
+                        "start up stage %s completed in %d ms. (%d ms. since start)",
+                        stage.name().toLowerCase(),
+                        stageMilliseconds,
+                        elapsedMilliseconds));
+        Events.post(new Events.EngineStartupProgress(stage, stageMilliseconds, elapsedMilliseconds));
+        return true;
+    }
+
+    private synchronized void completeFirstPull(ScheduledExecutorService taskThreadPool) {
+        if (mTimeToFirstPullMilliseconds == -1) {
+            completeStartupStage(taskThreadPool, StartupStage.FIRST_PULL_COMPLETED);
+        }
+    }
+
+    public synchronized StartupStage getLastStartupStage() {
+        // Returns null until the first start up stage completes after start
+        return mLastStartupStage;
+    }
+
+    public synchronized long getTimeToFirstPullMilliseconds() {
+        // Returns -1 until the first successful pull after start
+        return mTimeToFirstPullMilliseconds;
+    }
+
     public synchronized void stop() {
         Log.addEntry(LOG_TAG, "stopping...");
         mSharedPreferences.unregisterOnSharedPreferenceChangeListener(this);
+        if (mPersonas != null) {
+            for (Persona persona : mPersonas) {
+                persona.mSharedPreferences.unregisterOnSharedPreferenceChangeListener(this);
+            }
+        }
         Events.unregister(this);
         stopHiddenService();
         if (mLocationMonitor != null) {
@@ -120,10 +386,12 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
             mLocationMonitor = null;
         }
         if (mTaskThreadPool != null) {
+            WebClient.setHedgeThreadPool(null);
             Utils.shutdownExecutorService(mTaskThreadPool);
             mTaskThreadPool = null;
-            mFriendPullTasks = null;
         }
+        mPersonas = null;
+        mWakeWindowTask = null;
         Log.addEntry(LOG_TAG, "stopped");
     }
 
@@ -152,53 +420,134 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
 
     public synchronized void submitTask(Runnable task) {
         mTaskThreadPool.submit(task);
+        updateTaskQueueMetrics();
+    }
+
+    private void updateTaskQueueMetrics() {
+        // Queue depth includes scheduled (delayed and periodic) tasks
+        if (mTaskThreadPool instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor)mTaskThreadPool;
+            Metrics metrics = Metrics.getInstance();
+            metrics.getGauge(Metrics.ENGINE_TASK_QUEUE_DEPTH).set(threadPoolExecutor.getQueue().size());
+            metrics.getGauge(Metrics.ENGINE_ACTIVE_TASKS).set(threadPoolExecutor.getActiveCount());
+        }
     }
     
     private void startHiddenService() throws Utils.ApplicationError {
+        stopHiddenService();
+        startWebServer();
+        startTor();
+    }
+
+    private void startWebServer() throws Utils.ApplicationError {
+        // One web server per persona; each trusts only that persona's friends
+        boolean nonBlockingWebServer = getBooleanPreference(R.string.preferenceNonBlockingWebServer);
         try {
-            stopHiddenService();
-
-            Data.Self self = Data.getInstance().getSelf();
-            List<String> friendCertificates = new ArrayList<String>();
-            for (Data.Friend friend : Data.getInstance().getFriends()) {
-                friendCertificates.add(friend.mPublicIdentity.mX509Certificate);
-            }
-            mWebServer = new WebServer(
-                    this,
-                    new X509.KeyMaterial(self.mPublicIdentity.mX509Certificate, self.mPrivateIdentity.mX509PrivateKey),
-                    friendCertificates);
-            mWebServer.start();
-
-            List<TorWrapper.HiddenServiceAuth> hiddenServiceAuths = new ArrayList<TorWrapper.HiddenServiceAuth>();
-            for (Data.Friend friend : Data.getInstance().getFriends()) {
-                hiddenServiceAuths.add(
-                        new TorWrapper.HiddenServiceAuth(
-                                friend.mPublicIdentity.mHiddenServiceHostname,
-                                friend.mPublicIdentity.mHiddenServiceAuthCookie));
-            }
-            mTorWrapper = new TorWrapper(
-                    TorWrapper.Mode.MODE_RUN_SERVICES,
-                    hiddenServiceAuths,
-                    new HiddenService.KeyMaterial(
-                            self.mPublicIdentity.mHiddenServiceHostname,
-                            self.mPublicIdentity.mHiddenServiceAuthCookie,
-                            self.mPrivateIdentity.mHiddenServicePrivateKey),
-                    mWebServer.getListeningPort());
-            
-            // TODO: in a background thread, monitor mTorWrapper.awaitStarted() to check for errors and retry... 
-            mTorWrapper.start();
+            for (Persona persona : mPersonas) {
+                Data.Self self = persona.mData.getSelf();
+                List<String> friendCertificates = new ArrayList<String>();
+                for (Data.Friend friend : persona.mData.getFriends()) {
+                    friendCertificates.add(friend.mPublicIdentity.mX509Certificate);
+                }
+                persona.mWebServer = new WebServer(
+                        persona,
+                        new X509.KeyMaterial(self.mPublicIdentity.mX509Certificate, self.mPrivateIdentity.mX509PrivateKey),
+                        friendCertificates,
+                        nonBlockingWebServer);
+                persona.mWebServer.start();
+            }
         } catch (IOException e) {
             throw new Utils.ApplicationError(LOG_TAG, e);
         }
     }
+
+    private void startTor() throws Utils.ApplicationError {
+        // One Tor process serves every persona's Hidden Service, and holds the client
+        // authorization for every persona's friends
+        List<TorWrapper.HiddenServiceAuth> hiddenServiceAuths = new ArrayList<TorWrapper.HiddenServiceAuth>();
+        List<TorWrapper.HiddenServiceConfig> hiddenServiceConfigs = new ArrayList<TorWrapper.HiddenServiceConfig>();
+        Set<String> hiddenServiceAuthHostnames = new HashSet<String>();
+        for (Persona persona : mPersonas) {
+            Data.Self self = persona.mData.getSelf();
+            for (Data.Friend friend : persona.mData.getFriends()) {
+                if (hiddenServiceAuthHostnames.add(friend.mPublicIdentity.mHiddenServiceHostname)) {
+                    hiddenServiceAuths.add(
+                            new TorWrapper.HiddenServiceAuth(
+                                    friend.mPublicIdentity.mHiddenServiceHostname,
+                                    friend.mPublicIdentity.mHiddenServiceAuthCookie));
+                }
+            }
+            hiddenServiceConfigs.add(
+                    new TorWrapper.HiddenServiceConfig(
+                            new HiddenService.KeyMaterial(
+                                    self.mPublicIdentity.mHiddenServiceHostname,
+                                    self.mPublicIdentity.mHiddenServiceAuthCookie,
+                                    self.mPrivateIdentity.mHiddenServicePrivateKey),
+                            persona.mWebServer.getListeningPort()));
+        }
+        mTorWrapper = new TorWrapper(
+                TorWrapper.Mode.MODE_RUN_SERVICES,
+                null,
+                hiddenServiceAuths,
+                hiddenServiceConfigs);
+
+        // TODO: in a background thread, monitor mTorWrapper.awaitStarted() to check for errors and retry... 
+        mTorWrapper.start();
+    }
     
     private void stopHiddenService() {
         if (mTorWrapper != null) {
             mTorWrapper.stop();
+            mTorWrapper = null;
+        }
+        // Pooled friend connections are tunneled through the stopped Tor instance
+        WebClient.shutdown();
+        NioWebClient.shutdown();
+        if (mPersonas != null) {
+            for (Persona persona : mPersonas) {
+                if (persona.mWebServer != null) {
+                    persona.mWebServer.stop();
+                    persona.mWebServer = null;
+                }
+            }
         }
-        if (mWebServer != null) {
-            mWebServer.stop();
+    }
+
+    private Persona getPersona(String name) {
+        if (mPersonas != null) {
+            for (Persona persona : mPersonas) {
+                if (persona.mName.equals(name)) {
+                    return persona;
+                }
+            }
         }
+        return null;
+    }
+
+    private synchronized boolean isTorCircuitEstablished() {
+        return mTorWrapper != null && mTorWrapper.isCircuitEstablished();
+    }
+
+    private void submitRestartHiddenService(final boolean rescheduleFriendPulls, final String failureMessage) {
+        // Restarting the web server and Tor is too heavy for the main thread, where Events are handled
+        final ScheduledExecutorService taskThreadPool = mTaskThreadPool;
+        submitTask(new Runnable() {
+            public void run() {
+                synchronized(Engine.this) {
+                    if (taskThreadPool != mTaskThreadPool) {
+                        return;
+                    }
+                    try {
+                        startHiddenService();
+                        if (rescheduleFriendPulls) {
+                            schedulePullFriends();
+                        }
+                    } catch (Utils.ApplicationError e) {
+                        Log.addEntry(LOG_TAG, failureMessage);
+                    }
+                }
+            }
+        });
     }
     
     public synchronized int getTorSocksProxyPort() throws Utils.ApplicationError {
@@ -211,11 +560,8 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
     @Subscribe
     public synchronized void onUpdatedSelf(Events.UpdatedSelf updatedSelf) {
         // Apply new transport and hidden service credentials
-        try {
-            startHiddenService();
-        } catch (Utils.ApplicationError e) {
-            Log.addEntry(LOG_TAG, "failed restart sharing service after self updated");
-        }                        
+        TransportSecurity.clearCache();
+        submitRestartHiddenService(false, "failed restart sharing service after self updated");
     }
 
     @Subscribe
@@ -232,13 +578,18 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
                     address.append(newSelfLocation.mAddress.getAddressLine(i));
                 }
             }
-            Data.getInstance().updateSelfStatusLocation(
-                    new Data.Location(
-                            new Date(),
-                            newSelfLocation.mLocation.getLatitude(),
-                            newSelfLocation.mLocation.getLongitude(),
-                            getIntPreference(R.string.preferenceLocationPrecisionInMeters),
-                            address.toString()));
+            // All personas share the device location, each at its own precision
+            Date now = Clock.getInstance().now();
+            for (Persona persona : mPersonas) {
+                Data.Location location =
+                        new Data.Location(
+                                now,
+                                newSelfLocation.mLocation.getLatitude(),
+                                newSelfLocation.mLocation.getLongitude(),
+                                getIntPreference(persona.mSharedPreferences, R.string.preferenceLocationPrecisionInMeters),
+                                address.toString());
+                persona.mData.updateSelfStatusLocation(location);
+            }
         } catch (Utils.ApplicationError e) {
             Log.addEntry(LOG_TAG, "failed to update self status with new location");
         }
@@ -249,7 +600,12 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
         try {
             // Immediately push new status to all friends. If this fails for any reason,
             // implicitly fall back to friends pulling status.
-            pushToFriends();
+            Persona persona = getPersona(updatedSelfStatus.mPersona);
+            if (persona != null) {
+                // Encode once here, rather than on the next pull
+                getEncodedSelfStatus(persona);
+                pushToFriends(persona);
+            }
         } catch (Utils.ApplicationError e) {
             Log.addEntry(LOG_TAG, "failed push to friends after self status updated");
         }
@@ -260,24 +616,18 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
         // Apply new set of friends to web server and pull schedule
         // TODO: don't need to restart Tor, just web server
         //       (now need to restart Tor due to Hidden Service auth; but could use control interface instead?)
-        try {
-            startHiddenService();
-            schedulePullFriends();
-        } catch (Utils.ApplicationError e) {
-            Log.addEntry(LOG_TAG, "failed restart sharing service after added friend");
-        }
+        TransportSecurity.clearCache();
+        submitRestartHiddenService(true, "failed restart sharing service after added friend");
     }
     
     @Subscribe
     public synchronized void onRemovedFriend(Events.RemovedFriend removedFriend) {
         // Apply new set of friends to web server and pull scheduke
         // TODO: don't need to restart Tor, just web server
-        try {
-            startHiddenService();
-            schedulePullFriends();
-        } catch (Utils.ApplicationError e) {
-            Log.addEntry(LOG_TAG, "failed restart sharing service after removed friend");
-        }
+        Metrics.getInstance().removeFriendMetrics(removedFriend.mId);
+        WebClient.removePeer(removedFriend.mSelfX509Certificate, removedFriend.mX509Certificate);
+        TransportSecurity.clearCache();
+        submitRestartHiddenService(true, "failed restart sharing service after removed friend");
     }
 
     @Subscribe
@@ -315,160 +665,557 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
         return new ArrayList<NewMessage>(mNewMessages);
     }
     
-    private void pushToFriends() throws Utils.ApplicationError {
+    private void pushToFriends(Persona persona) throws Utils.ApplicationError {
         // TODO: check for existing pushes in worker thread queue
-        if (!currentlySharingLocation()) {
+        if (!currentlySharingLocation(persona)) {
+            return;
+        }
+        if (persona.mWakeWindowScheduler != null) {
+            // In alignment mode, pushes are deferred to the next wake window
+            for (Data.Friend friend : persona.mData.getFriends()) {
+                persona.mWakeWindowScheduler.addPendingPush(friend.mId);
+            }
             return;
         }
-        if (!mTorWrapper.isCircuitEstablished()) {
+        if (!isTorCircuitEstablished()) {
             // TODO: schedule another push in the future?
             return;
         }
-        for (Data.Friend friend : Data.getInstance().getFriends()) {
-            final String taskFriendId = friend.mId;
-            Runnable task = new Runnable() {
-                public void run() {
-                    try {
-                        Data data = Data.getInstance();
-                        Data.Self self = data.getSelf();
-                        Data.Status selfStatus = data.getSelfStatus();
-                        Data.Friend friend = data.getFriendById(taskFriendId);
-                        Log.addEntry(LOG_TAG, "make push status request to: " + friend.mPublicIdentity.mNickname);
-                        WebClient.makePostRequest(
-                                new X509.KeyMaterial(self.mPublicIdentity.mX509Certificate, self.mPrivateIdentity.mX509PrivateKey),
+        for (Data.Friend friend : persona.mData.getFriends()) {
+            submitTask(makePushTask(persona, friend.mId));
+        }
+    }
+
+    private Runnable makePushTask(Persona persona, String friendId) {
+        final Data data = persona.mData;
+        final String taskFriendId = friendId;
+        return new Runnable() {
+            public void run() {
+                Metrics metrics = Metrics.getInstance();
+                Metrics.FriendMetrics friendMetrics = metrics.getFriendMetrics(taskFriendId);
+                try {
+                    Data.Self self = data.getSelf();
+                    Data.Status selfStatus = data.getSelfStatus();
+                    Data.Friend friend = data.getFriendById(taskFriendId);
+                    trackFriendRtt(friendMetrics, self, friend);
+                    Log.addEntry(LOG_TAG, "make push status request to: " + friend.mPublicIdentity.mNickname);
+                    long requestStartTime = Clock.getInstance().currentTimeMillis();
+                    WebClient.makePostRequest(
+                            new X509.KeyMaterial(self.mPublicIdentity.mX509Certificate, self.mPrivateIdentity.mX509PrivateKey),
+                            friend.mPublicIdentity.mX509Certificate,
+                            getTorSocksProxyPort(),
+                            friend.mPublicIdentity.mHiddenServiceHostname,
+                            Protocol.WEB_SERVER_VIRTUAL_PORT,
+                            Protocol.PUSH_STATUS_REQUEST_PATH,
+                            Json.toJson(selfStatus));
+                    friendMetrics.mRequestLatencyMilliseconds.record(Clock.getInstance().currentTimeMillis() - requestStartTime);
+                    friendMetrics.mPushSuccesses.increment();
+                    metrics.getCounter(Metrics.ENGINE_PUSH_SUCCESSES).increment();
+                    data.updateFriendLastSentStatusTimestamp(taskFriendId);
+                } catch (Data.DataNotFoundError e) {
+                    // Friend was deleted while push was enqueued. Ignore error.
+                    metrics.removeFriendMetrics(taskFriendId);
+                } catch (Utils.ApplicationError e) {
+                    Log.addEntry(LOG_TAG, "failed to push to friend");
+                    friendMetrics.mPushFailures.increment();
+                    metrics.getCounter(Metrics.ENGINE_PUSH_FAILURES).increment();
+                }
+            }
+        };
+    }
+
+    private static void trackFriendRtt(Metrics.FriendMetrics friendMetrics, Data.Self self, Data.Friend friend) {
+        // Exposes the friend's timeout estimates in diagnostics
+        String selfCertificate = self.mPublicIdentity.mX509Certificate;
+        String friendCertificate = friend.mPublicIdentity.mX509Certificate;
+        friendMetrics.mConnectRtt = WebClient.getConnectRttEstimator(selfCertificate, friendCertificate);
+        friendMetrics.mResponseRtt = WebClient.getResponseRttEstimator(selfCertificate, friendCertificate);
+    }
+
+    private void completePull(
+            Persona persona,
+            String friendId,
+            WebClient.ConditionalResponse<Data.Status> response,
+            ScheduledExecutorService taskThreadPool) throws Utils.ApplicationError {
+        // Applies the result of a pull or exchange request. Called from worker threads.
+        Metrics metrics = Metrics.getInstance();
+        Data data = persona.mData;
+        if (response.mNotModified) {
+            // Status unchanged since the last pull: no status or friends file write, and no
+            // update event
+            metrics.getCounter(Metrics.ENGINE_PULLS_NOT_MODIFIED).increment();
+            data.updateFriendLastReceivedStatusTimestampLazily(friendId);
+        } else if (response.mBody == null) {
+            // Exchanges answered with no content aren't completed as pulls; see makeExchangeTask
+            throw new Utils.ApplicationError(LOG_TAG, "no status in response");
+        } else {
+            metrics.getCounter(Metrics.ENGINE_PULLS_MODIFIED).increment();
+            data.updateFriendStatus(friendId, response.mBody);
+            if (response.mEntityTag != null) {
+                persona.mFriendStatusEntityTags.put(friendId, response.mEntityTag);
+            } else {
+                persona.mFriendStatusEntityTags.remove(friendId);
+            }
+            data.updateFriendLastReceivedStatusTimestamp(friendId);
+        }
+        if (persona.mWakeWindowScheduler != null) {
+            persona.mWakeWindowScheduler.markReceived(friendId);
+        }
+        metrics.getFriendMetrics(friendId).mPullSuccesses.increment();
+        metrics.getCounter(Metrics.ENGINE_PULL_SUCCESSES).increment();
+        completeFirstPull(taskThreadPool);
+    }
+
+    private Runnable makePullTask(Persona persona, String friendId) {
+        final Persona taskPersona = persona;
+        final Data data = persona.mData;
+        final String finalFriendId = friendId;
+        final WakeWindowScheduler wakeWindowScheduler = persona.mWakeWindowScheduler;
+        final Map<String, String> friendStatusEntityTags = persona.mFriendStatusEntityTags;
+        final ScheduledExecutorService taskThreadPool = mTaskThreadPool;
+        return new Runnable() {
+            public void run() {
+                Metrics metrics = Metrics.getInstance();
+                Metrics.FriendMetrics friendMetrics = metrics.getFriendMetrics(finalFriendId);
+                // A non-blocking pull completes in its response listener
+                boolean isPending = false;
+                try {
+                    if (!isTorCircuitEstablished()) {
+                        return;
+                    }
+                    Data.Self self = data.getSelf();
+                    Data.Friend friend = data.getFriendById(finalFriendId);
+                    trackFriendRtt(friendMetrics, self, friend);
+                    Log.addEntry(LOG_TAG, "make pull status request to: " + friend.mPublicIdentity.mNickname);
+                    long requestStartTime = Clock.getInstance().currentTimeMillis();
+                    X509.KeyMaterial keyMaterial =
+                            new X509.KeyMaterial(self.mPublicIdentity.mX509Certificate, self.mPrivateIdentity.mX509PrivateKey);
+                    WebClient.JsonResponseHandler<Data.Status> responseHandler =
+                            new WebClient.JsonResponseHandler<Data.Status>(
+                                    Data.Status.class, Protocol.MAX_RESPONSE_BODY_BYTES);
+                    // Checked on each pull, as the friend may have been switched to the blocking
+                    // client since this periodic task was made
+                    if (isNonBlockingPull(taskPersona, finalFriendId)) {
+                        NioWebClient.ResponseFuture<Data.Status> future = NioWebClient.makeConditionalGetRequest(
+                                keyMaterial,
                                 friend.mPublicIdentity.mX509Certificate,
                                 getTorSocksProxyPort(),
                                 friend.mPublicIdentity.mHiddenServiceHostname,
                                 Protocol.WEB_SERVER_VIRTUAL_PORT,
-                                Protocol.PUSH_STATUS_REQUEST_PATH,
-                                Json.toJson(selfStatus));
-                        data.updateFriendLastSentStatusTimestamp(taskFriendId);
-                    } catch (Data.DataNotFoundError e) {
-                        // Friend was deleted while push was enqueued. Ignore error.
-                    } catch (Utils.ApplicationError e) {
-                        Log.addEntry(LOG_TAG, "failed to push to friend");
+                                Protocol.PULL_STATUS_REQUEST_PATH,
+                                friendStatusEntityTags.get(finalFriendId),
+                                responseHandler);
+                        future.addListener(
+                                makeNonBlockingPullListener(taskPersona, finalFriendId, future, requestStartTime, taskThreadPool),
+                                taskThreadPool);
+                        isPending = true;
+                        return;
+                    }
+                    WebClient.ConditionalResponse<Data.Status> response = WebClient.makeConditionalGetRequest(
+                            keyMaterial,
+                            friend.mPublicIdentity.mX509Certificate,
+                            getTorSocksProxyPort(),
+                            friend.mPublicIdentity.mHiddenServiceHostname,
+                            Protocol.WEB_SERVER_VIRTUAL_PORT,
+                            Protocol.PULL_STATUS_REQUEST_PATH,
+                            friendStatusEntityTags.get(finalFriendId),
+                            responseHandler);
+                    friendMetrics.mRequestLatencyMilliseconds.record(Clock.getInstance().currentTimeMillis() - requestStartTime);
+                    completePull(taskPersona, finalFriendId, response, taskThreadPool);
+                } catch (Data.DataNotFoundError e) {
+                    // Friend was deleted while pull was enqueued. Ignore error.
+                    // RemovedFriend should eventually cancel schedule.
+                    metrics.removeFriendMetrics(finalFriendId);
+                } catch (Utils.ApplicationError e) {
+                    Log.addEntry(LOG_TAG, "failed to pull from friend");
+                    friendMetrics.mPullFailures.increment();
+                    metrics.getCounter(Metrics.ENGINE_PULL_FAILURES).increment();
+                } finally {
+                    if (!isPending) {
+                        endPull(taskPersona, finalFriendId, taskThreadPool);
                     }
                 }
-            };
-            submitTask(task);
+            }
+        };
+    }
+
+    private boolean isNonBlockingPull(Persona persona, String friendId) {
+        return mNonBlockingFriendPulls && !persona.mFriendsWithoutNonBlockingPull.contains(friendId);
+    }
+
+    private Runnable makeNonBlockingPullListener(
+            final Persona taskPersona,
+            final String taskFriendId,
+            final NioWebClient.ResponseFuture<Data.Status> future,
+            final long requestStartTime,
+            final ScheduledExecutorService taskThreadPool) {
+        // Runs in the worker pool once the non-blocking pull request completes; the response
+        // body is decoded here, not on the client's selector thread
+        return new Runnable() {
+            public void run() {
+                Metrics metrics = Metrics.getInstance();
+                Metrics.FriendMetrics friendMetrics = metrics.getFriendMetrics(taskFriendId);
+                boolean isRetrying = false;
+                try {
+                    WebClient.ConditionalResponse<Data.Status> response = future.getResponse();
+                    friendMetrics.mRequestLatencyMilliseconds.record(Clock.getInstance().currentTimeMillis() - requestStartTime);
+                    completePull(taskPersona, taskFriendId, response, taskThreadPool);
+                } catch (NioWebClient.ProtocolError e) {
+                    // The friend's web server sent a response the non-blocking client doesn't
+                    // handle; pull from this friend with the blocking client from now on
+                    taskPersona.mFriendsWithoutNonBlockingPull.add(taskFriendId);
+                    submitTask(makePullTask(taskPersona, taskFriendId));
+                    isRetrying = true;
+                } catch (Data.DataNotFoundError e) {
+                    // Friend was deleted while pull was in progress. Ignore error.
+                    metrics.removeFriendMetrics(taskFriendId);
+                } catch (Utils.ApplicationError e) {
+                    Log.addEntry(LOG_TAG, "failed to pull from friend");
+                    friendMetrics.mPullFailures.increment();
+                    metrics.getCounter(Metrics.ENGINE_PULL_FAILURES).increment();
+                } finally {
+                    if (!isRetrying) {
+                        endPull(taskPersona, taskFriendId, taskThreadPool);
+                    }
+                }
+            }
+        };
+    }
+
+    private void endPull(Persona persona, String friendId, ScheduledExecutorService taskThreadPool) {
+        if (persona.mWakeWindowScheduler != null) {
+            persona.mWakeWindowScheduler.endPull(friendId);
+        } else {
+            schedulePrewarmBeforeNextPull(persona, friendId, taskThreadPool);
         }
     }
 
-    private void cancelPullFriend(String friendId) {
-        // Cancel any existing pull schedule for this friend
-        if (mFriendPullTasks.containsKey(friendId)) {
-            mFriendPullTasks.get(friendId).cancel(false);
+    private synchronized void schedulePrewarmBeforeNextPull(
+            Persona persona, String friendId, ScheduledExecutorService taskThreadPool) {
+        // Per-friend mode: the next pull runs one pull period after this one completes
+        if (taskThreadPool != mTaskThreadPool) {
+            return;
         }
+        mTaskThreadPool.schedule(
+                makePrewarmTask(persona, friendId),
+                Math.max(0, persona.mPullPeriodMilliseconds - PREWARM_LEAD_MILLISECONDS),
+                TimeUnit.MILLISECONDS);
     }
-    
-    private void schedulePullFriend(String friendId, boolean immediateInitialPull) throws Utils.ApplicationError {
-        final String finalFriendId = friendId;
+
+    private synchronized void schedulePrewarmBeforeNextWakeWindow(Persona persona) {
+        // Alignment mode: friends due in the next window are determined at prewarm time, after
+        // this window's pulls have completed
+        final Persona taskPersona = persona;
+        final ScheduledExecutorService taskThreadPool = mTaskThreadPool;
         Runnable task = new Runnable() {
             public void run() {
+                if (taskThreadPool != mTaskThreadPool) {
+                    return;
+                }
+                List<String> friendIds = taskPersona.mWakeWindowScheduler.getFriendIdsDueAt(
+                        Clock.getInstance().currentTimeMillis() + PREWARM_LEAD_MILLISECONDS);
+                // Each prewarm is its own task, so they open concurrently, up to the prewarm
+                // permits, instead of one after another
+                for (String friendId : friendIds) {
+                    submitTask(makePrewarmTask(taskPersona, friendId));
+                }
+            }
+        };
+        long period = persona.mWakeWindowScheduler.getPeriodMilliseconds();
+        mTaskThreadPool.schedule(task, Math.max(0, period - PREWARM_LEAD_MILLISECONDS), TimeUnit.MILLISECONDS);
+    }
+
+    private Runnable makePrewarmTask(Persona persona, String friendId) {
+        // Opens the Tor stream and TLS session to the friend ahead of a scheduled pull, so the
+        // pull finds an idle pooled connection; see WebClient.prewarmConnection
+        final Persona taskPersona = persona;
+        final Data data = persona.mData;
+        final String taskFriendId = friendId;
+        final Semaphore prewarmPermits = mPrewarmPermits;
+        return new Runnable() {
+            public void run() {
+                if (isNonBlockingPull(taskPersona, taskFriendId)) {
+                    // Non-blocking pulls don't use pooled connections; see NioWebClient
+                    return;
+                }
+                if (!prewarmPermits.tryAcquire()) {
+                    // Over budget: the pull will open its own connection
+                    Metrics.getInstance().getCounter(Metrics.ENGINE_PREWARMS_SKIPPED).increment();
+                    return;
+                }
                 try {
-                    if (!mTorWrapper.isCircuitEstablished()) {
+                    if (!isTorCircuitEstablished()) {
                         return;
                     }
-                    Data data = Data.getInstance();
                     Data.Self self = data.getSelf();
-                    Data.Friend friend = data.getFriendById(finalFriendId);
-                    Log.addEntry(LOG_TAG, "make pull status request to: " + friend.mPublicIdentity.mNickname);
-                    String response = WebClient.makeGetRequest(
+                    Data.Friend friend = data.getFriendById(taskFriendId);
+                    WebClient.prewarmConnection(
                             new X509.KeyMaterial(self.mPublicIdentity.mX509Certificate, self.mPrivateIdentity.mX509PrivateKey),
                             friend.mPublicIdentity.mX509Certificate,
                             getTorSocksProxyPort(),
                             friend.mPublicIdentity.mHiddenServiceHostname,
-                            Protocol.WEB_SERVER_VIRTUAL_PORT,
-                            Protocol.PULL_STATUS_REQUEST_PATH);
-                    Data.Status friendStatus = Json.fromJson(response, Data.Status.class);
-                    data.updateFriendStatus(finalFriendId, friendStatus);
-                    data.updateFriendLastReceivedStatusTimestamp(finalFriendId);
+                            Protocol.WEB_SERVER_VIRTUAL_PORT);
                 } catch (Data.DataNotFoundError e) {
-                    // Friend was deleted while pull was enqueued. Ignore error.
-                    // RemovedFriend should eventually cancel schedule.
+                    // Friend was deleted while prewarm was enqueued. Ignore error.
                 } catch (Utils.ApplicationError e) {
-                    Log.addEntry(LOG_TAG, "failed to pull from friend");
+                    Log.addEntry(LOG_TAG, "failed to prewarm connection to friend");
+                } finally {
+                    prewarmPermits.release();
+                }
+            }
+        };
+    }
+
+    private Runnable makeExchangeTask(Persona persona, String friendId) {
+        // Pushes self status and pulls the friend's status in one request, instead of separate
+        // push and pull requests, each with its own Tor stream and TLS connection
+        final Persona taskPersona = persona;
+        final Data data = persona.mData;
+        final String taskFriendId = friendId;
+        final ScheduledExecutorService taskThreadPool = mTaskThreadPool;
+        return new Runnable() {
+            public void run() {
+                Metrics metrics = Metrics.getInstance();
+                Metrics.FriendMetrics friendMetrics = metrics.getFriendMetrics(taskFriendId);
+                boolean pushed = false;
+                // The fallback pull ends the pull itself
+                boolean isFallingBack = false;
+                try {
+                    if (!isTorCircuitEstablished()) {
+                        return;
+                    }
+                    Data.Self self = data.getSelf();
+                    Data.Status selfStatus = data.getSelfStatus();
+                    Data.Friend friend = data.getFriendById(taskFriendId);
+                    trackFriendRtt(friendMetrics, self, friend);
+                    Log.addEntry(LOG_TAG, "make exchange status request to: " + friend.mPublicIdentity.mNickname);
+                    long requestStartTime = Clock.getInstance().currentTimeMillis();
+                    WebClient.ConditionalResponse<Data.Status> response;
+                    try {
+                        response = WebClient.makeConditionalPostRequest(
+                                new X509.KeyMaterial(self.mPublicIdentity.mX509Certificate, self.mPrivateIdentity.mX509PrivateKey),
+                                friend.mPublicIdentity.mX509Certificate,
+                                getTorSocksProxyPort(),
+                                friend.mPublicIdentity.mHiddenServiceHostname,
+                                Protocol.WEB_SERVER_VIRTUAL_PORT,
+                                Protocol.EXCHANGE_STATUS_REQUEST_PATH,
+                                Json.toJson(selfStatus),
+                                taskPersona.mFriendStatusEntityTags.get(taskFriendId),
+                                new WebClient.JsonResponseHandler<Data.Status>(
+                                        Data.Status.class, Protocol.MAX_RESPONSE_BODY_BYTES));
+                    } catch (WebClient.HttpStatusError e) {
+                        // Older web servers answer an unknown request with 403; newer ones
+                        // with 404. Since 403 is also a transient rejection, fall back to a
+                        // separate push and pull for a while, then try the exchange again.
+                        if (!e.isRequestRejected()) {
+                            throw e;
+                        }
+                        taskPersona.mFriendExchangeRetryTimes.put(
+                                taskFriendId,
+                                Clock.getInstance().currentTimeMillis() + EXCHANGE_RETRY_MILLISECONDS);
+                        submitTask(makePushTask(taskPersona, taskFriendId));
+                        submitTask(makePullTask(taskPersona, taskFriendId));
+                        isFallingBack = true;
+                        return;
+                    }
+                    friendMetrics.mRequestLatencyMilliseconds.record(Clock.getInstance().currentTimeMillis() - requestStartTime);
+                    metrics.getCounter(Metrics.ENGINE_EXCHANGES).increment();
+                    friendMetrics.mPushSuccesses.increment();
+                    metrics.getCounter(Metrics.ENGINE_PUSH_SUCCESSES).increment();
+                    data.updateFriendLastSentStatusTimestamp(taskFriendId);
+                    pushed = true;
+                    if (response.mBody == null && !response.mNotModified) {
+                        // Answered with no content: the friend accepted the pushed status but
+                        // isn't sharing. As when the friend refuses a pull, nothing was received.
+                        return;
+                    }
+                    completePull(taskPersona, taskFriendId, response, taskThreadPool);
+                } catch (Data.DataNotFoundError e) {
+                    // Friend was deleted while exchange was enqueued. Ignore error.
+                    metrics.removeFriendMetrics(taskFriendId);
+                } catch (Utils.ApplicationError e) {
+                    Log.addEntry(LOG_TAG, "failed to exchange with friend");
+                    if (!pushed) {
+                        friendMetrics.mPushFailures.increment();
+                        metrics.getCounter(Metrics.ENGINE_PUSH_FAILURES).increment();
+                    }
+                    friendMetrics.mPullFailures.increment();
+                    metrics.getCounter(Metrics.ENGINE_PULL_FAILURES).increment();
+                } finally {
+                    if (!isFallingBack && taskPersona.mWakeWindowScheduler != null) {
+                        taskPersona.mWakeWindowScheduler.endPull(taskFriendId);
+                    }
                 }
             }
         };
-        cancelPullFriend(friendId);
-        // TODO: scheduleAtFixedRate has backlog issue
-        
-        int delay = getIntPreference(R.string.preferenceLocationPullFrequencyInMinutes)*60*1000;
-        ScheduledFuture<?> future = mTaskThreadPool.scheduleWithFixedDelay(
-                task, immediateInitialPull ? 0 : delay, delay, TimeUnit.MILLISECONDS);
-        mFriendPullTasks.put(friendId, future);
     }
 
     private void schedulePullFriends() throws Utils.ApplicationError {
-        for (Data.Friend friend : Data.getInstance().getFriends()) {
-            schedulePullFriend(friend.mId, true);
+        long wakeWindowPeriodMilliseconds = Long.MAX_VALUE;
+        for (Persona persona : mPersonas) {
+            List<String> friendIds = new ArrayList<String>();
+            for (Data.Friend friend : persona.mData.getFriends()) {
+                friendIds.add(friend.mId);
+            }
+            persona.mPullSchedule.setFriends(friendIds);
+            if (persona.mPullSchedule.isAligned()) {
+                wakeWindowPeriodMilliseconds = Math.min(
+                        wakeWindowPeriodMilliseconds, persona.mWakeWindowScheduler.getPeriodMilliseconds());
+            }
+        }
+        if (wakeWindowPeriodMilliseconds != Long.MAX_VALUE && mWakeWindowTask == null) {
+            // All personas' due pulls and pushes run in the same, single wake window task, at the
+            // shortest persona pull period; each persona's scheduler picks its own due friends
+            Runnable task = new Runnable() {
+                public void run() {
+                    runWakeWindow();
+                }
+            };
+            mWakeWindowTask = PullSchedule.scheduleWakeWindows(mTaskThreadPool, wakeWindowPeriodMilliseconds, task);
         }
     }
-    
-    public synchronized Data.Status handlePullStatusRequest(String friendCertificate) throws Utils.ApplicationError {
+
+    private synchronized void runWakeWindow() {
+        // Runs all due pulls and pending pushes concurrently in the worker pool, sharing the
+        // one running Tor instance, so the device can sleep again until the next window
+        if (mPersonas == null || mTorWrapper == null || !mTorWrapper.isCircuitEstablished()) {
+            return;
+        }
+        for (Persona persona : mPersonas) {
+            if (persona.mWakeWindowScheduler == null) {
+                continue;
+            }
+            try {
+                WakeWindowScheduler.Window window = persona.mPullSchedule.runWakeWindow(currentlySharingLocation(persona));
+                logWakeWindow(persona, window);
+                schedulePrewarmBeforeNextWakeWindow(persona);
+            } catch (Utils.ApplicationError e) {
+                Log.addEntry(LOG_TAG, "failed to run wake window");
+            }
+        }
+    }
+
+    private void logWakeWindow(Persona persona, WakeWindowScheduler.Window window) throws Utils.ApplicationError {
+        StringBuilder freshness = new StringBuilder();
+        for (Data.Friend friend : persona.mData.getFriends()) {
+            long age = persona.mWakeWindowScheduler.getFreshnessMilliseconds(friend.mId);
+            if (freshness.length() > 0) freshness.append(", ");
+            freshness.append(friend.mPublicIdentity.mNickname);
+            freshness.append(age < 0 ? " never" : String.format(" %ds", age/1000));
+        }
+        Log.addEntry(
+                LOG_TAG,
+                String.format(
+                        "wake window [%s]: %d pulls, %d pushes, %d wakeups/hour; freshness: %s",
+                        persona.mName,
+                        window.mPullFriendIds.size(),
+                        window.mPushFriendIds.size(),
+                        persona.mWakeWindowScheduler.getWakeupsPerHour(),
+                        freshness.toString()));
+    }
+
+    private EncodedStatus getEncodedSelfStatus(Persona persona) throws Utils.ApplicationError {
+        // Data replaces its self status object on each change, so a changed status is detected
+        // by identity, even when a pull arrives before the UpdatedSelfStatus event is handled
+        Data.Status status = persona.mData.getSelfStatus();
+        if (persona.mEncodedSelfStatus == null || persona.mEncodedSelfStatus.mStatus != status) {
+            persona.mSelfStatusVersion++;
+            persona.mEncodedSelfStatus = EncodedStatus.encode(status, persona.mSelfStatusVersion);
+        }
+        return persona.mEncodedSelfStatus;
+    }
+
+    private synchronized EncodedStatus handlePullStatusRequest(Persona persona, String friendCertificateFingerprint) throws Utils.ApplicationError {
         // Friend is requesting (pulling) self status
-        if (!currentlySharingLocation()) {
+        if (!currentlySharingLocation(persona)) {
             return null;
         }
         // TODO: cancel any pending push to this friend?
-        Data data = Data.getInstance();
-        Data.Friend friend = data.getFriendByCertificate(friendCertificate);
-        Data.Status status = data.getSelfStatus();
+        Data data = persona.mData;
+        Data.Friend friend = data.getFriendByCertificateFingerprint(friendCertificateFingerprint);
+        EncodedStatus status = getEncodedSelfStatus(persona);
         // TODO: we don't yet know the friend really received the response bytes
         data.updateFriendLastSentStatusTimestamp(friend.mId);
         Log.addEntry(LOG_TAG, "served pull status request for: " + friend.mPublicIdentity.mNickname);
         return status;        
     }
     
-    public synchronized void handlePushStatusRequest(String friendCertificate, Data.Status status) throws Utils.ApplicationError  {
+    private synchronized void handlePushStatusRequest(Persona persona, String friendCertificateFingerprint, Data.Status status) throws Utils.ApplicationError  {
         // Friend is pushing their own status
-        Data data = Data.getInstance();
-        Data.Friend friend = data.getFriendByCertificate(friendCertificate);
+        Data data = persona.mData;
+        Data.Friend friend = data.getFriendByCertificateFingerprint(friendCertificateFingerprint);
         data.updateFriendStatus(friend.mId, status);
         // TODO: we don't yet know the friend really received the response bytes
         data.updateFriendLastReceivedStatusTimestamp(friend.mId);
         // Reschedule (delay) any outstanding pull from this friend
-        schedulePullFriend(friend.mId, false);
+        persona.mPullSchedule.schedulePull(friend.mId, false);
         Log.addEntry(LOG_TAG, "served push status request for: " + friend.mPublicIdentity.mNickname);
     }
     
+    private synchronized EncodedStatus handleExchangeStatusRequest(Persona persona, String friendCertificateFingerprint, Data.Status status) throws Utils.ApplicationError {
+        // Friend is pushing their own status and pulling self status in one request
+        handlePushStatusRequest(persona, friendCertificateFingerprint, status);
+        return handlePullStatusRequest(persona, friendCertificateFingerprint);
+    }
+
     public synchronized Context getContext() {
         return mContext;
     }
     
+    private SharedPreferences getPersonaSharedPreferences(String personaName) {
+        // Each persona has its own sharing and pull preferences: the default persona uses the
+        // default preferences, which the settings screen edits; others use a named instance,
+        // initialized with the same defaults
+        if (personaName.equals(Data.DEFAULT_PERSONA)) {
+            return mSharedPreferences;
+        }
+        String sharedPreferencesName = String.format(PERSONA_PREFERENCES_NAME_FORMAT_STRING, personaName);
+        PreferenceManager.setDefaultValues(
+                mContext, sharedPreferencesName, Context.MODE_PRIVATE, R.xml.preferences, false);
+        return mContext.getSharedPreferences(sharedPreferencesName, Context.MODE_PRIVATE);
+    }
+
     public synchronized boolean getBooleanPreference(int keyResID) throws Utils.ApplicationError {
+        return getBooleanPreference(mSharedPreferences, keyResID);
+    }
+    
+    public synchronized int getIntPreference(int keyResID) throws Utils.ApplicationError {
+        return getIntPreference(mSharedPreferences, keyResID);
+    }
+
+    private boolean getBooleanPreference(SharedPreferences sharedPreferences, int keyResID) throws Utils.ApplicationError {
         String key = mContext.getString(keyResID);
         // Defaults which are "false" are not present in the preferences file
-        // if (!mSharedPreferences.contains(key)) {...}
+        // if (!sharedPreferences.contains(key)) {...}
         // TODO: this is ambiguous: there's now no test for failure to initialize defaults
-        return mSharedPreferences.getBoolean(key, false);        
+        return sharedPreferences.getBoolean(key, false);        
     }
-    
-    public synchronized int getIntPreference(int keyResID) throws Utils.ApplicationError {
+
+    private int getIntPreference(SharedPreferences sharedPreferences, int keyResID) throws Utils.ApplicationError {
         String key = mContext.getString(keyResID);
-        if (!mSharedPreferences.contains(key)) {
+        if (!sharedPreferences.contains(key)) {
             throw new Utils.ApplicationError(LOG_TAG, "missing preference default: " + key);
         }
-        return mSharedPreferences.getInt(key, 0);        
+        return sharedPreferences.getInt(key, 0);        
     }
 
-    public synchronized boolean currentlySharingLocation() throws Utils.ApplicationError {
-        if (!getBooleanPreference(R.string.preferenceAutomaticLocationSharing)) {
+    private synchronized boolean currentlySharingLocation(Persona persona) throws Utils.ApplicationError {
+        SharedPreferences sharedPreferences = persona.mSharedPreferences;
+        if (!getBooleanPreference(sharedPreferences, R.string.preferenceAutomaticLocationSharing)) {
             return false;
         }
         
-        Calendar now = Calendar.getInstance();
+        Calendar now = Clock.getInstance().getCalendar();
         
-        if (getBooleanPreference(R.string.preferenceLimitLocationSharingTime)) {
+        if (getBooleanPreference(sharedPreferences, R.string.preferenceLimitLocationSharingTime)) {
             int currentHour = now.get(Calendar.HOUR_OF_DAY);
             int currentMinute = now.get(Calendar.MINUTE);
             
-            String sharingTimeNotBefore = mSharedPreferences.getString(
+            String sharingTimeNotBefore = sharedPreferences.getString(
                     mContext.getString(R.string.preferenceLimitLocationSharingTimeNotBefore), "");
             int notBeforeHour = TimePickerPreference.getHour(sharingTimeNotBefore);
             int notBeforeMinute = TimePickerPreference.getMinute(sharingTimeNotBefore);
-            String sharingTimeNotAfter = mSharedPreferences.getString(
+            String sharingTimeNotAfter = sharedPreferences.getString(
                     mContext.getString(R.string.preferenceLimitLocationSharingTimeNotAfter), "");
             int notAfterHour = TimePickerPreference.getHour(sharingTimeNotAfter);
             int notAfterMinute = TimePickerPreference.getMinute(sharingTimeNotAfter);
@@ -486,7 +1233,7 @@ public class Engine implements OnSharedPreferenceChangeListener, WebServer.Reque
         String[] weekdays = mContext.getResources().getStringArray(R.array.weekdays);
         String currentWeekday = weekdays[now.get(Calendar.DAY_OF_WEEK) - 1];
 
-        Set<String> sharingDays = mSharedPreferences.getStringSet(
+        Set<String> sharingDays = sharedPreferences.getStringSet(
                 mContext.getString(R.string.preferenceLimitLocationSharingDay),
                 new HashSet<String>());
     
@@ -99,8 +99,10 @@ public class Events {
     }
 
     public static class UpdatedSelfStatus {
+        public final String mPersona;
 
-        public UpdatedSelfStatus() {
+        public UpdatedSelfStatus(String persona) {
+            mPersona = persona;
         }
     }
 
@@ -137,9 +139,13 @@ public class Events {
 
     public static class RemovedFriend  {
         public final String mId;
+        public final String mSelfX509Certificate;
+        public final String mX509Certificate;
 
-        public RemovedFriend(String id) {
+        public RemovedFriend(String id, String selfX509Certificate, String x509Certificate) {
             mId = id;
+            mSelfX509Certificate = selfX509Certificate;
+            mX509Certificate = x509Certificate;
         }
     }
 
@@ -149,4 +155,19 @@ public class Events {
 
     public static class DisplayedFriends {
     }
+
+    public static class EngineStartupProgress {
+        public final Engine.StartupStage mStage;
+        public final long mStageMilliseconds;
+        public final long mElapsedMilliseconds;
+
+        public EngineStartupProgress(
+                Engine.StartupStage stage,
+                long stageMilliseconds,
+                long elapsedMilliseconds) {
+            mStage = stage;
+            mStageMilliseconds = stageMilliseconds;
+            mElapsedMilliseconds = elapsedMilliseconds;
+        }
+    }
 }
@@ -19,7 +19,6 @@
 
 package ca.psiphon.ploggy;
 
-import java.util.Date;
 
 import com.squareup.otto.Subscribe;
 
@@ -217,7 +216,7 @@ public class FragmentSelfStatusDetails extends Fragment implements View.OnClickL
                 String messageContent = mNewMessageContentEdit.getText().toString();
                 if (messageContent.length() > 0) {
                     Data.getInstance().addSelfStatusMessage(
-                            new Data.Message(new Date(), messageContent));
+                            new Data.Message(Clock.getInstance().now(), messageContent));
     
                     mNewMessageContentEdit.getEditableText().clear();
                     Utils.hideKeyboard(getActivity());
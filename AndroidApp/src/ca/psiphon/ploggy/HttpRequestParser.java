@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Incremental, byte-level HTTP request header parser, for both web server modes.
+ *
+ * The caller reads into its own buffer, which it keeps across requests, and calls parse with
+ * the buffer's length after each read. Lines are parsed as they complete, so earlier bytes are
+ * never rescanned. Only the URI and the headers named on construction are decoded to strings;
+ * other headers are skipped in place. Header names are stored as the given lower case names,
+ * as NanoHTTPD stores them.
+ *
+ * One request at a time: once parse returns the header length, the parser holds that
+ * request's values until reset.
+ */
+public class HttpRequestParser {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final NanoHTTPD.Method[] METHODS = NanoHTTPD.Method.values();
+    private static final byte[][] METHOD_NAMES = new byte[METHODS.length][];
+    static {
+        for (int i = 0; i < METHODS.length; i++) {
+            METHOD_NAMES[i] = METHODS[i].name().toLowerCase(Locale.US).getBytes(ISO_8859_1);
+        }
+    }
+    private static final byte[] HTTP_1_1 = "http/1.1".getBytes(ISO_8859_1);
+
+    private final String[] mHeaderNames;
+    private final byte[][] mHeaderNameBytes;
+    private final int mMaxHeaderBytes;
+    private final HashMap<String, String> mHeaders;
+    private int mLineStart;
+    private int mScanOffset;
+    private int mHeaderLength;
+    private NanoHTTPD.Method mMethod;
+    private String mUri;
+    private boolean mIsHttp11;
+
+    public HttpRequestParser(String[] headerNames, int maxHeaderBytes) {
+        // headerNames are lower case; when null, all headers are decoded
+        mHeaderNames = headerNames;
+        if (headerNames != null) {
+            mHeaderNameBytes = new byte[headerNames.length][];
+            for (int i = 0; i < headerNames.length; i++) {
+                mHeaderNameBytes[i] = headerNames[i].getBytes(ISO_8859_1);
+            }
+        } else {
+            mHeaderNameBytes = null;
+        }
+        mMaxHeaderBytes = maxHeaderBytes;
+        mHeaders = new HashMap<String, String>();
+        reset();
+    }
+
+    public void reset() {
+        // The next request starts at the beginning of the caller's buffer
+        mLineStart = 0;
+        mScanOffset = 0;
+        mHeaderLength = 0;
+        mMethod = null;
+        mUri = null;
+        mIsHttp11 = false;
+        mHeaders.clear();
+    }
+
+    public int parse(byte[] buffer, int length) throws IOException {
+        // Returns the header length, including the terminating blank line, once the header is
+        // complete; otherwise 0
+        if (mHeaderLength > 0) {
+            return mHeaderLength;
+        }
+        for (; mScanOffset < length; mScanOffset++) {
+            if (buffer[mScanOffset] != '\n') {
+                continue;
+            }
+            int lineEnd = mScanOffset;
+            if (lineEnd > mLineStart && buffer[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            int nextLineStart = mScanOffset + 1;
+            if (mMethod == null) {
+                // Blank lines before the request line are ignored, per RFC 2616 4.1
+                if (lineEnd > mLineStart) {
+                    parseRequestLine(buffer, mLineStart, lineEnd);
+                }
+            } else if (lineEnd == mLineStart) {
+                mScanOffset = nextLineStart;
+                mHeaderLength = nextLineStart;
+                return mHeaderLength;
+            } else {
+                parseHeaderLine(buffer, mLineStart, lineEnd);
+            }
+            mLineStart = nextLineStart;
+        }
+        if (length > mMaxHeaderBytes) {
+            throw new IOException("request header exceeds maximum size");
+        }
+        return 0;
+    }
+
+    public NanoHTTPD.Method getMethod() {
+        return mMethod;
+    }
+
+    public String getUri() {
+        // As sent, including any query
+        return mUri;
+    }
+
+    public boolean isHttp11() {
+        return mIsHttp11;
+    }
+
+    public Map<String, String> getHeaders() {
+        // Reused for the next request, after reset
+        return mHeaders;
+    }
+
+    private void parseRequestLine(byte[] buffer, int start, int end) throws IOException {
+        int methodEnd = indexOf(buffer, start, end, (byte)' ');
+        if (methodEnd < 0) {
+            throw new IOException("invalid request line");
+        }
+        int uriStart = methodEnd + 1;
+        int uriEnd = indexOf(buffer, uriStart, end, (byte)' ');
+        if (uriEnd < 0) {
+            // HTTP/0.9 style, without a version
+            uriEnd = end;
+        } else {
+            mIsHttp11 = regionMatches(buffer, uriEnd + 1, end, HTTP_1_1);
+        }
+        if (uriEnd == uriStart) {
+            throw new IOException("invalid request line");
+        }
+        for (int i = 0; i < METHODS.length; i++) {
+            if (regionMatches(buffer, start, methodEnd, METHOD_NAMES[i])) {
+                mMethod = METHODS[i];
+                break;
+            }
+        }
+        if (mMethod == null) {
+            throw new IOException("unsupported request method");
+        }
+        mUri = new String(buffer, uriStart, uriEnd - uriStart, ISO_8859_1);
+    }
+
+    private void parseHeaderLine(byte[] buffer, int start, int end) {
+        // Lines without a separator are ignored, as NanoHTTPD does
+        int separator = indexOf(buffer, start, end, (byte)':');
+        if (separator <= start) {
+            return;
+        }
+        int nameEnd = separator;
+        while (nameEnd > start && isWhitespace(buffer[nameEnd - 1])) {
+            nameEnd--;
+        }
+        String name = null;
+        if (mHeaderNames == null) {
+            name = new String(buffer, start, nameEnd - start, ISO_8859_1).toLowerCase(Locale.US);
+        } else {
+            for (int i = 0; i < mHeaderNames.length; i++) {
+                if (regionMatches(buffer, start, nameEnd, mHeaderNameBytes[i])) {
+                    name = mHeaderNames[i];
+                    break;
+                }
+            }
+            if (name == null) {
+                return;
+            }
+        }
+        int valueStart = separator + 1;
+        int valueEnd = end;
+        while (valueStart < valueEnd && isWhitespace(buffer[valueStart])) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && isWhitespace(buffer[valueEnd - 1])) {
+            valueEnd--;
+        }
+        mHeaders.put(name, new String(buffer, valueStart, valueEnd - valueStart, ISO_8859_1));
+    }
+
+    private static int indexOf(byte[] buffer, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(byte[] buffer, int start, int end, byte[] lowerCaseValue) {
+        // ASCII case insensitive
+        if (end - start != lowerCaseValue.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCaseValue.length; i++) {
+            byte value = buffer[start + i];
+            if (value >= 'A' && value <= 'Z') {
+                value += 'a' - 'A';
+            }
+            if (value != lowerCaseValue[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(byte value) {
+        return value == ' ' || value == '\t';
+    }
+}
@@ -19,11 +19,15 @@
 
 package ca.psiphon.ploggy;
 
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 
 import com.google.gson.FieldNamingStrategy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
 
 /**
@@ -55,6 +59,19 @@ public class Json {
         }
     }
 
+    public static <T> T fromJson(InputStream inputStream, Class<T> type) throws Utils.ApplicationError {
+        // Decodes directly from the stream, without first reading it into a string
+        try {
+            return mSerializer.fromJson(new InputStreamReader(inputStream, "UTF-8"), type);
+        } catch (UnsupportedEncodingException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } catch (JsonSyntaxException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } catch (JsonIOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
     // TODO: remove this function if not used
     /*
     public static <T> ArrayList<T> fromJsonStream(InputStream inputStream, Class<T> type) throws Utils.ApplicationError {
@@ -45,7 +45,7 @@ public class Log {
         public final String mMessage;
 
         public Entry(String tag, String message) {
-            mTimestamp = new Date();
+            mTimestamp = Clock.getInstance().now();
             mTag = tag;
             mMessage = message;
         }
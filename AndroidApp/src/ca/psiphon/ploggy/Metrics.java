@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process registry of engine counters, gauges and histograms.
+ *
+ * Metrics are created on first use and are then looked up by name constant (or friend id)
+ * without allocating, so recording is cheap enough for request and write paths. Histograms
+ * use fixed buckets. getSnapshotJson() captures all current values for the diagnostics
+ * screen and for tests.
+ */
+public class Metrics {
+
+    // Engine
+    public static final String ENGINE_PUSH_SUCCESSES = "engine.push_successes";
+    public static final String ENGINE_PUSH_FAILURES = "engine.push_failures";
+    public static final String ENGINE_PULL_SUCCESSES = "engine.pull_successes";
+    public static final String ENGINE_PULL_FAILURES = "engine.pull_failures";
+    public static final String ENGINE_PULLS_NOT_MODIFIED = "engine.pulls_not_modified";
+    public static final String ENGINE_PULLS_MODIFIED = "engine.pulls_modified";
+    public static final String ENGINE_EXCHANGES = "engine.exchanges";
+    public static final String ENGINE_PREWARMS_SKIPPED = "engine.prewarms_skipped";
+    public static final String ENGINE_TASK_QUEUE_DEPTH = "engine.task_queue_depth";
+    public static final String ENGINE_ACTIVE_TASKS = "engine.active_tasks";
+    public static final String ENGINE_TIME_TO_FIRST_PULL_MILLISECONDS = "engine.time_to_first_pull_ms";
+    public static final String ENGINE_SELF_STATUS_ENCODINGS = "engine.self_status_encodings";
+
+    // Web client and server
+    public static final String WEB_CLIENT_REQUEST_LATENCY_MILLISECONDS = "web_client.request_latency_ms";
+    public static final String WEB_CLIENT_WARM_REQUEST_LATENCY_MILLISECONDS = "web_client.warm_request_latency_ms";
+    public static final String WEB_CLIENT_COLD_REQUEST_LATENCY_MILLISECONDS = "web_client.cold_request_latency_ms";
+    public static final String WEB_CLIENT_REQUEST_FAILURES = "web_client.request_failures";
+    public static final String WEB_CLIENT_PREWARMED_CONNECTIONS = "web_client.prewarmed_connections";
+    public static final String WEB_CLIENT_PREWARM_LATENCY_MILLISECONDS = "web_client.prewarm_latency_ms";
+    public static final String WEB_CLIENT_PREWARM_FAILURES = "web_client.prewarm_failures";
+    public static final String WEB_CLIENT_HEDGED_CONNECTS = "web_client.hedged_connects";
+    public static final String WEB_CLIENT_HEDGES_SKIPPED = "web_client.hedges_skipped";
+    public static final String WEB_CLIENT_HEDGE_WINS = "web_client.hedge_wins";
+    public static final String WEB_CLIENT_HEDGE_WIN_PERCENT = "web_client.hedge_win_percent";
+    public static final String WEB_CLIENT_BYTES_SENT = "web_client.bytes_sent";
+    public static final String WEB_CLIENT_BYTES_RECEIVED = "web_client.bytes_received";
+    public static final String WEB_CLIENT_NOT_MODIFIED_RESPONSES = "web_client.not_modified_responses";
+    public static final String WEB_CLIENT_MODIFIED_RESPONSES = "web_client.modified_responses";
+    public static final String NIO_CLIENT_REQUESTS = "nio_client.requests";
+    public static final String NIO_CLIENT_REQUEST_FAILURES = "nio_client.request_failures";
+    public static final String NIO_CLIENT_OPEN_CONNECTIONS = "nio_client.open_connections";
+    public static final String NIO_CLIENT_REQUEST_LATENCY_MILLISECONDS = "nio_client.request_latency_ms";
+    public static final String WEB_SERVER_REQUESTS = "web_server.requests";
+    public static final String WEB_SERVER_REQUEST_FAILURES = "web_server.request_failures";
+    public static final String WEB_SERVER_BYTES_SENT = "web_server.bytes_sent";
+    public static final String WEB_SERVER_BYTES_RECEIVED = "web_server.bytes_received";
+    public static final String WEB_SERVER_OPEN_CONNECTIONS = "web_server.open_connections";
+    public static final String WEB_SERVER_CONNECTIONS_ACCEPTED = "web_server.connections_accepted";
+    public static final String WEB_SERVER_CONNECTIONS_REJECTED = "web_server.connections_rejected";
+    public static final String WEB_SERVER_CONNECTIONS_REAPED = "web_server.connections_reaped";
+    public static final String WEB_SERVER_NOT_MODIFIED_RESPONSES = "web_server.not_modified_responses";
+
+    // Compression
+    public static final String COMPRESSION_UNCOMPRESSED_BYTES = "compression.uncompressed_bytes";
+    public static final String COMPRESSION_COMPRESSED_BYTES = "compression.compressed_bytes";
+    public static final String COMPRESSION_RATIO_PERCENT = "compression.ratio_percent";
+    public static final String COMPRESSION_TIME_MICROSECONDS = "compression.time_us";
+
+    // TLS
+    public static final String TLS_CLIENT_HANDSHAKES = "tls.client_handshakes";
+    public static final String TLS_CLIENT_RESUMED_HANDSHAKES = "tls.client_resumed_handshakes";
+    public static final String TLS_CLIENT_RESUMED_PERCENT = "tls.client_resumed_percent";
+    public static final String TLS_FULL_HANDSHAKE_MILLISECONDS = "tls.full_handshake_ms";
+    public static final String TLS_RESUMED_HANDSHAKE_MILLISECONDS = "tls.resumed_handshake_ms";
+    public static final String TLS_RESUMPTION_SAVED_MILLISECONDS = "tls.resumption_saved_ms";
+
+    // Data and Tor
+    public static final String DATA_WRITE_LATENCY_MICROSECONDS = "data.write_latency_us";
+    public static final String TOR_BOOTSTRAP_MILLISECONDS = "tor.bootstrap_ms";
+    public static final String TOR_FIRST_CIRCUIT_MILLISECONDS = "tor.first_circuit_ms";
+
+    public static class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    public static class Gauge {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void set(long value) {
+            mValue.set(value);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    public static class Histogram {
+        // Upper bounds (inclusive) of each bucket; values above the last bound go in an overflow bucket
+        private static final long[] BUCKET_BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000,
+            100000, 200000, 500000, 1000000, 2000000, 5000000, 10000000 };
+
+        private final AtomicLongArray mBucketCounts = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        public void record(long value) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS.length && value > BUCKET_BOUNDS[bucket]) {
+                bucket++;
+            }
+            mBucketCounts.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        public long getMean() {
+            long count = mCount.get();
+            return count == 0 ? 0 : mSum.get()/count;
+        }
+
+        public long getPercentile(double percentile) {
+            // Returns the upper bound of the bucket containing the percentile, capped at the max
+            // recorded value; or 0 when nothing is recorded
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long)Math.ceil(percentile/100.0*count);
+            long cumulative = 0;
+            for (int bucket = 0; bucket < BUCKET_BOUNDS.length; bucket++) {
+                cumulative += mBucketCounts.get(bucket);
+                if (cumulative >= rank) {
+                    return Math.min(BUCKET_BOUNDS[bucket], mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        HistogramSnapshot getSnapshot() {
+            return new HistogramSnapshot(
+                    mCount.get(),
+                    getMean(),
+                    getPercentile(50),
+                    getPercentile(90),
+                    getPercentile(99),
+                    mMax.get());
+        }
+    }
+
+    public static class FriendMetrics {
+        public final Counter mPushSuccesses = new Counter();
+        public final Counter mPushFailures = new Counter();
+        public final Counter mPullSuccesses = new Counter();
+        public final Counter mPullFailures = new Counter();
+        public final Histogram mRequestLatencyMilliseconds = new Histogram();
+        // The WebClient's live estimators for the friend, which determine request timeouts
+        public volatile RttEstimator mConnectRtt;
+        public volatile RttEstimator mResponseRtt;
+    }
+
+    public static class HistogramSnapshot {
+        public final long mCount;
+        public final long mMean;
+        public final long mP50;
+        public final long mP90;
+        public final long mP99;
+        public final long mMax;
+
+        public HistogramSnapshot(long count, long mean, long p50, long p90, long p99, long max) {
+            mCount = count;
+            mMean = mean;
+            mP50 = p50;
+            mP90 = p90;
+            mP99 = p99;
+            mMax = max;
+        }
+    }
+
+    public static class FriendSnapshot {
+        public final long mPushSuccesses;
+        public final long mPushFailures;
+        public final long mPullSuccesses;
+        public final long mPullFailures;
+        public final HistogramSnapshot mRequestLatencyMilliseconds;
+        public final RttEstimator.Snapshot mConnectRtt;
+        public final RttEstimator.Snapshot mResponseRtt;
+
+        public FriendSnapshot(FriendMetrics friendMetrics) {
+            mPushSuccesses = friendMetrics.mPushSuccesses.get();
+            mPushFailures = friendMetrics.mPushFailures.get();
+            mPullSuccesses = friendMetrics.mPullSuccesses.get();
+            mPullFailures = friendMetrics.mPullFailures.get();
+            mRequestLatencyMilliseconds = friendMetrics.mRequestLatencyMilliseconds.getSnapshot();
+            RttEstimator connectRtt = friendMetrics.mConnectRtt;
+            RttEstimator responseRtt = friendMetrics.mResponseRtt;
+            mConnectRtt = (connectRtt != null) ? connectRtt.getSnapshot() : null;
+            mResponseRtt = (responseRtt != null) ? responseRtt.getSnapshot() : null;
+        }
+    }
+
+    public static class Snapshot {
+        public final Date mTimestamp;
+        public final Map<String, Long> mCounters;
+        public final Map<String, Long> mGauges;
+        public final Map<String, HistogramSnapshot> mHistograms;
+        public final Map<String, FriendSnapshot> mFriends;
+
+        public Snapshot(
+                Date timestamp,
+                Map<String, Long> counters,
+                Map<String, Long> gauges,
+                Map<String, HistogramSnapshot> histograms,
+                Map<String, FriendSnapshot> friends) {
+            mTimestamp = timestamp;
+            mCounters = counters;
+            mGauges = gauges;
+            mHistograms = histograms;
+            mFriends = friends;
+        }
+    }
+
+    // ---- Singleton ----
+    private static Metrics instance = null;
+    public static synchronized Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+        }
+        return instance;
+    }
+    // -------------------
+
+    private final ConcurrentHashMap<String, Counter> mCounters;
+    private final ConcurrentHashMap<String, Gauge> mGauges;
+    private final ConcurrentHashMap<String, Histogram> mHistograms;
+    private final ConcurrentHashMap<String, FriendMetrics> mFriendMetrics;
+
+    private Metrics() {
+        mCounters = new ConcurrentHashMap<String, Counter>();
+        mGauges = new ConcurrentHashMap<String, Gauge>();
+        mHistograms = new ConcurrentHashMap<String, Histogram>();
+        mFriendMetrics = new ConcurrentHashMap<String, FriendMetrics>();
+    }
+
+    public Counter getCounter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            mCounters.putIfAbsent(name, new Counter());
+            counter = mCounters.get(name);
+        }
+        return counter;
+    }
+
+    public Gauge getGauge(String name) {
+        Gauge gauge = mGauges.get(name);
+        if (gauge == null) {
+            mGauges.putIfAbsent(name, new Gauge());
+            gauge = mGauges.get(name);
+        }
+        return gauge;
+    }
+
+    public Histogram getHistogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            mHistograms.putIfAbsent(name, new Histogram());
+            histogram = mHistograms.get(name);
+        }
+        return histogram;
+    }
+
+    public FriendMetrics getFriendMetrics(String friendId) {
+        FriendMetrics friendMetrics = mFriendMetrics.get(friendId);
+        if (friendMetrics == null) {
+            mFriendMetrics.putIfAbsent(friendId, new FriendMetrics());
+            friendMetrics = mFriendMetrics.get(friendId);
+        }
+        return friendMetrics;
+    }
+
+    public void removeFriendMetrics(String friendId) {
+        mFriendMetrics.remove(friendId);
+    }
+
+    public synchronized void reset() {
+        mCounters.clear();
+        mGauges.clear();
+        mHistograms.clear();
+        mFriendMetrics.clear();
+    }
+
+    public synchronized Snapshot getSnapshot() {
+        // Values are read individually, so a snapshot taken during recording may be slightly skewed
+        Map<String, Long> counters = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().get());
+        }
+        Map<String, Long> gauges = new TreeMap<String, Long>();
+        for (Map.Entry<String, Gauge> entry : mGauges.entrySet()) {
+            gauges.put(entry.getKey(), entry.getValue().get());
+        }
+        Map<String, HistogramSnapshot> histograms = new TreeMap<String, HistogramSnapshot>();
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            histograms.put(entry.getKey(), entry.getValue().getSnapshot());
+        }
+        Map<String, FriendSnapshot> friends = new TreeMap<String, FriendSnapshot>();
+        for (Map.Entry<String, FriendMetrics> entry : mFriendMetrics.entrySet()) {
+            friends.put(entry.getKey(), new FriendSnapshot(entry.getValue()));
+        }
+        return new Snapshot(Clock.getInstance().now(), counters, gauges, histograms, friends);
+    }
+
+    public String getSnapshotJson() {
+        return Json.toJson(getSnapshot());
+    }
+}
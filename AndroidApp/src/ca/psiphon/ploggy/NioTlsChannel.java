@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+
+/**
+ * TLS over a non-blocking socket channel, for NioWebClient and NioWebServer.
+ *
+ * Each operation does as much as it can without blocking. When it can't complete, it sets the
+ * selection key's interest to the readiness it's waiting on and returns false; the caller
+ * retries the operation when the key is next selected. Called only from a selector thread.
+ */
+public class NioTlsChannel {
+
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    private final SocketChannel mChannel;
+    private final SelectionKey mSelectionKey;
+    private final SSLEngine mSSLEngine;
+    private ByteBuffer mNetInBuffer;
+    private ByteBuffer mNetOutBuffer;
+    private ByteBuffer mAppInBuffer;
+    private boolean mIsEndOfStream;
+
+    public NioTlsChannel(SocketChannel channel, SelectionKey selectionKey, SSLEngine sslEngine) {
+        mChannel = channel;
+        mSelectionKey = selectionKey;
+        mSSLEngine = sslEngine;
+        mNetInBuffer = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+        mNetOutBuffer = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+        // mNetOutBuffer holds pending output, ready to be written
+        mNetOutBuffer.flip();
+        mAppInBuffer = ByteBuffer.allocate(sslEngine.getSession().getApplicationBufferSize());
+        mIsEndOfStream = false;
+    }
+
+    public SSLEngine getSSLEngine() {
+        return mSSLEngine;
+    }
+
+    public void beginHandshake() throws IOException {
+        mSSLEngine.beginHandshake();
+    }
+
+    public boolean handshake() throws IOException {
+        // Returns true once the handshake is complete
+        while (true) {
+            if (!flush()) {
+                return false;
+            }
+            switch (mSSLEngine.getHandshakeStatus()) {
+            case NEED_TASK:
+                // Certificate checks and key agreement; brief enough to run on the selector thread
+                Runnable task;
+                while ((task = mSSLEngine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                break;
+            case NEED_WRAP:
+                wrap(EMPTY_BUFFER);
+                break;
+            case NEED_UNWRAP:
+                if (!read()) {
+                    if (mIsEndOfStream) {
+                        throw new IOException("connection closed during TLS handshake");
+                    }
+                    return false;
+                }
+                break;
+            default:
+                return true;
+            }
+        }
+    }
+
+    public boolean write(ByteBuffer source) throws IOException {
+        // Returns true once all of source is encrypted and written
+        while (true) {
+            if (!flush()) {
+                return false;
+            }
+            if (!source.hasRemaining()) {
+                return true;
+            }
+            wrap(source);
+        }
+    }
+
+    public boolean read() throws IOException {
+        // Unwraps one TLS record into the application input buffer, reading from the channel as
+        // required; see getApplicationInput. Returns false when no further input is available
+        // yet, or at end of stream.
+        while (true) {
+            mNetInBuffer.flip();
+            SSLEngineResult result = mSSLEngine.unwrap(mNetInBuffer, mAppInBuffer);
+            mNetInBuffer.compact();
+            switch (result.getStatus()) {
+            case OK:
+                return true;
+            case CLOSED:
+                mIsEndOfStream = true;
+                return false;
+            case BUFFER_OVERFLOW:
+                mAppInBuffer = enlarge(mAppInBuffer, mSSLEngine.getSession().getApplicationBufferSize());
+                break;
+            case BUFFER_UNDERFLOW:
+                if (!mNetInBuffer.hasRemaining()) {
+                    mNetInBuffer = enlarge(mNetInBuffer, mSSLEngine.getSession().getPacketBufferSize());
+                }
+                int readCount = mChannel.read(mNetInBuffer);
+                if (readCount < 0) {
+                    mIsEndOfStream = true;
+                    return false;
+                } else if (readCount == 0) {
+                    mSelectionKey.interestOps(SelectionKey.OP_READ);
+                    return false;
+                }
+                break;
+            }
+        }
+    }
+
+    public ByteBuffer getApplicationInput() {
+        // In write mode: the caller flips, consumes and clears or compacts
+        return mAppInBuffer;
+    }
+
+    public boolean isEndOfStream() {
+        return mIsEndOfStream;
+    }
+
+    public void close() {
+        mSelectionKey.cancel();
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private boolean flush() throws IOException {
+        if (mNetOutBuffer.hasRemaining()) {
+            mChannel.write(mNetOutBuffer);
+            if (mNetOutBuffer.hasRemaining()) {
+                mSelectionKey.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void wrap(ByteBuffer source) throws IOException {
+        // Called only once mNetOutBuffer is flushed
+        mNetOutBuffer.clear();
+        SSLEngineResult result = mSSLEngine.wrap(source, mNetOutBuffer);
+        mNetOutBuffer.flip();
+        if (result.getStatus() != SSLEngineResult.Status.OK) {
+            throw new IOException("TLS wrap failed: " + result.getStatus().name());
+        }
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int size) {
+        ByteBuffer enlargedBuffer = ByteBuffer.allocate(buffer.position() + Math.max(size, buffer.capacity()));
+        buffer.flip();
+        enlargedBuffer.put(buffer);
+        return enlargedBuffer;
+    }
+}
@@ -0,0 +1,851 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Non-blocking client for friend requests.
+ *
+ * Each request is a connection driven through a sequence of states by one of a few selector
+ * threads: TCP connect to the local Tor SOCKS port; SOCKS4a connect request and reply; TLS
+ * handshake, with an SSLEngine configured as for WebClient sockets; HTTP/1.1 request write;
+ * and response read. No thread waits on a request in progress, so hundreds of friends may be
+ * contacted at once with a handful of threads.
+ *
+ * Each request uses a new connection ("Connection: close"), since requests made through this
+ * client are spread out over a pull period. For the same reason, the Engine doesn't prewarm
+ * connections for these requests. The blocking WebClient, with its pooled keep-alive
+ * connections, remains in use for other requests and as a fallback: a ProtocolError indicates a
+ * response this client doesn't handle.
+ *
+ * Response bodies are buffered, bounded by the handler's maximum, and decoded by the handler in
+ * the thread that gets the result (see ResponseFuture.getResponse), never on a selector thread.
+ */
+public class NioWebClient {
+
+    private static final String LOG_TAG = "NIO Web Client";
+
+    private static final int SELECTOR_THREAD_COUNT = 2;
+    private static final long SELECT_TIMEOUT_MILLISECONDS = 1000;
+    private static final int MAX_RESPONSE_HEADER_BYTES = 16*1024;
+    private static final byte[] HEADER_TERMINATOR = new byte[] {'\r', '\n', '\r', '\n'};
+
+    public static class ProtocolError extends Utils.ApplicationError {
+        private static final long serialVersionUID = 4618323432911417271L;
+
+        public ProtocolError(String message) {
+            super(LOG_TAG, message);
+        }
+    }
+
+    /**
+     * Result of a request. Listeners run, in the given executor, once the request completes;
+     * the response is then available without waiting.
+     */
+    public static class ResponseFuture<T> implements Future<WebClient.ConditionalResponse<T>> {
+        private final WebClient.ResponseHandler<T> mResponseHandler;
+        private final CountDownLatch mDoneLatch;
+        private final List<Runnable> mListeners;
+        private final List<Executor> mListenerExecutors;
+        private boolean mIsDone;
+        private boolean mIsCancelled;
+        private Exception mError;
+        private WebClient.ConditionalResponse<byte[]> mRawResponse;
+        private boolean mIsGzip;
+        private WebClient.ConditionalResponse<T> mResponse;
+
+        private ResponseFuture(WebClient.ResponseHandler<T> responseHandler) {
+            mResponseHandler = responseHandler;
+            mDoneLatch = new CountDownLatch(1);
+            mListeners = new ArrayList<Runnable>();
+            mListenerExecutors = new ArrayList<Executor>();
+            mIsDone = false;
+            mIsCancelled = false;
+        }
+
+        public void addListener(Runnable listener, Executor executor) {
+            synchronized(this) {
+                if (!mIsDone) {
+                    mListeners.add(listener);
+                    mListenerExecutors.add(executor);
+                    return;
+                }
+            }
+            executeListener(listener, executor);
+        }
+
+        private static void executeListener(Runnable listener, Executor executor) {
+            try {
+                executor.execute(listener);
+            } catch (RejectedExecutionException e) {
+                // The executor, e.g. the Engine's worker pool, is shut down; the listener's
+                // work is no longer wanted
+                Log.addEntry(LOG_TAG, "dropped response listener");
+            }
+        }
+
+        private void complete(WebClient.ConditionalResponse<byte[]> rawResponse, boolean isGzip, Exception error) {
+            List<Runnable> listeners;
+            List<Executor> listenerExecutors;
+            synchronized(this) {
+                if (mIsDone) {
+                    return;
+                }
+                mRawResponse = rawResponse;
+                mIsGzip = isGzip;
+                mError = error;
+                mIsDone = true;
+                listeners = new ArrayList<Runnable>(mListeners);
+                listenerExecutors = new ArrayList<Executor>(mListenerExecutors);
+                mListeners.clear();
+                mListenerExecutors.clear();
+            }
+            mDoneLatch.countDown();
+            for (int i = 0; i < listeners.size(); i++) {
+                executeListener(listeners.get(i), listenerExecutors.get(i));
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // The connection is closed by its selector thread; see SelectorThread.closeExpiredConnections
+            synchronized(this) {
+                if (mIsDone) {
+                    return false;
+                }
+                mIsCancelled = true;
+            }
+            complete(null, false, new CancellationException());
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return mIsDone;
+        }
+
+        @Override
+        public WebClient.ConditionalResponse<T> get() throws InterruptedException, ExecutionException {
+            mDoneLatch.await();
+            return getCompletedResponse();
+        }
+
+        @Override
+        public WebClient.ConditionalResponse<T> get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDoneLatch.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return getCompletedResponse();
+        }
+
+        public WebClient.ConditionalResponse<T> getResponse() throws Utils.ApplicationError {
+            // As get(), with errors reported as for WebClient requests
+            try {
+                return get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new Utils.ApplicationError(LOG_TAG, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Utils.ApplicationError) {
+                    throw (Utils.ApplicationError)e.getCause();
+                }
+                throw new Utils.ApplicationError(LOG_TAG, (Exception)e.getCause());
+            } catch (CancellationException e) {
+                throw new Utils.ApplicationError(LOG_TAG, e);
+            }
+        }
+
+        private synchronized WebClient.ConditionalResponse<T> getCompletedResponse() throws ExecutionException {
+            if (mError instanceof CancellationException) {
+                throw (CancellationException)mError;
+            }
+            if (mError != null) {
+                throw new ExecutionException(mError);
+            }
+            if (mResponse == null) {
+                // Decoded on first use, in the calling thread
+                T body = null;
+                if (mRawResponse.mBody != null) {
+                    try {
+                        InputStream inputStream = new ByteArrayInputStream(mRawResponse.mBody);
+                        if (mIsGzip) {
+                            inputStream = Compression.decompress(inputStream, mResponseHandler.getMaxResponseBytes());
+                        }
+                        body = mResponseHandler.handleResponse(inputStream);
+                    } catch (IOException e) {
+                        mError = new Utils.ApplicationError(LOG_TAG, e);
+                        throw new ExecutionException(mError);
+                    } catch (Utils.ApplicationError e) {
+                        mError = e;
+                        throw new ExecutionException(mError);
+                    }
+                }
+                mResponse = new WebClient.ConditionalResponse<T>(
+                        mRawResponse.mNotModified, body, mRawResponse.mEntityTag);
+            }
+            return mResponse;
+        }
+    }
+
+    public static <T> ResponseFuture<T> makeConditionalGetRequest(
+            X509.KeyMaterial x509KeyMaterial,
+            String peerCertificate,
+            int localSocksProxyPort,
+            String hostname,
+            int port,
+            String requestPath,
+            String entityTag,
+            WebClient.ResponseHandler<T> responseHandler) throws Utils.ApplicationError {
+        return makeRequest(
+                x509KeyMaterial,
+                peerCertificate,
+                localSocksProxyPort,
+                hostname,
+                port,
+                requestPath,
+                null,
+                entityTag,
+                responseHandler);
+    }
+
+    public static <T> ResponseFuture<T> makeConditionalPostRequest(
+            X509.KeyMaterial x509KeyMaterial,
+            String peerCertificate,
+            int localSocksProxyPort,
+            String hostname,
+            int port,
+            String requestPath,
+            String requestBody,
+            String entityTag,
+            WebClient.ResponseHandler<T> responseHandler) throws Utils.ApplicationError {
+        return makeRequest(
+                x509KeyMaterial,
+                peerCertificate,
+                localSocksProxyPort,
+                hostname,
+                port,
+                requestPath,
+                requestBody,
+                entityTag,
+                responseHandler);
+    }
+
+    private static <T> ResponseFuture<T> makeRequest(
+            X509.KeyMaterial x509KeyMaterial,
+            String peerCertificate,
+            int localSocksProxyPort,
+            String hostname,
+            int port,
+            String requestPath,
+            String requestBody,
+            String entityTag,
+            WebClient.ResponseHandler<T> responseHandler) throws Utils.ApplicationError {
+        // Key material and request encoding are prepared in the calling thread
+        SSLEngine sslEngine = TransportSecurity.makeClientSSLEngine(
+                x509KeyMaterial, Arrays.asList(peerCertificate), hostname, port);
+        StringBuilder request = new StringBuilder();
+        request.append(requestBody == null ? "GET " : "POST ").append(requestPath).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(hostname).append("\r\n");
+        request.append(Compression.ACCEPT_ENCODING_HEADER).append(": ").append(Compression.GZIP_ENCODING).append("\r\n");
+        if (entityTag != null) {
+            request.append("If-None-Match: ").append(entityTag).append("\r\n");
+        }
+        request.append("Connection: close\r\n");
+        byte[] requestBodyBytes = null;
+        try {
+            if (requestBody != null) {
+                requestBodyBytes = requestBody.getBytes("UTF-8");
+                request.append("Content-Type: application/json\r\n");
+                request.append("Content-Length: ").append(requestBodyBytes.length).append("\r\n");
+            }
+            request.append("\r\n");
+            byte[] requestHeaderBytes = request.toString().getBytes("UTF-8");
+            ByteBuffer requestBuffer = ByteBuffer.allocate(
+                    requestHeaderBytes.length + (requestBodyBytes != null ? requestBodyBytes.length : 0));
+            requestBuffer.put(requestHeaderBytes);
+            if (requestBodyBytes != null) {
+                requestBuffer.put(requestBodyBytes);
+                Metrics.getInstance().getCounter(Metrics.WEB_CLIENT_BYTES_SENT).add(requestBodyBytes.length);
+            }
+            requestBuffer.flip();
+            ResponseFuture<T> future = new ResponseFuture<T>(responseHandler);
+            Connection connection = new Connection(
+                    x509KeyMaterial.mCertificate,
+                    peerCertificate,
+                    localSocksProxyPort,
+                    hostname,
+                    port,
+                    WebClient.getSocksUserId(x509KeyMaterial.mCertificate, peerCertificate, requestBody == null),
+                    sslEngine,
+                    requestBuffer,
+                    entityTag,
+                    responseHandler.getMaxResponseBytes(),
+                    future);
+            Metrics.getInstance().getCounter(Metrics.NIO_CLIENT_REQUESTS).increment();
+            getSelectorThread().submit(connection);
+            return future;
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    private enum State {
+        CONNECTING,
+        SOCKS_REQUEST,
+        SOCKS_REPLY,
+        TLS_HANDSHAKE,
+        HTTP_REQUEST,
+        HTTP_RESPONSE,
+        CLOSED
+    }
+
+    private static class Connection {
+        private final String mPeerCertificate;
+        private final int mLocalSocksProxyPort;
+        private final String mHostname;
+        private final int mPort;
+        private final SSLEngine mSSLEngine;
+        private final ByteBuffer mRequestBuffer;
+        private final String mEntityTag;
+        private final long mMaxResponseBytes;
+        private final ResponseFuture<?> mFuture;
+        private final RttEstimator mConnectRtt;
+        private final RttEstimator mResponseRtt;
+        private final long mStartTime;
+        private ByteBuffer mSocksBuffer;
+        private SocketChannel mChannel;
+        private SelectionKey mSelectionKey;
+        private State mState;
+        private long mDeadline;
+        private int mReadTimeout;
+        private long mHandshakeStartTime;
+        private long mRequestStartTime;
+        private NioTlsChannel mTlsChannel;
+        private byte[] mResponseBytes;
+        private int mResponseLength;
+        private int mHeaderLength;
+        private int mStatusCode;
+        private HashMap<String, String> mResponseHeaders;
+        private long mContentLength;
+
+        Connection(
+                String selfCertificate,
+                String peerCertificate,
+                int localSocksProxyPort,
+                String hostname,
+                int port,
+                String socksUserId,
+                SSLEngine sslEngine,
+                ByteBuffer requestBuffer,
+                String entityTag,
+                long maxResponseBytes,
+                ResponseFuture<?> future) throws IOException {
+            mPeerCertificate = peerCertificate;
+            mLocalSocksProxyPort = localSocksProxyPort;
+            mHostname = hostname;
+            mPort = port;
+            mSSLEngine = sslEngine;
+            mRequestBuffer = requestBuffer;
+            mEntityTag = entityTag;
+            mMaxResponseBytes = maxResponseBytes;
+            mFuture = future;
+            mConnectRtt = WebClient.getConnectRttEstimator(selfCertificate, peerCertificate);
+            mResponseRtt = WebClient.getResponseRttEstimator(selfCertificate, peerCertificate);
+            mStartTime = Clock.getInstance().currentTimeMillis();
+            if (localSocksProxyPort != WebClient.UNTUNNELED_REQUEST) {
+                // SOCKS4a connect request; see WebClient.SocksProxyClientConnectionOperator
+                byte[] userId = socksUserId.getBytes("UTF-8");
+                byte[] host = hostname.getBytes("UTF-8");
+                mSocksBuffer = ByteBuffer.allocate(9 + userId.length + 1 + host.length + 1);
+                mSocksBuffer.put((byte)0x04);
+                mSocksBuffer.put((byte)0x01);
+                mSocksBuffer.putShort((short)port);
+                mSocksBuffer.putInt(0x01);
+                mSocksBuffer.put(userId);
+                mSocksBuffer.put((byte)0x00);
+                mSocksBuffer.put(host);
+                mSocksBuffer.put((byte)0x00);
+                mSocksBuffer.flip();
+            }
+            mState = State.CONNECTING;
+        }
+
+        void start(Selector selector) {
+            // Runs on the selector thread
+            try {
+                // As in the blocking client, the connect timeout covers the SOCKS connect, which
+                // waits on Tor's hidden service rendezvous, and the TLS handshake
+                mDeadline = mStartTime + mConnectRtt.getTimeoutMilliseconds();
+                mReadTimeout = mResponseRtt.getTimeoutMilliseconds();
+                mChannel = SocketChannel.open();
+                mChannel.configureBlocking(false);
+                mSelectionKey = mChannel.register(selector, SelectionKey.OP_CONNECT, this);
+                if (mSocksBuffer != null) {
+                    mChannel.connect(new InetSocketAddress("127.0.0.1", mLocalSocksProxyPort));
+                } else {
+                    mChannel.connect(new InetSocketAddress(mHostname, mPort));
+                }
+                advance();
+            } catch (IOException e) {
+                fail(e);
+            } catch (Utils.ApplicationError e) {
+                fail(e);
+            }
+        }
+
+        void handleSelected() {
+            try {
+                advance();
+            } catch (IOException e) {
+                fail(e);
+            } catch (Utils.ApplicationError e) {
+                fail(e);
+            }
+        }
+
+        boolean isClosed() {
+            return mState == State.CLOSED;
+        }
+
+        long getDeadline() {
+            return mDeadline;
+        }
+
+        void checkDeadline(long now) {
+            if (mState == State.CLOSED) {
+                return;
+            }
+            if (mFuture.isCancelled()) {
+                close();
+            } else if (now >= mDeadline) {
+                fail(new SocketTimeoutException("request timed out in state " + mState.name()));
+            }
+        }
+
+        private void advance() throws IOException, Utils.ApplicationError {
+            while (true) {
+                switch (mState) {
+                case CONNECTING:
+                    if (!mChannel.finishConnect()) {
+                        mSelectionKey.interestOps(SelectionKey.OP_CONNECT);
+                        return;
+                    }
+                    if (mSocksBuffer != null) {
+                        mState = State.SOCKS_REQUEST;
+                    } else {
+                        beginHandshake();
+                    }
+                    break;
+                case SOCKS_REQUEST:
+                    mChannel.write(mSocksBuffer);
+                    if (mSocksBuffer.hasRemaining()) {
+                        mSelectionKey.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    mSocksBuffer = ByteBuffer.allocate(8);
+                    mState = State.SOCKS_REPLY;
+                    break;
+                case SOCKS_REPLY:
+                    if (mChannel.read(mSocksBuffer) < 0) {
+                        throw new IOException("SOCKS4a connect failed");
+                    }
+                    if (mSocksBuffer.hasRemaining()) {
+                        mSelectionKey.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                    if (mSocksBuffer.get(0) != (byte)0x00 || mSocksBuffer.get(1) != (byte)0x5a) {
+                        throw new IOException("SOCKS4a connect failed");
+                    }
+                    mSocksBuffer = null;
+                    beginHandshake();
+                    break;
+                case TLS_HANDSHAKE:
+                    if (!mTlsChannel.handshake()) {
+                        return;
+                    }
+                    long now = Clock.getInstance().currentTimeMillis();
+                    TransportSecurity.verifyClientSession(
+                            mSSLEngine.getSession(),
+                            Arrays.asList(mPeerCertificate),
+                            mHandshakeStartTime,
+                            now - mHandshakeStartTime);
+                    mConnectRtt.addSample(now - mStartTime);
+                    mRequestStartTime = now;
+                    mDeadline = now + mReadTimeout;
+                    mState = State.HTTP_REQUEST;
+                    break;
+                case HTTP_REQUEST:
+                    if (!mTlsChannel.write(mRequestBuffer)) {
+                        return;
+                    }
+                    mState = State.HTTP_RESPONSE;
+                    break;
+                case HTTP_RESPONSE:
+                    while (true) {
+                        boolean isProgress = mTlsChannel.read();
+                        if (mTlsChannel.getApplicationInput().position() > 0) {
+                            // Read timeout is for inactivity, as with a socket read timeout
+                            mDeadline = Clock.getInstance().currentTimeMillis() + mReadTimeout;
+                            appendResponseBytes();
+                        }
+                        if (isResponseComplete()) {
+                            completeResponse();
+                            return;
+                        }
+                        if (mTlsChannel.isEndOfStream()) {
+                            throw new IOException("connection closed before end of response");
+                        }
+                        if (!isProgress) {
+                            return;
+                        }
+                    }
+                case CLOSED:
+                    return;
+                }
+            }
+        }
+
+        private void beginHandshake() throws IOException {
+            mTlsChannel = new NioTlsChannel(mChannel, mSelectionKey, mSSLEngine);
+            mHandshakeStartTime = Clock.getInstance().currentTimeMillis();
+            mTlsChannel.beginHandshake();
+            mState = State.TLS_HANDSHAKE;
+        }
+
+        private void appendResponseBytes() throws IOException {
+            ByteBuffer appInBuffer = mTlsChannel.getApplicationInput();
+            appInBuffer.flip();
+            int count = appInBuffer.remaining();
+            long maxLength = MAX_RESPONSE_HEADER_BYTES + mMaxResponseBytes;
+            if (mResponseLength + count > maxLength) {
+                throw new IOException("response exceeds maximum size");
+            }
+            if (mResponseBytes == null || mResponseLength + count > mResponseBytes.length) {
+                int capacity = (int)Math.min(maxLength, Math.max(2*(mResponseLength + count), 4096));
+                mResponseBytes = (mResponseBytes == null) ? new byte[capacity] : Arrays.copyOf(mResponseBytes, capacity);
+            }
+            appInBuffer.get(mResponseBytes, mResponseLength, count);
+            mResponseLength += count;
+            appInBuffer.clear();
+        }
+
+        private boolean isResponseComplete() throws IOException, Utils.ApplicationError {
+            if (mResponseHeaders == null) {
+                int headerEnd = indexOf(mResponseBytes, mResponseLength, HEADER_TERMINATOR);
+                if (headerEnd < 0) {
+                    if (mResponseLength > MAX_RESPONSE_HEADER_BYTES) {
+                        throw new IOException("response header exceeds maximum size");
+                    }
+                    return false;
+                }
+                mHeaderLength = headerEnd + HEADER_TERMINATOR.length;
+                parseResponseHeader(new String(mResponseBytes, 0, headerEnd, "UTF-8"));
+                mResponseRtt.addSample(Clock.getInstance().currentTimeMillis() - mRequestStartTime);
+            }
+            return mResponseLength - mHeaderLength >= mContentLength;
+        }
+
+        private void parseResponseHeader(String header) throws IOException, Utils.ApplicationError {
+            String[] lines = header.split("\r\n");
+            String[] statusLine = lines[0].split(" ");
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/1.")) {
+                throw new ProtocolError("unexpected response status line");
+            }
+            try {
+                mStatusCode = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException e) {
+                throw new ProtocolError("unexpected response status code");
+            }
+            mResponseHeaders = new HashMap<String, String>();
+            for (int i = 1; i < lines.length; i++) {
+                int separator = lines[i].indexOf(':');
+                if (separator > 0) {
+                    mResponseHeaders.put(
+                            lines[i].substring(0, separator).trim().toLowerCase(Locale.US),
+                            lines[i].substring(separator + 1).trim());
+                }
+            }
+            if (mResponseHeaders.containsKey("transfer-encoding")) {
+                throw new ProtocolError("unsupported transfer encoding");
+            }
+            String contentLength = mResponseHeaders.get("content-length");
+            if (contentLength == null) {
+                if (mStatusCode == 200) {
+                    throw new ProtocolError("missing content length");
+                }
+                mContentLength = 0;
+                return;
+            }
+            try {
+                mContentLength = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                throw new ProtocolError("unexpected content length");
+            }
+            if (mContentLength < 0 || mContentLength > mMaxResponseBytes) {
+                throw new IOException("response exceeds maximum size");
+            }
+        }
+
+        private void completeResponse() throws Utils.ApplicationError {
+            Metrics metrics = Metrics.getInstance();
+            close();
+            WebClient.ConditionalResponse<byte[]> rawResponse;
+            if (mEntityTag != null && mStatusCode == 304) {
+                metrics.getCounter(Metrics.WEB_CLIENT_NOT_MODIFIED_RESPONSES).increment();
+                rawResponse = new WebClient.ConditionalResponse<byte[]>(true, null, mEntityTag);
+            } else if (mStatusCode == 204) {
+                rawResponse = new WebClient.ConditionalResponse<byte[]>(false, null, null);
+            } else if (mStatusCode != 200) {
+                throw new WebClient.HttpStatusError(mStatusCode);
+            } else {
+                if (mEntityTag != null) {
+                    metrics.getCounter(Metrics.WEB_CLIENT_MODIFIED_RESPONSES).increment();
+                }
+                byte[] body = Arrays.copyOfRange(mResponseBytes, mHeaderLength, mHeaderLength + (int)mContentLength);
+                metrics.getCounter(Metrics.WEB_CLIENT_BYTES_RECEIVED).add(body.length);
+                rawResponse = new WebClient.ConditionalResponse<byte[]>(false, body, mResponseHeaders.get("etag"));
+            }
+            metrics.getHistogram(Metrics.NIO_CLIENT_REQUEST_LATENCY_MILLISECONDS).record(
+                    Clock.getInstance().currentTimeMillis() - mStartTime);
+            mFuture.complete(rawResponse, Compression.isGzip(mResponseHeaders.get("content-encoding")), null);
+        }
+
+        private void fail(Exception error) {
+            if (mState == State.CLOSED) {
+                return;
+            }
+            if (error instanceof IOException) {
+                // As in the blocking client, a failure before the TLS handshake completed is a
+                // connect failure
+                if (mState == State.HTTP_REQUEST || mState == State.HTTP_RESPONSE) {
+                    mResponseRtt.addFailure();
+                } else {
+                    mConnectRtt.addFailure();
+                }
+                error = new Utils.ApplicationError(LOG_TAG, error);
+            }
+            close();
+            Metrics.getInstance().getCounter(Metrics.NIO_CLIENT_REQUEST_FAILURES).increment();
+            mFuture.complete(null, false, error);
+        }
+
+        private void close() {
+            if (mState == State.CLOSED) {
+                return;
+            }
+            mState = State.CLOSED;
+            if (mSelectionKey != null) {
+                mSelectionKey.cancel();
+            }
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        private static int indexOf(byte[] bytes, int length, byte[] pattern) {
+            if (bytes == null) {
+                return -1;
+            }
+            for (int i = 0; i <= length - pattern.length; i++) {
+                int j = 0;
+                while (j < pattern.length && bytes[i + j] == pattern[j]) {
+                    j++;
+                }
+                if (j == pattern.length) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static class SelectorThread extends Thread {
+        private final Selector mSelector;
+        private final ConcurrentLinkedQueue<Connection> mNewConnections;
+        private final HashSet<Connection> mConnections;
+        private volatile boolean mIsStopped;
+
+        SelectorThread(int index) throws IOException {
+            super("NioWebClient-" + index);
+            setDaemon(true);
+            mSelector = Selector.open();
+            mNewConnections = new ConcurrentLinkedQueue<Connection>();
+            mConnections = new HashSet<Connection>();
+            mIsStopped = false;
+        }
+
+        void submit(Connection connection) {
+            mNewConnections.add(connection);
+            mSelector.wakeup();
+            if (mIsStopped) {
+                // Submitted as the selector thread stopped, possibly after it failed its
+                // remaining new connections
+                failNewConnections();
+            }
+        }
+
+        boolean isStopped() {
+            return mIsStopped;
+        }
+
+        private void failNewConnections() {
+            // Never started, so not yet counted as open or owned by the selector thread
+            Connection connection;
+            while ((connection = mNewConnections.poll()) != null) {
+                connection.fail(new IOException("client stopped"));
+            }
+        }
+
+        void stopSelector() {
+            mIsStopped = true;
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            Metrics.Gauge openConnections = Metrics.getInstance().getGauge(Metrics.NIO_CLIENT_OPEN_CONNECTIONS);
+            try {
+                while (!mIsStopped) {
+                    mSelector.select(getSelectTimeout());
+                    Connection connection;
+                    while ((connection = mNewConnections.poll()) != null) {
+                        mConnections.add(connection);
+                        mOpenConnectionCount.incrementAndGet();
+                        connection.start(mSelector);
+                    }
+                    Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((Connection)key.attachment()).handleSelected();
+                    }
+                    closeExpiredConnections(Clock.getInstance().currentTimeMillis());
+                    openConnections.set(mOpenConnectionCount.get());
+                }
+            } catch (IOException e) {
+                Log.addEntry(LOG_TAG, "selector failed: " + e.getMessage());
+            } finally {
+                mIsStopped = true;
+                failNewConnections();
+                for (Connection openConnection : mConnections) {
+                    openConnection.fail(new IOException("client stopped"));
+                }
+                mOpenConnectionCount.addAndGet(-mConnections.size());
+                mConnections.clear();
+                try {
+                    mSelector.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        private long getSelectTimeout() {
+            // Wake for the nearest deadline, or periodically to notice cancelled requests
+            long timeout = SELECT_TIMEOUT_MILLISECONDS;
+            long now = Clock.getInstance().currentTimeMillis();
+            for (Connection connection : mConnections) {
+                timeout = Math.min(timeout, connection.getDeadline() - now);
+            }
+            return Math.max(1, timeout);
+        }
+
+        private void closeExpiredConnections(long now) {
+            Iterator<Connection> iterator = mConnections.iterator();
+            while (iterator.hasNext()) {
+                Connection connection = iterator.next();
+                connection.checkDeadline(now);
+                if (connection.isClosed()) {
+                    iterator.remove();
+                    mOpenConnectionCount.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static SelectorThread[] mSelectorThreads = null;
+    private static int mNextSelectorThread = 0;
+    private static final AtomicInteger mOpenConnectionCount = new AtomicInteger(0);
+
+    private static synchronized SelectorThread getSelectorThread() throws IOException {
+        // Selector threads are started on first use and assigned to requests round-robin
+        if (mSelectorThreads == null) {
+            SelectorThread[] selectorThreads = new SelectorThread[SELECTOR_THREAD_COUNT];
+            for (int i = 0; i < SELECTOR_THREAD_COUNT; i++) {
+                selectorThreads[i] = new SelectorThread(i);
+                selectorThreads[i].start();
+            }
+            mSelectorThreads = selectorThreads;
+        }
+        mNextSelectorThread = (mNextSelectorThread + 1) % SELECTOR_THREAD_COUNT;
+        if (mSelectorThreads[mNextSelectorThread].isStopped()) {
+            // The selector failed; replace the thread
+            mSelectorThreads[mNextSelectorThread] = new SelectorThread(mNextSelectorThread);
+            mSelectorThreads[mNextSelectorThread].start();
+        }
+        return mSelectorThreads[mNextSelectorThread];
+    }
+
+    public static synchronized void shutdown() {
+        // Fails all requests in progress, e.g., when the Engine stops and its Tor instance goes away
+        if (mSelectorThreads != null) {
+            for (SelectorThread selectorThread : mSelectorThreads) {
+                selectorThread.stopSelector();
+            }
+            mSelectorThreads = null;
+        }
+    }
+}
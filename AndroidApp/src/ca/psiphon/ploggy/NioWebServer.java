@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.net.ssl.SSLEngine;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Non-blocking connection handling for WebServer.
+ *
+ * One selector thread accepts connections, runs TLS handshakes and reads requests. Only once a
+ * request is fully read is it dispatched, through WebServer.exec, to a pool thread, which serves
+ * it with the same WebServer.serve used in blocking mode. The encoded response is handed back
+ * to the selector thread to be written. An idle keep-alive connection holds no thread.
+ *
+ * As with NanoHTTPD, connections are kept alive unless the client asks to close, and are closed
+ * after the read timeout without a complete request. Connections are admitted, and idle
+ * connections reaped, by the WebServer's ConnectionAdmission.
+ */
+public class NioWebServer {
+
+    private static final String LOG_TAG = "NIO Web Server";
+
+    private static final long SELECT_TIMEOUT_MILLISECONDS = 1000;
+    private static final int MAX_REQUEST_HEADER_BYTES = 16*1024;
+    private static final byte[] ERROR_RESPONSE =
+            "HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(
+                    Charset.forName("US-ASCII"));
+
+    private final WebServer mWebServer;
+    private final X509.KeyMaterial mX509KeyMaterial;
+    private final List<String> mFriendCertificates;
+    private final ConnectionAdmission mConnectionAdmission;
+    private final int mReadTimeoutMilliseconds;
+    private final ConcurrentLinkedQueue<Connection> mServedConnections;
+    private final HashSet<Connection> mConnections;
+    private Selector mSelector;
+    private ServerSocketChannel mServerChannel;
+    private Thread mThread;
+    private volatile boolean mIsStopped;
+
+    public NioWebServer(
+            WebServer webServer,
+            X509.KeyMaterial x509KeyMaterial,
+            List<String> friendCertificates,
+            ConnectionAdmission connectionAdmission,
+            int readTimeoutMilliseconds) {
+        mWebServer = webServer;
+        mX509KeyMaterial = x509KeyMaterial;
+        mFriendCertificates = friendCertificates;
+        mConnectionAdmission = connectionAdmission;
+        mReadTimeoutMilliseconds = readTimeoutMilliseconds;
+        mServedConnections = new ConcurrentLinkedQueue<Connection>();
+        mConnections = new HashSet<Connection>();
+    }
+
+    public void start() throws Utils.ApplicationError {
+        try {
+            // Fail now, not on first connection, if the TLS configuration is invalid
+            TransportSecurity.makeServerSSLEngine(mX509KeyMaterial, mFriendCertificates);
+            mSelector = Selector.open();
+            mServerChannel = ServerSocketChannel.open();
+            mServerChannel.configureBlocking(false);
+            // Bind to loopback only, on any available port; see WebServer
+            mServerChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+            mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            closeServerChannel();
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+        mIsStopped = false;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSelector();
+            }
+        });
+        mThread.setDaemon(true);
+        mThread.setName("NioWebServer Selector");
+        mThread.start();
+    }
+
+    public void stop() {
+        mIsStopped = true;
+        if (mThread != null) {
+            mSelector.wakeup();
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+    }
+
+    public int getListeningPort() {
+        return mServerChannel == null ? -1 : mServerChannel.socket().getLocalPort();
+    }
+
+    private void runSelector() {
+        try {
+            while (!mIsStopped) {
+                mSelector.select(SELECT_TIMEOUT_MILLISECONDS);
+                Connection servedConnection;
+                while ((servedConnection = mServedConnections.poll()) != null) {
+                    servedConnection.handleSelected();
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptConnections();
+                    } else {
+                        ((Connection)key.attachment()).handleSelected();
+                    }
+                }
+                mConnectionAdmission.reapIdleConnections();
+                closeTimedOutConnections(Clock.getInstance().currentTimeMillis());
+            }
+        } catch (IOException e) {
+            Log.addEntry(LOG_TAG, "selector failed: " + e.getMessage());
+        } finally {
+            for (Connection connection : mConnections) {
+                connection.close();
+            }
+            mConnections.clear();
+            closeServerChannel();
+        }
+    }
+
+    private void acceptConnections() throws IOException {
+        SocketChannel channel;
+        while ((channel = mServerChannel.accept()) != null) {
+            // Rejected before any TLS work
+            Connection connection = new Connection(channel);
+            if (!mConnectionAdmission.admitConnection(connection)) {
+                Log.addEntry(LOG_TAG, "rejected connection: too many connections");
+                channel.close();
+                continue;
+            }
+            mConnections.add(connection);
+            try {
+                channel.configureBlocking(false);
+                SelectionKey selectionKey = channel.register(mSelector, SelectionKey.OP_READ, connection);
+                connection.start(
+                        selectionKey,
+                        TransportSecurity.makeServerSSLEngine(mX509KeyMaterial, mFriendCertificates));
+            } catch (IOException e) {
+                Log.addEntry(LOG_TAG, "failed to accept connection: " + e.getMessage());
+                connection.close();
+            } catch (Utils.ApplicationError e) {
+                Log.addEntry(LOG_TAG, "failed to accept connection");
+                connection.close();
+            }
+        }
+    }
+
+    private void closeTimedOutConnections(long now) {
+        Iterator<Connection> iterator = mConnections.iterator();
+        while (iterator.hasNext()) {
+            Connection connection = iterator.next();
+            connection.checkReadTimeout(now);
+            if (connection.isClosed()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void closeServerChannel() {
+        try {
+            if (mServerChannel != null) {
+                mServerChannel.close();
+            }
+            if (mSelector != null) {
+                mSelector.close();
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    private enum State {
+        TLS_HANDSHAKE,
+        READING_REQUEST,
+        SERVING_REQUEST,
+        WRITING_RESPONSE,
+        CLOSED
+    }
+
+    private class Connection implements ConnectionAdmission.Connection {
+        private final SocketChannel mChannel;
+        private SelectionKey mSelectionKey;
+        private NioTlsChannel mTlsChannel;
+        private State mState;
+        private long mLastActivityTime;
+        private String mPeerCertificateFingerprint;
+        private byte[] mRequestBytes;
+        private int mRequestLength;
+        private final HttpRequestParser mRequestParser;
+        private boolean mIsCloseAfterResponse;
+        private volatile ByteBuffer mResponseBuffer;
+
+        Connection(SocketChannel channel) {
+            mChannel = channel;
+            mState = State.TLS_HANDSHAKE;
+            mLastActivityTime = Clock.getInstance().currentTimeMillis();
+            mRequestBytes = new byte[4096];
+            mRequestLength = 0;
+            mRequestParser = new HttpRequestParser(WebServer.REQUEST_HEADER_NAMES, MAX_REQUEST_HEADER_BYTES);
+        }
+
+        void start(SelectionKey selectionKey, SSLEngine sslEngine) throws IOException {
+            mSelectionKey = selectionKey;
+            mTlsChannel = new NioTlsChannel(mChannel, selectionKey, sslEngine);
+            mTlsChannel.beginHandshake();
+            mState = State.TLS_HANDSHAKE;
+            handleSelected();
+        }
+
+        boolean isClosed() {
+            return mState == State.CLOSED;
+        }
+
+        void checkReadTimeout(long now) {
+            // A request being served isn't subject to the read timeout
+            if (mState != State.CLOSED && mState != State.SERVING_REQUEST &&
+                    now - mLastActivityTime >= mReadTimeoutMilliseconds) {
+                close();
+            }
+        }
+
+        void handleSelected() {
+            try {
+                advance();
+            } catch (IOException e) {
+                Log.addEntry(LOG_TAG, e.getMessage());
+                close();
+            } catch (Utils.ApplicationError e) {
+                close();
+            }
+        }
+
+        private void advance() throws IOException, Utils.ApplicationError {
+            while (true) {
+                switch (mState) {
+                case TLS_HANDSHAKE:
+                    if (!mTlsChannel.handshake()) {
+                        return;
+                    }
+                    mPeerCertificateFingerprint = WebServer.getPeerCertificateFingerprint(mTlsChannel.getSSLEngine().getSession());
+                    if (!mConnectionAdmission.admitPeer(this, mPeerCertificateFingerprint)) {
+                        Log.addEntry(LOG_TAG, "rejected connection: too many connections from peer");
+                        close();
+                        return;
+                    }
+                    // Established; idle until its first request
+                    mConnectionAdmission.markIdle(this);
+                    mState = State.READING_REQUEST;
+                    break;
+                case READING_REQUEST:
+                    // A pipelined request may already be buffered
+                    if (dispatchRequest()) {
+                        return;
+                    }
+                    boolean isProgress = mTlsChannel.read();
+                    if (mTlsChannel.getApplicationInput().position() > 0) {
+                        mLastActivityTime = Clock.getInstance().currentTimeMillis();
+                        appendRequestBytes();
+                    } else if (mTlsChannel.isEndOfStream()) {
+                        // Client closed its keep-alive connection
+                        close();
+                        return;
+                    } else if (!isProgress) {
+                        return;
+                    }
+                    break;
+                case SERVING_REQUEST:
+                    if (mResponseBuffer == null) {
+                        return;
+                    }
+                    mState = State.WRITING_RESPONSE;
+                    break;
+                case WRITING_RESPONSE:
+                    if (!mTlsChannel.write(mResponseBuffer)) {
+                        return;
+                    }
+                    mResponseBuffer = null;
+                    mRequestParser.reset();
+                    mLastActivityTime = Clock.getInstance().currentTimeMillis();
+                    mConnectionAdmission.markIdle(this);
+                    if (mIsCloseAfterResponse) {
+                        close();
+                        return;
+                    }
+                    mState = State.READING_REQUEST;
+                    break;
+                case CLOSED:
+                    return;
+                }
+            }
+        }
+
+        private void appendRequestBytes() throws IOException {
+            ByteBuffer appInBuffer = mTlsChannel.getApplicationInput();
+            appInBuffer.flip();
+            int count = appInBuffer.remaining();
+            long maxLength = MAX_REQUEST_HEADER_BYTES + Protocol.MAX_REQUEST_BODY_BYTES;
+            if (mRequestLength + count > maxLength) {
+                throw new IOException("request exceeds maximum size");
+            }
+            if (mRequestLength + count > mRequestBytes.length) {
+                mRequestBytes = Arrays.copyOf(
+                        mRequestBytes, (int)Math.min(maxLength, Math.max(2*mRequestBytes.length, mRequestLength + count)));
+            }
+            appInBuffer.get(mRequestBytes, mRequestLength, count);
+            mRequestLength += count;
+            appInBuffer.clear();
+        }
+
+        private boolean dispatchRequest() throws IOException {
+            // Returns true when a complete request was dispatched to a worker thread
+            // The parser resumes where it left off; it's reset once the response is written
+            int headerLength = mRequestParser.parse(mRequestBytes, mRequestLength);
+            if (headerLength == 0) {
+                return false;
+            }
+            NanoHTTPD.Method method = mRequestParser.getMethod();
+            String uri = mRequestParser.getUri();
+            int queryStart = uri.indexOf('?');
+            if (queryStart >= 0) {
+                uri = uri.substring(0, queryStart);
+            }
+            final Map<String, String> headers = mRequestParser.getHeaders();
+            if (headers.containsKey("transfer-encoding")) {
+                // Friend clients always send a content length
+                throw new IOException("unsupported transfer encoding");
+            }
+            long contentLength = 0;
+            if (headers.containsKey("content-length")) {
+                try {
+                    contentLength = Long.parseLong(headers.get("content-length"));
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid content length");
+                }
+                if (contentLength < 0 || contentLength > Protocol.MAX_REQUEST_BODY_BYTES) {
+                    throw new IOException("invalid content length");
+                }
+            }
+            int bodyStart = headerLength;
+            int requestEnd = bodyStart + (int)contentLength;
+            if (mRequestLength < requestEnd) {
+                return false;
+            }
+            final byte[] body = Arrays.copyOfRange(mRequestBytes, bodyStart, requestEnd);
+            System.arraycopy(mRequestBytes, requestEnd, mRequestBytes, 0, mRequestLength - requestEnd);
+            mRequestLength -= requestEnd;
+            mIsCloseAfterResponse =
+                    "close".equalsIgnoreCase(headers.get("connection")) || !mRequestParser.isHttp11();
+
+            final NanoHTTPD.Method requestMethod = method;
+            final String requestUri = uri;
+            final String peerCertificateFingerprint = mPeerCertificateFingerprint;
+            mState = State.SERVING_REQUEST;
+            mConnectionAdmission.markBusy(this);
+            // No reads while the request is served; responses are written in request order
+            mSelectionKey.interestOps(0);
+            try {
+                mWebServer.exec(new Runnable() {
+                    @Override
+                    public void run() {
+                        ByteBuffer responseBuffer;
+                        try {
+                            NanoHTTPD.Response response = mWebServer.serve(
+                                    peerCertificateFingerprint, requestMethod, requestUri, headers, new ByteArrayInputStream(body));
+                            response.setRequestMethod(requestMethod);
+                            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                            response.writeTo(outputStream);
+                            responseBuffer = ByteBuffer.wrap(outputStream.toByteArray());
+                        } catch (RuntimeException e) {
+                            Log.addEntry(LOG_TAG, "failed to serve request: " + e.toString());
+                            responseBuffer = null;
+                        }
+                        completeServing(responseBuffer);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The worker pool is shut down
+                completeServing(null);
+            }
+            return true;
+        }
+
+        private void completeServing(ByteBuffer responseBuffer) {
+            // Hands the response to the selector thread to write; without one, an error response
+            // is written and the connection closed
+            if (responseBuffer == null) {
+                mIsCloseAfterResponse = true;
+                responseBuffer = ByteBuffer.wrap(ERROR_RESPONSE);
+            }
+            mResponseBuffer = responseBuffer;
+            mServedConnections.add(this);
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void close() {
+            // Called on the selector thread only, including when reaped
+            if (mState == State.CLOSED) {
+                return;
+            }
+            mState = State.CLOSED;
+            if (mTlsChannel != null) {
+                mTlsChannel.close();
+            } else {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                }
+            }
+            mConnectionAdmission.removeConnection(this);
+        }
+    }
+}
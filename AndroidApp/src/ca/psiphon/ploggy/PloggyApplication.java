@@ -30,8 +30,7 @@ public class PloggyApplication extends Application {
     @Override
     public void onCreate() {        
         Utils.setApplicationContext(this);
-        // TODO: distinct instance of preferences for each persona
-        // e.g., setDefaultValues("persona1");
+        // Default persona; the Engine sets defaults for other personas' preferences
         PreferenceManager.setDefaultValues(this, R.xml.preferences, true);
         Log.initialize();
         Events.initialize();
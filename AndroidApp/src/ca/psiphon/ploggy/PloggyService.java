@@ -38,6 +38,7 @@ public class PloggyService extends Service {
     private static final String LOG_TAG = "Service";
 
     Engine mEngine;
+    Engine.StartupStage mStartupStage;
 
     public PloggyService() {
     }
@@ -52,6 +53,7 @@ public class PloggyService extends Service {
         try {
             Events.register(this);
             mEngine = new Engine(this);
+            mStartupStage = null;
             mEngine.start();
         } catch (Utils.ApplicationError e) {
             Log.addEntry(LOG_TAG, "failed to start Engine");
@@ -107,6 +109,14 @@ public class PloggyService extends Service {
                 .setContentTitle(contentTitle)
                 .setSmallIcon(iconResourceId);
 
+        // Show start up progress until friend pulls are scheduled
+        int completedStartupStages = (mStartupStage == null) ? 0 : mStartupStage.ordinal() + 1;
+        if (completedStartupStages <= Engine.StartupStage.CIRCUIT_ESTABLISHED.ordinal() + 1) {
+            notificationBuilder.setContentText(
+                getResources().getStringArray(
+                    R.array.foreground_service_notification_startup_progress)[completedStartupStages]);
+        }
+
         Notification notification;
         if (newMessages != null && newMessages.size() > 0) {
             Notification.InboxStyle inboxStyleBuilder =
@@ -141,4 +151,12 @@ public class PloggyService extends Service {
             startForeground(R.string.foregroundServiceNotificationId, createNotification(mEngine.getNewMessages()));
         }
     }
+
+    @Subscribe
+    public synchronized void onEngineStartupProgress(Events.EngineStartupProgress engineStartupProgress) {
+        mStartupStage = engineStartupProgress.mStage;
+        if (mEngine != null && mStartupStage.ordinal() <= Engine.StartupStage.PULLS_SCHEDULED.ordinal()) {
+            startForeground(R.string.foregroundServiceNotificationId, createNotification(mEngine.getNewMessages()));
+        }
+    }
 }
@@ -34,10 +34,25 @@ public class Protocol {
 
     public static final String PULL_STATUS_REQUEST_PATH = "/pullStatus";
 
+    // Push and pull in one request: the request body is the client's status and the response
+    // body is the server's status (304 when unchanged; 204 when the server isn't sharing)
+    public static final String EXCHANGE_STATUS_REQUEST_PATH = "/exchangeStatus";
+
     // TODO: limits in place for prototype, which is currently sending all messages in one blob
     public static int MAX_MESSAGE_LENGTH = 100;
     public static int MAX_MESSAGE_COUNT = 50;
 
+    // Response bodies larger than this are rejected by WebClient; request bodies by WebServer.
+    // For compressed bodies, the limits apply to both the compressed and decompressed size.
+    public static long MAX_RESPONSE_BODY_BYTES = 1024*1024;
+    public static long MAX_REQUEST_BODY_BYTES = 1024*1024;
+
+    public static String getStatusEntityTag(String statusJson) throws Utils.ApplicationError {
+        // Pull responses are tagged with a digest of the encoded status, so an unchanged status
+        // has the same tag across requests and web server restarts
+        return "\"" + Utils.encodeBase64(X509.getFingerprint(statusJson)) + "\"";
+    }
+
     public static boolean isValidNickname(String nickname) {
         // TODO: valid characters?
         return nickname.length() > 0;
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When a persona's friend requests run.
+ *
+ * Without a WakeWindowScheduler, each friend has its own fixed-delay pull timer. With one, there
+ * are no per-friend timers; a single wake window timer, shared by all personas, runs each
+ * persona's due pulls and pending pushes together.
+ *
+ * The Engine supplies the request tasks and the executor, made by the current Clock, so the
+ * Engine's schedule may be run in virtual time.
+ */
+public class PullSchedule {
+
+    public interface RequestTasks {
+        public void submitTask(Runnable task);
+        public Runnable makePullTask(String friendId);
+        public Runnable makePushTask(String friendId);
+        // Null when the friend doesn't support exchange; a separate push and pull are made instead
+        public Runnable makeExchangeTask(String friendId);
+    }
+
+    private final ScheduledExecutorService mExecutor;
+    private final long mPeriodMilliseconds;
+    private final WakeWindowScheduler mWakeWindowScheduler;
+    private final RequestTasks mRequestTasks;
+    private final HashMap<String, ScheduledFuture<?>> mFriendPullTasks;
+
+    public PullSchedule(
+            ScheduledExecutorService executor,
+            long periodMilliseconds,
+            WakeWindowScheduler wakeWindowScheduler,
+            RequestTasks requestTasks) {
+        mExecutor = executor;
+        mPeriodMilliseconds = periodMilliseconds;
+        mWakeWindowScheduler = wakeWindowScheduler;
+        mRequestTasks = requestTasks;
+        mFriendPullTasks = new HashMap<String, ScheduledFuture<?>>();
+    }
+
+    public static ScheduledFuture<?> scheduleWakeWindows(
+            ScheduledExecutorService executor, long periodMilliseconds, Runnable wakeWindowTask) {
+        // The one wake window timer; the task calls runWakeWindow for each persona's schedule
+        return executor.scheduleWithFixedDelay(wakeWindowTask, 0, periodMilliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isAligned() {
+        return mWakeWindowScheduler != null;
+    }
+
+    public synchronized void setFriends(Collection<String> friendIds) {
+        // Starts pulling the current friends, each with an immediate first pull; removed friends
+        // are no longer pulled
+        if (mWakeWindowScheduler != null) {
+            mWakeWindowScheduler.setFriends(friendIds);
+            return;
+        }
+        Iterator<Map.Entry<String, ScheduledFuture<?>>> iterator = mFriendPullTasks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, ScheduledFuture<?>> entry = iterator.next();
+            if (!friendIds.contains(entry.getKey())) {
+                entry.getValue().cancel(false);
+                iterator.remove();
+            }
+        }
+        for (String friendId : friendIds) {
+            schedulePull(friendId, true);
+        }
+    }
+
+    public synchronized void schedulePull(String friendId, boolean immediateInitialPull) {
+        if (mWakeWindowScheduler != null) {
+            // In alignment mode, there's no per-friend timer; the next wake window picks up due pulls.
+            // When called after the friend pushed, this defers the friend's pull just as the
+            // per-friend reschedule does.
+            if (!immediateInitialPull) {
+                mWakeWindowScheduler.markReceived(friendId);
+            }
+            return;
+        }
+        // Cancel any existing pull schedule for this friend
+        ScheduledFuture<?> existingTask = mFriendPullTasks.remove(friendId);
+        if (existingTask != null) {
+            existingTask.cancel(false);
+        }
+        // TODO: scheduleAtFixedRate has backlog issue
+        mFriendPullTasks.put(
+                friendId,
+                mExecutor.scheduleWithFixedDelay(
+                        mRequestTasks.makePullTask(friendId),
+                        immediateInitialPull ? 0 : mPeriodMilliseconds,
+                        mPeriodMilliseconds,
+                        TimeUnit.MILLISECONDS));
+    }
+
+    public synchronized WakeWindowScheduler.Window runWakeWindow(boolean isSharing) {
+        // Submits the window's due pulls and, when sharing, pending pushes, to run concurrently
+        WakeWindowScheduler.Window window = mWakeWindowScheduler.beginWindow();
+        // A friend due for both a pull and a push gets a single exchange request
+        Set<String> pushFriendIds = new HashSet<String>();
+        if (isSharing) {
+            pushFriendIds.addAll(window.mPushFriendIds);
+        }
+        for (String friendId : window.mPullFriendIds) {
+            Runnable exchangeTask = pushFriendIds.contains(friendId) ? mRequestTasks.makeExchangeTask(friendId) : null;
+            if (exchangeTask != null) {
+                pushFriendIds.remove(friendId);
+                mRequestTasks.submitTask(exchangeTask);
+            } else {
+                mRequestTasks.submitTask(mRequestTasks.makePullTask(friendId));
+            }
+        }
+        for (String friendId : pushFriendIds) {
+            mRequestTasks.submitTask(mRequestTasks.makePushTask(friendId));
+        }
+        return window;
+    }
+}
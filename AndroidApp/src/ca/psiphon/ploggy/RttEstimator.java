@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.util.Arrays;
+
+/**
+ * Round trip time estimate for one friend, used to derive request timeouts.
+ *
+ * Uses the TCP retransmission timer computation (RFC 6298): the timeout is the smoothed RTT
+ * plus four times the RTT variance, clamped to a floor and ceiling. Until there's a sample, the
+ * timeout is the ceiling.
+ *
+ * TCP doubles the timeout after each failure. Here, retries are already spaced a pull period
+ * apart, so an offline friend keeps its short timeout; only every PROBE_INTERVAL-th consecutive
+ * failed attempt waits the full ceiling, so a friend that has become slower than its estimate
+ * still gets a chance to produce a new sample.
+ *
+ * Recent samples are also retained, for percentiles such as the hedged connect delay.
+ */
+public class RttEstimator {
+
+    public static class Snapshot {
+        public final long mSmoothedRttMilliseconds;
+        public final long mRttVarianceMilliseconds;
+        public final long mTimeoutMilliseconds;
+        public final long mSampleCount;
+        public final int mConsecutiveFailures;
+
+        public Snapshot(
+                long smoothedRttMilliseconds,
+                long rttVarianceMilliseconds,
+                long timeoutMilliseconds,
+                long sampleCount,
+                int consecutiveFailures) {
+            mSmoothedRttMilliseconds = smoothedRttMilliseconds;
+            mRttVarianceMilliseconds = rttVarianceMilliseconds;
+            mTimeoutMilliseconds = timeoutMilliseconds;
+            mSampleCount = sampleCount;
+            mConsecutiveFailures = consecutiveFailures;
+        }
+    }
+
+    private static final int PROBE_INTERVAL = 4;
+    private static final int RECENT_SAMPLE_COUNT = 32;
+    private static final int MIN_PERCENTILE_SAMPLE_COUNT = 8;
+
+    private final int mFloorMilliseconds;
+    private final int mCeilingMilliseconds;
+    private long mSmoothedRttMilliseconds;
+    private long mRttVarianceMilliseconds;
+    private long mSampleCount;
+    private int mConsecutiveFailures;
+    private final long[] mRecentSamples;
+
+    public RttEstimator(int floorMilliseconds, int ceilingMilliseconds) {
+        mFloorMilliseconds = floorMilliseconds;
+        mCeilingMilliseconds = ceilingMilliseconds;
+        mSmoothedRttMilliseconds = 0;
+        mRttVarianceMilliseconds = 0;
+        mSampleCount = 0;
+        mConsecutiveFailures = 0;
+        mRecentSamples = new long[RECENT_SAMPLE_COUNT];
+    }
+
+    public synchronized void addSample(long rttMilliseconds) {
+        if (mSampleCount == 0) {
+            mSmoothedRttMilliseconds = rttMilliseconds;
+            mRttVarianceMilliseconds = rttMilliseconds/2;
+        } else {
+            // RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|, then SRTT = 7/8 SRTT + 1/8 R
+            mRttVarianceMilliseconds =
+                    (3*mRttVarianceMilliseconds + Math.abs(mSmoothedRttMilliseconds - rttMilliseconds))/4;
+            mSmoothedRttMilliseconds = (7*mSmoothedRttMilliseconds + rttMilliseconds)/8;
+        }
+        mRecentSamples[(int)(mSampleCount % RECENT_SAMPLE_COUNT)] = rttMilliseconds;
+        mSampleCount++;
+        mConsecutiveFailures = 0;
+    }
+
+    public synchronized void addFailure() {
+        mConsecutiveFailures++;
+    }
+
+    public synchronized int getTimeoutMilliseconds() {
+        if (mSampleCount == 0 ||
+                (mConsecutiveFailures > 0 && mConsecutiveFailures % PROBE_INTERVAL == 0)) {
+            return mCeilingMilliseconds;
+        }
+        long timeout = mSmoothedRttMilliseconds + 4*mRttVarianceMilliseconds;
+        return (int)Math.max(mFloorMilliseconds, Math.min(mCeilingMilliseconds, timeout));
+    }
+
+    public synchronized long getPercentileMilliseconds(double percentile) {
+        // Over the recent samples; returns -1 when there are too few samples
+        int count = (int)Math.min(mSampleCount, RECENT_SAMPLE_COUNT);
+        if (count < MIN_PERCENTILE_SAMPLE_COUNT) {
+            return -1;
+        }
+        long[] samples = Arrays.copyOf(mRecentSamples, count);
+        Arrays.sort(samples);
+        int rank = (int)Math.ceil(percentile/100.0*count);
+        return samples[Math.max(0, rank - 1)];
+    }
+
+    public synchronized Snapshot getSnapshot() {
+        return new Snapshot(
+                mSmoothedRttMilliseconds,
+                mRttVarianceMilliseconds,
+                getTimeoutMilliseconds(),
+                mSampleCount,
+                mConsecutiveFailures);
+    }
+}
@@ -19,18 +19,51 @@
 
 package ca.psiphon.ploggy;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.cert.CertificateEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
 import ca.psiphon.ploggy.Utils.ApplicationError;
+import ch.boye.httpclientandroidlib.conn.ssl.SSLSocketFactory;
+import fi.iki.elonen.NanoHTTPD;
 
 /**
  * Component tests. 
@@ -42,6 +75,29 @@ import ca.psiphon.ploggy.Utils.ApplicationError;
  * - HiddenService
  * - WebClient
  * - WebServer
+ * - Multiple personas in one Engine and Tor process (benchmarked: Engine start up, 1 vs. 3)
+ * - Tor stream isolation (benchmarked: concurrent request throughput with vs. without)
+ *
+ * Covered (by local simulation, in virtual time):
+ * - Clock
+ * - WakeWindowScheduler
+ * - Per-friend and aligned pull schedules at scale
+ *
+ * Covered (locally):
+ * - Metrics
+ * - Compression
+ * - TransportSecurity context cache (benchmarked: uncached vs. cached setup)
+ * - Adaptive request timeouts (benchmarked, in simulation and with WebClient: worker occupancy with offline friends)
+ * - TLS session resumption (by direct request after dropping pooled connections)
+ * - NioWebClient (by direct request)
+ * - Non-blocking WebServer (load tested: concurrent keep-alive clients, blocking vs. non-blocking)
+ * - ConnectionAdmission (limits, eviction and idle reaping, in virtual time)
+ * - Streaming request body parsing (short reads, compressed, oversized and truncated bodies)
+ * - Cached self status encoding (benchmarked: CPU time and allocations per pull, vs. encoding per pull)
+ * - NanoHTTPD response writer (benchmarked: responses/s. in memory and over loopback TLS)
+ * - HttpRequestParser (split and pipelined requests; benchmarked: parse time and allocations per request)
+ * - NanoHTTPD request body buffering (in memory below the threshold, temp files above it)
+ * - Per-session peer identity (benchmarked: per-request cost, hashing vs. cached on the TLS session)
  */
 public class Tests {
     
@@ -62,13 +118,19 @@ public class Tests {
     
     private static class MockRequestHandler implements WebServer.RequestHandler {
         
-        private ExecutorService mThreadPool = Executors.newCachedThreadPool();
+        private ExecutorService mThreadPool;
         private Date mMockTimestamp;
         private double mMockLatitude;
         private double mMockLongitude;
         private String mMockAddress;
+        private EncodedStatus mEncodedMockStatus;
 
         MockRequestHandler() {
+            this(Executors.newCachedThreadPool());
+        }
+
+        MockRequestHandler(ExecutorService threadPool) {
+            mThreadPool = threadPool;
             mMockTimestamp = new Date();
             mMockLatitude = Math.random()*100.0 - 50.0;
             mMockLongitude = Math.random()*100.0 - 50.0;
@@ -95,18 +157,1738 @@ public class Tests {
                         mMockAddress));
         }
 
+        public synchronized EncodedStatus getEncodedMockStatus() throws ApplicationError {
+            if (mEncodedMockStatus == null) {
+                mEncodedMockStatus = EncodedStatus.encode(getMockStatus(), 1);
+            }
+            return mEncodedMockStatus;
+        }
+
         @Override
-        public Data.Status handlePullStatusRequest(String friendId) throws ApplicationError {
+        public EncodedStatus handlePullStatusRequest(String friendId) throws ApplicationError {
             Log.addEntry(LOG_TAG, "handle pull status request...");
-            return getMockStatus();
+            return getEncodedMockStatus();
         }
 
         @Override
         public void handlePushStatusRequest(String friendId, Data.Status status) throws ApplicationError {
             Log.addEntry(LOG_TAG, "handle push status request...");
         }
+
+        @Override
+        public EncodedStatus handleExchangeStatusRequest(String friendId, Data.Status status) throws ApplicationError {
+            Log.addEntry(LOG_TAG, "handle exchange status request...");
+            return getEncodedMockStatus();
+        }
     }
     
+    private static class MockSocksProxy {
+        // A SOCKS4a proxy that relays every stream to one local port. Replies to connect
+        // requests are delayed, except for hedged attempts, as with a slow first circuit.
+        // When black-holed, connect requests get no reply, as with an unreachable hidden service.
+
+        private final ServerSocket mServerSocket;
+        private final int mTargetPort;
+        private final long mReplyDelayMilliseconds;
+        private final ExecutorService mThreadPool;
+        public final List<String> mUserIds = Collections.synchronizedList(new ArrayList<String>());
+        public volatile boolean mIsBlackHoled = false;
+
+        MockSocksProxy(int targetPort, long replyDelayMilliseconds) throws IOException {
+            mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+            mTargetPort = targetPort;
+            mReplyDelayMilliseconds = replyDelayMilliseconds;
+            mThreadPool = Executors.newCachedThreadPool();
+            mThreadPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            final Socket socket = mServerSocket.accept();
+                            mThreadPool.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    relay(socket);
+                                }
+                            });
+                        }
+                    } catch (IOException e) {
+                        // Stopped
+                    }
+                }
+            });
+        }
+
+        public int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        public void stop() {
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+            }
+            mThreadPool.shutdownNow();
+        }
+
+        private void relay(Socket socket) {
+            Socket targetSocket = null;
+            try {
+                DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                byte[] header = new byte[8];
+                inputStream.readFully(header);
+                String userId = readNullTerminated(inputStream);
+                mUserIds.add(userId);
+                readNullTerminated(inputStream);
+                if (mIsBlackHoled) {
+                    // Held until the client gives up
+                    while (inputStream.read() != -1) {
+                    }
+                    return;
+                }
+                if (!userId.contains("-hedge-")) {
+                    Thread.sleep(mReplyDelayMilliseconds);
+                }
+                targetSocket = new Socket("127.0.0.1", mTargetPort);
+                socket.getOutputStream().write(new byte[] {0x00, 0x5a, 0, 0, 0, 0, 0, 0});
+                final InputStream targetInputStream = targetSocket.getInputStream();
+                final OutputStream outputStream = socket.getOutputStream();
+                mThreadPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Utils.copyStream(targetInputStream, outputStream);
+                        } catch (IOException e) {
+                        }
+                    }
+                });
+                Utils.copyStream(inputStream, targetSocket.getOutputStream());
+            } catch (IOException e) {
+            } catch (InterruptedException e) {
+            } finally {
+                try {
+                    socket.close();
+                    if (targetSocket != null) {
+                        targetSocket.close();
+                    }
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        private static String readNullTerminated(DataInputStream inputStream) throws IOException {
+            StringBuilder value = new StringBuilder();
+            byte b;
+            while ((b = inputStream.readByte()) != 0) {
+                value.append((char)b);
+            }
+            return value.toString();
+        }
+    }
+
+    private static void runWakeWindowSchedulerTests() throws Utils.ApplicationError {
+        final long period = 10*60*1000;
+        Clock.SimulatedClock clock = new Clock.SimulatedClock(0);
+        Clock previousClock = Clock.getInstance();
+        Clock.setInstance(clock);
+        try {
+            WakeWindowScheduler scheduler = new WakeWindowScheduler(period);
+            scheduler.setFriends(Arrays.asList("a", "b", "c"));
+
+            // First window pulls all friends
+            WakeWindowScheduler.Window window = scheduler.beginWindow();
+            if (window.mPullFriendIds.size() != 3 || window.mPushFriendIds.size() != 0) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected initial wake window");
+            }
+            for (String friendId : window.mPullFriendIds) {
+                scheduler.markReceived(friendId);
+                scheduler.endPull(friendId);
+            }
+
+            // Friend "a" pushes mid-period, so it's skipped in the next window; a pending push is batched
+            clock.advance(period - 60*1000);
+            scheduler.markReceived("a");
+            scheduler.addPendingPush("b");
+            clock.advance(60*1000);
+            window = scheduler.beginWindow();
+            if (window.mPullFriendIds.size() != 2 || window.mPullFriendIds.contains("a") ||
+                    !window.mPushFriendIds.equals(Arrays.asList("b"))) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected aligned wake window");
+            }
+            if (scheduler.getFreshnessMilliseconds("a") != 60*1000 ||
+                    scheduler.getFreshnessMilliseconds("b") != period) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected freshness");
+            }
+
+            // In-flight pulls aren't duplicated; one wakeup per window regardless of friend count
+            window = scheduler.beginWindow();
+            if (window.mPullFriendIds.size() != 0) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected duplicate pull");
+            }
+
+            // Due exactly when the status is half a period old
+            scheduler.markReceived("a");
+            long receivedTimestamp = clock.currentTimeMillis();
+            if (scheduler.getFriendIdsDueAt(receivedTimestamp + period/2 - 1).contains("a") ||
+                    !scheduler.getFriendIdsDueAt(receivedTimestamp + period/2).contains("a")) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected due boundary");
+            }
+            clock.advance(60*60*1000);
+            if (scheduler.getWakeupsPerHour() != 0) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected wakeups per hour");
+            }
+        } finally {
+            Clock.setInstance(previousClock);
+        }
+    }
+
+    private static class PullSimulation implements PullSchedule.RequestTasks {
+        // Stands in for the Engine's request tasks: a pull completes after a simulated latency,
+        // then marks the friend received and ends the pull, as Engine.completePull and endPull do
+        private final Clock.SimulatedClock mClock;
+        private final ScheduledExecutorService mExecutor;
+        private final WakeWindowScheduler mWakeWindowScheduler;
+        private final Random mRandom;
+        private final long[] mLastReceivedTimestamps;
+        private int mRequestCount = 0;
+        private int mWakeupCount = 0;
+        private long mLastWakeupTimestamp = -1;
+        private long mTotalLatency = 0;
+        private long mMaxStatusAge = 0;
+
+        PullSimulation(
+                Clock.SimulatedClock clock,
+                ScheduledExecutorService executor,
+                WakeWindowScheduler wakeWindowScheduler,
+                int friendCount) {
+            mClock = clock;
+            mExecutor = executor;
+            mWakeWindowScheduler = wakeWindowScheduler;
+            mRandom = new Random(0);
+            mLastReceivedTimestamps = new long[friendCount];
+            Arrays.fill(mLastReceivedTimestamps, -1);
+        }
+
+        @Override
+        public void submitTask(Runnable task) {
+            mExecutor.execute(task);
+        }
+
+        @Override
+        public Runnable makePullTask(final String friendId) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    pull(friendId);
+                }
+            };
+        }
+
+        @Override
+        public Runnable makePushTask(String friendId) {
+            throw new UnsupportedOperationException("no pushes in simulation");
+        }
+
+        @Override
+        public Runnable makeExchangeTask(String friendId) {
+            return null;
+        }
+
+        private void pull(final String friendId) {
+            // A request wakes the device, unless it's already awake for another request at this instant
+            long now = mClock.currentTimeMillis();
+            if (now != mLastWakeupTimestamp) {
+                mWakeupCount++;
+                mLastWakeupTimestamp = now;
+            }
+            mRequestCount++;
+            // Simulated hidden service request latency of 2-20 seconds
+            long latency = 2000 + mRandom.nextInt(18000);
+            mTotalLatency += latency;
+            mExecutor.schedule(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            received(Integer.parseInt(friendId));
+                            if (mWakeWindowScheduler != null) {
+                                mWakeWindowScheduler.markReceived(friendId);
+                                mWakeWindowScheduler.endPull(friendId);
+                            }
+                        }
+                    },
+                    latency,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        private void received(int friend) {
+            long now = mClock.currentTimeMillis();
+            if (mLastReceivedTimestamps[friend] != -1) {
+                mMaxStatusAge = Math.max(mMaxStatusAge, now - mLastReceivedTimestamps[friend]);
+            }
+            mLastReceivedTimestamps[friend] = now;
+        }
+
+        String summary(long durationMilliseconds) {
+            return String.format(
+                    "%d requests, %.1f wakeups/hour, %d ms mean latency, %d s max status age",
+                    mRequestCount,
+                    mWakeupCount/(durationMilliseconds/(60*60*1000.0)),
+                    mRequestCount > 0 ? mTotalLatency/mRequestCount : 0,
+                    mMaxStatusAge/1000);
+        }
+    }
+
+    private static void runPullScheduleSimulationTests() throws Utils.ApplicationError {
+        // Simulate a week of pulls for 500 friends through the Engine's PullSchedule, in both
+        // modes, advancing virtual time
+        final int friendCount = 500;
+        final long period = 10*60*1000;
+        final long duration = 7*24*60*60*1000L;
+        final long expectedPullsPerFriend = duration/period + 1;
+        List<String> friendIds = new ArrayList<String>();
+        for (int i = 0; i < friendCount; i++) {
+            friendIds.add(Integer.toString(i));
+        }
+        Clock previousClock = Clock.getInstance();
+        try {
+            // Per-friend timers. In the Engine, each blocking pull holds its fixed-delay timer for
+            // the request latency, so friends' timers drift apart; here, friends are added at
+            // different times instead.
+            Clock.SimulatedClock clock = new Clock.SimulatedClock(0);
+            Clock.setInstance(clock);
+            ScheduledExecutorService perFriendExecutor = clock.newScheduledThreadPool(30);
+            PullSimulation perFriend = new PullSimulation(clock, perFriendExecutor, null, friendCount);
+            PullSchedule perFriendSchedule = new PullSchedule(perFriendExecutor, period, null, perFriend);
+            long[] addTimestamps = new long[friendCount];
+            Random random = new Random(1);
+            for (int i = 0; i < friendCount; i++) {
+                addTimestamps[i] = random.nextInt((int)period);
+            }
+            Arrays.sort(addTimestamps);
+            for (int i = 0; i < friendCount; i++) {
+                clock.advance(addTimestamps[i] - clock.currentTimeMillis());
+                perFriendSchedule.schedulePull(friendIds.get(i), true);
+            }
+            clock.advance(duration - clock.currentTimeMillis());
+            perFriendExecutor.shutdown();
+            Log.addEntry(LOG_TAG, "simulated per-friend pulls: " + perFriend.summary(duration));
+
+            // Aligned wake windows
+            clock = new Clock.SimulatedClock(0);
+            Clock.setInstance(clock);
+            ScheduledExecutorService alignedExecutor = clock.newScheduledThreadPool(30);
+            WakeWindowScheduler scheduler = new WakeWindowScheduler(period);
+            PullSimulation aligned = new PullSimulation(clock, alignedExecutor, scheduler, friendCount);
+            final PullSchedule alignedSchedule = new PullSchedule(alignedExecutor, period, scheduler, aligned);
+            alignedSchedule.setFriends(friendIds);
+            PullSchedule.scheduleWakeWindows(
+                    alignedExecutor,
+                    period,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            alignedSchedule.runWakeWindow(false);
+                        }
+                    });
+            clock.advance(duration);
+            alignedExecutor.shutdown();
+            Log.addEntry(LOG_TAG, "simulated aligned pulls: " + aligned.summary(duration));
+
+            if (perFriend.mRequestCount > friendCount*expectedPullsPerFriend ||
+                    perFriend.mRequestCount < friendCount*(expectedPullsPerFriend - 1) ||
+                    aligned.mRequestCount != friendCount*expectedPullsPerFriend) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected simulated request count");
+            }
+            if (aligned.mWakeupCount != expectedPullsPerFriend ||
+                    perFriend.mWakeupCount < 100*aligned.mWakeupCount) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected simulated wakeup count");
+            }
+            // Status age is bounded by the pull period plus request latency variation
+            if (perFriend.mMaxStatusAge > period + 20000 || aligned.mMaxStatusAge > period + 20000) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected simulated status age");
+            }
+        } finally {
+            Clock.setInstance(previousClock);
+        }
+    }
+
+    private static void runMetricsTests() throws Utils.ApplicationError {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        if (histogram.getCount() != 100 ||
+                histogram.getMax() != 100 ||
+                histogram.getPercentile(50) != 50 ||
+                histogram.getPercentile(90) != 100 ||
+                histogram.getPercentile(99) != 100) {
+            throw new Utils.ApplicationError(LOG_TAG, "unexpected histogram percentiles");
+        }
+
+        // Snapshot JSON round trip
+        String friendId = "runMetricsTests";
+        Metrics metrics = Metrics.getInstance();
+        Metrics.FriendMetrics friendMetrics = metrics.getFriendMetrics(friendId);
+        friendMetrics.mPullSuccesses.increment();
+        friendMetrics.mPullSuccesses.increment();
+        friendMetrics.mPullFailures.increment();
+        friendMetrics.mRequestLatencyMilliseconds.record(1500);
+        try {
+            Metrics.Snapshot snapshot = Json.fromJson(metrics.getSnapshotJson(), Metrics.Snapshot.class);
+            Metrics.FriendSnapshot friendSnapshot = snapshot.mFriends.get(friendId);
+            if (friendSnapshot == null ||
+                    friendSnapshot.mPullSuccesses != 2 ||
+                    friendSnapshot.mPullFailures != 1 ||
+                    friendSnapshot.mRequestLatencyMilliseconds.mCount != 1 ||
+                    friendSnapshot.mRequestLatencyMilliseconds.mP50 != 1500) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected metrics snapshot");
+            }
+        } finally {
+            metrics.removeFriendMetrics(friendId);
+        }
+    }
+
+    private static class MockConnection implements ConnectionAdmission.Connection {
+        public boolean mIsClosed = false;
+
+        @Override
+        public void close() {
+            mIsClosed = true;
+        }
+    }
+
+    private static void runConnectionAdmissionTests() throws Utils.ApplicationError {
+        Clock.SimulatedClock clock = new Clock.SimulatedClock(0);
+        Clock previousClock = Clock.getInstance();
+        Clock.setInstance(clock);
+        try {
+            ConnectionAdmission admission = new ConnectionAdmission(3, 2, 1000);
+            MockConnection[] connections = new MockConnection[5];
+            for (int i = 0; i < connections.length; i++) {
+                connections[i] = new MockConnection();
+            }
+
+            // Per-peer limit
+            if (!admission.admitConnection(connections[0]) || !admission.admitPeer(connections[0], "a") ||
+                    !admission.admitConnection(connections[1]) || !admission.admitPeer(connections[1], "a") ||
+                    !admission.admitConnection(connections[2]) || admission.admitPeer(connections[2], "a")) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected per-peer admission");
+            }
+            admission.markBusy(connections[0]);
+            admission.markBusy(connections[1]);
+            clock.advance(100);
+
+            // At the global limit, a new connection is rejected rather than evicting an established one
+            if (!admission.admitConnection(connections[2]) || admission.admitConnection(connections[3])) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected global admission");
+            }
+            admission.markIdle(connections[1]);
+            if (admission.admitConnection(connections[3]) || connections[1].mIsClosed) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected idle connection eviction");
+            }
+
+            // Idle reaping; a connection before its handshake isn't idle
+            clock.advance(2000);
+            admission.reapIdleConnections();
+            if (!connections[1].mIsClosed || connections[0].mIsClosed || connections[2].mIsClosed) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected idle reaping");
+            }
+            if (!admission.admitPeer(connections[2], "b") || !admission.admitConnection(connections[3]) ||
+                    admission.admitConnection(connections[4])) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected admission after reaping");
+            }
+            admission.markIdle(connections[0]);
+            admission.markIdle(connections[2]);
+            clock.advance(999);
+            admission.reapIdleConnections();
+            if (connections[0].mIsClosed || connections[2].mIsClosed) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected early reaping");
+            }
+            clock.advance(1);
+            admission.reapIdleConnections();
+            if (!connections[0].mIsClosed || !connections[2].mIsClosed || connections[3].mIsClosed) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected idle reaping");
+            }
+            admission.closeAllConnections();
+            if (!connections[3].mIsClosed) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected open connection");
+            }
+        } finally {
+            Clock.setInstance(previousClock);
+        }
+    }
+
+    private static void runCompressionTests() throws Utils.ApplicationError {
+        try {
+            StringBuilder messages = new StringBuilder();
+            for (int i = 0; i < Protocol.MAX_MESSAGE_COUNT; i++) {
+                messages.append("{\"timestamp\":\"2013-10-01T12:00:00-0400\",\"content\":\"message\"},");
+            }
+            byte[] body = messages.toString().getBytes("UTF-8");
+            byte[] compressedBody = Compression.compress(body);
+            if (compressedBody.length >= body.length) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected compressed size");
+            }
+            byte[] decompressedBody = Utils.readInputStreamToBytes(
+                    Compression.decompress(new ByteArrayInputStream(compressedBody), body.length));
+            if (!Arrays.equals(body, decompressedBody)) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected decompressed value");
+            }
+            boolean failed = false;
+            try {
+                Utils.readInputStreamToBytes(
+                        Compression.decompress(new ByteArrayInputStream(compressedBody), body.length - 1));
+            } catch (IOException e) {
+                failed = true;
+            }
+            if (!failed) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected unbounded decompression");
+            }
+            Log.addEntry(LOG_TAG, String.format("compressed %d bytes to %d bytes", body.length, compressedBody.length));
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    private static void runRequestParserTests() throws Utils.ApplicationError {
+        // A push as sent by WebClient, with headers WebServer doesn't read
+        final int parseCount = 100000;
+        try {
+            byte[] request = (
+                    "POST " + Protocol.PUSH_STATUS_REQUEST_PATH + "?x=1 HTTP/1.1\r\n" +
+                    "Content-Length: 1234\r\n" +
+                    "Content-Type: application/json; charset=UTF-8\r\n" +
+                    "Content-Encoding: gzip\r\n" +
+                    "Accept-Encoding: gzip\r\n" +
+                    "Host: abcdefghijklmnop.onion:443\r\n" +
+                    "Connection: Keep-Alive\r\n" +
+                    "User-Agent: Apache-HttpClient/UNAVAILABLE (java 1.4)\r\n" +
+                    "\r\n").getBytes("UTF-8");
+            HttpRequestParser parser = new HttpRequestParser(WebServer.REQUEST_HEADER_NAMES, 16*1024);
+
+            // Delivered a byte at a time, then followed by a pipelined request
+            byte[] buffer = new byte[2*request.length];
+            System.arraycopy(request, 0, buffer, 0, request.length);
+            System.arraycopy(request, 0, buffer, request.length, request.length);
+            int headerLength = 0;
+            for (int length = 1; length <= buffer.length && headerLength == 0; length++) {
+                headerLength = parser.parse(buffer, length);
+            }
+            Map<String, String> headers = parser.getHeaders();
+            if (headerLength != request.length ||
+                    parser.getMethod() != NanoHTTPD.Method.POST ||
+                    !parser.getUri().equals(Protocol.PUSH_STATUS_REQUEST_PATH + "?x=1") ||
+                    !parser.isHttp11() ||
+                    headers.size() != 4 ||
+                    !"1234".equals(headers.get("content-length")) ||
+                    !"Keep-Alive".equals(headers.get("connection"))) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected parsed request");
+            }
+
+            // Unbounded headers are rejected
+            parser.reset();
+            byte[] oversized = new byte[16*1024 + 1];
+            Arrays.fill(oversized, (byte)'a');
+            boolean failed = false;
+            try {
+                parser.parse(oversized, oversized.length);
+            } catch (IOException e) {
+                failed = true;
+            }
+            if (!failed) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected unbounded request header");
+            }
+
+            // All headers decoded, as NanoHTTPD did, vs. only those WebServer reads
+            for (String[] headerNames : new String[][] {null, WebServer.REQUEST_HEADER_NAMES}) {
+                parser = new HttpRequestParser(headerNames, 16*1024);
+                Debug.startAllocCounting();
+                try {
+                    long startCpuTime = Debug.threadCpuTimeNanos();
+                    int startAllocSize = Debug.getThreadAllocSize();
+                    for (int i = 0; i < parseCount; i++) {
+                        parser.reset();
+                        parser.parse(request, request.length);
+                    }
+                    long cpuTime = Debug.threadCpuTimeNanos() - startCpuTime;
+                    int allocSize = Debug.getThreadAllocSize() - startAllocSize;
+                    Log.addEntry(
+                            LOG_TAG,
+                            String.format(
+                                    "request parser, %s: %d ns. CPU, %d bytes allocated per request",
+                                    headerNames == null ? "all headers" : "read headers only",
+                                    cpuTime/parseCount,
+                                    allocSize/parseCount));
+                } finally {
+                    Debug.stopAllocCounting();
+                }
+            }
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    private static class CountingTempFileManagerFactory implements NanoHTTPD.TempFileManagerFactory {
+        public final AtomicInteger mManagerCount = new AtomicInteger(0);
+        public final AtomicInteger mTempFileCount = new AtomicInteger(0);
+
+        @Override
+        public NanoHTTPD.TempFileManager create() {
+            mManagerCount.incrementAndGet();
+            final NanoHTTPD.TempFileManager tempFileManager = new NanoHTTPD.DefaultTempFileManager();
+            return new NanoHTTPD.TempFileManager() {
+                @Override
+                public NanoHTTPD.TempFile createTempFile() throws Exception {
+                    mTempFileCount.incrementAndGet();
+                    return tempFileManager.createTempFile();
+                }
+
+                @Override
+                public void clear() {
+                    tempFileManager.clear();
+                }
+            };
+        }
+    }
+
+    private static void runRequestBodyBufferingTests() throws Utils.ApplicationError {
+        // Form posts through NanoHTTPD's own body parsing, on one keep-alive connection: only the
+        // body over the in-memory threshold uses a temp file, and the connection's temp file
+        // manager is made once, on that first use
+        final int[] valueLengths = new int[] {100, NanoHTTPD.MAX_IN_MEMORY_BODY_SIZE, 100};
+        final int[] expectedTempFileCounts = new int[] {0, 1, 1};
+        final StringBuilder expectedValue = new StringBuilder();
+        CountingTempFileManagerFactory tempFileManagerFactory = new CountingTempFileManagerFactory();
+        NanoHTTPD server = new NanoHTTPD("127.0.0.1", 0) {
+            @Override
+            public Response serve(IHTTPSession session) {
+                try {
+                    session.parseBody(new HashMap<String, String>());
+                } catch (IOException e) {
+                    return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "");
+                } catch (ResponseException e) {
+                    return new Response(e.getStatus(), MIME_PLAINTEXT, "");
+                }
+                boolean isExpected = expectedValue.toString().equals(session.getParms().get("value"));
+                return new Response(isExpected ? Response.Status.OK : Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "");
+            }
+        };
+        server.setTempFileManagerFactory(tempFileManagerFactory);
+        try {
+            server.start();
+            Socket socket = new Socket("127.0.0.1", server.getListeningPort());
+            try {
+                socket.setSoTimeout(10000);
+                InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+                for (int i = 0; i < valueLengths.length; i++) {
+                    expectedValue.setLength(0);
+                    while (expectedValue.length() < valueLengths[i]) {
+                        expectedValue.append('a');
+                    }
+                    byte[] body = ("value=" + expectedValue).getBytes("UTF-8");
+                    String header =
+                            "POST / HTTP/1.1\r\n" +
+                            "Content-Type: application/x-www-form-urlencoded\r\n" +
+                            "Content-Length: " + body.length + "\r\n\r\n";
+                    socket.getOutputStream().write(header.getBytes("UTF-8"));
+                    socket.getOutputStream().write(body);
+                    readRawResponse(inputStream);
+                    if (tempFileManagerFactory.mTempFileCount.get() != expectedTempFileCounts[i] ||
+                            tempFileManagerFactory.mManagerCount.get() != Math.min(1, expectedTempFileCounts[i])) {
+                        throw new Utils.ApplicationError(LOG_TAG, "unexpected temp file use");
+                    }
+                }
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void runAdaptiveTimeoutBenchmark() throws Utils.ApplicationError {
+        // Worker thread time spent per pull round, with fixed 60 second timeouts vs. adaptive
+        // timeouts, when 20% of friends go offline, in a simulation of heavy-tailed online times.
+        // Friends are all online for a warm-up period, during which the estimators get samples.
+        // Online connect (Tor rendezvous and TLS) and response times are drawn from a fixed
+        // distribution. A false timeout -- an online friend timed out -- loses the pull, which
+        // is charged as a retry at the full request time. See runAdaptiveTimeoutOccupancyBenchmark
+        // for WebClient itself.
+        final int friendCount = 50;
+        final int offlineFriendCount = friendCount/5;
+        final int warmUpRounds = 6;
+        final int rounds = 48;
+        final int fixedTimeout = 60000;
+        Random random = new Random(1);
+        // Floors and ceilings as in WebClient
+        List<RttEstimator> connectRtts = new ArrayList<RttEstimator>();
+        List<RttEstimator> responseRtts = new ArrayList<RttEstimator>();
+        for (int i = 0; i < friendCount; i++) {
+            connectRtts.add(new RttEstimator(15000, 60000));
+            responseRtts.add(new RttEstimator(10000, 60000));
+        }
+        long fixedOccupancy = 0;
+        long adaptiveOccupancy = 0;
+        int onlinePulls = 0;
+        int falseTimeouts = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < friendCount; i++) {
+                RttEstimator connectRtt = connectRtts.get(i);
+                RttEstimator responseRtt = responseRtts.get(i);
+                boolean offline = (round >= warmUpRounds && i < offlineFriendCount);
+                long fixedCost;
+                long adaptiveCost;
+                if (offline) {
+                    // Tor doesn't fail the SOCKS connect to an unreachable hidden service before
+                    // either timeout expires
+                    fixedCost = fixedTimeout;
+                    adaptiveCost = connectRtt.getTimeoutMilliseconds();
+                    connectRtt.addFailure();
+                } else {
+                    long connectTime = 2000 + random.nextInt(8000) + (random.nextInt(10) == 0 ? random.nextInt(10000) : 0);
+                    long responseTime = 500 + random.nextInt(3000);
+                    long connectTimeout = connectRtt.getTimeoutMilliseconds();
+                    long responseTimeout = responseRtt.getTimeoutMilliseconds();
+                    fixedCost = connectTime + responseTime;
+                    boolean falseTimeout = true;
+                    if (connectTime > connectTimeout) {
+                        adaptiveCost = connectTimeout + fixedCost;
+                        connectRtt.addFailure();
+                    } else if (responseTime > responseTimeout) {
+                        adaptiveCost = connectTime + responseTimeout + fixedCost;
+                        connectRtt.addSample(connectTime);
+                        responseRtt.addFailure();
+                    } else {
+                        falseTimeout = false;
+                        adaptiveCost = connectTime + responseTime;
+                        connectRtt.addSample(connectTime);
+                        responseRtt.addSample(responseTime);
+                    }
+                    if (round >= warmUpRounds) {
+                        onlinePulls++;
+                        if (falseTimeout) {
+                            falseTimeouts++;
+                        }
+                    }
+                }
+                if (round >= warmUpRounds) {
+                    fixedOccupancy += fixedCost;
+                    adaptiveOccupancy += adaptiveCost;
+                }
+            }
+        }
+        int measuredRounds = rounds - warmUpRounds;
+        RttEstimator.Snapshot sample = connectRtts.get(friendCount - 1).getSnapshot();
+        Log.addEntry(
+                LOG_TAG,
+                String.format(
+                        "worker time per round, %d of %d friends offline: %d s. fixed, %d s. adaptive; %d false timeouts in %d pulls; " +
+                        "sample friend connect srtt %d ms, rttvar %d ms, timeout %d ms",
+                        offlineFriendCount,
+                        friendCount,
+                        fixedOccupancy/measuredRounds/1000,
+                        adaptiveOccupancy/measuredRounds/1000,
+                        falseTimeouts,
+                        onlinePulls,
+                        sample.mSmoothedRttMilliseconds,
+                        sample.mRttVarianceMilliseconds,
+                        sample.mTimeoutMilliseconds));
+        if (adaptiveOccupancy >= fixedOccupancy) {
+            throw new Utils.ApplicationError(LOG_TAG, "unexpected adaptive timeout occupancy");
+        }
+        // At most 2% of online pulls are lost to false timeouts
+        if (falseTimeouts*50 > onlinePulls) {
+            throw new Utils.ApplicationError(LOG_TAG, "too many false timeouts: " + falseTimeouts);
+        }
+
+        // No samples: ceiling; an offline friend probes with the ceiling every fourth attempt
+        RttEstimator estimator = new RttEstimator(15000, 60000);
+        if (estimator.getTimeoutMilliseconds() != 60000) {
+            throw new Utils.ApplicationError(LOG_TAG, "unexpected initial timeout");
+        }
+        estimator.addSample(4000);
+        int timeout = estimator.getTimeoutMilliseconds();
+        if (timeout != 15000) {
+            throw new Utils.ApplicationError(LOG_TAG, "unexpected timeout floor: " + timeout);
+        }
+        for (int i = 0; i < 3; i++) {
+            estimator.addFailure();
+        }
+        if (estimator.getTimeoutMilliseconds() != 15000) {
+            throw new Utils.ApplicationError(LOG_TAG, "unexpected timeout after failures");
+        }
+        estimator.addFailure();
+        if (estimator.getTimeoutMilliseconds() != 60000) {
+            throw new Utils.ApplicationError(LOG_TAG, "unexpected probe timeout");
+        }
+
+        // A removed friend's estimates are discarded, and apart from another persona's for the
+        // same friend
+        String selfCertificate = "self-certificate";
+        String otherSelfCertificate = "other-self-certificate";
+        String peerCertificate = "removed-peer-certificate";
+        WebClient.getConnectRttEstimator(selfCertificate, peerCertificate).addSample(4000);
+        if (WebClient.getConnectRttEstimator(otherSelfCertificate, peerCertificate).getTimeoutMilliseconds() != 60000) {
+            throw new Utils.ApplicationError(LOG_TAG, "unexpected estimate shared by personas");
+        }
+        WebClient.removePeer(selfCertificate, peerCertificate);
+        if (WebClient.getConnectRttEstimator(selfCertificate, peerCertificate).getTimeoutMilliseconds() != 60000) {
+            throw new Utils.ApplicationError(LOG_TAG, "unexpected estimate after removed peer");
+        }
+        WebClient.removePeer(selfCertificate, peerCertificate);
+        WebClient.removePeer(otherSelfCertificate, peerCertificate);
+
+        // The hedge delay percentile is over the recent samples, once there are enough of them
+        estimator = new RttEstimator(15000, 60000);
+        for (int i = 1; i <= 7; i++) {
+            estimator.addSample(i*1000);
+        }
+        if (estimator.getPercentileMilliseconds(90) != -1) {
+            throw new Utils.ApplicationError(LOG_TAG, "unexpected percentile with too few samples");
+        }
+        for (int i = 8; i <= 10; i++) {
+            estimator.addSample(i*1000);
+        }
+        if (estimator.getPercentileMilliseconds(50) != 5000 ||
+                estimator.getPercentileMilliseconds(90) != 9000 ||
+                estimator.getPercentileMilliseconds(100) != 10000) {
+            throw new Utils.ApplicationError(LOG_TAG, "unexpected percentiles");
+        }
+    }
+
+    private static void runStreamIsolationTests(
+            X509.KeyMaterial selfX509KeyMaterial,
+            X509.KeyMaterial friendX509KeyMaterial) throws Utils.ApplicationError {
+        // New connections for each friend's pulls, and for its pushes, are sent with their own
+        // SOCKS user ID, which Tor (with IsolateSOCKSAuth) keeps on separate circuits. Personas
+        // sharing a friend use separate circuits to that friend.
+        List<String> userIds = new ArrayList<String>();
+        for (String selfCertificate : Arrays.asList("isolated-self-1", "isolated-self-2")) {
+            for (String peerCertificate : Arrays.asList("isolated-peer-1", "isolated-peer-2")) {
+                userIds.add(WebClient.getSocksUserId(selfCertificate, peerCertificate, true));
+                userIds.add(WebClient.getSocksUserId(selfCertificate, peerCertificate, false));
+            }
+        }
+        for (String selfCertificate : Arrays.asList("isolated-self-1", "isolated-self-2")) {
+            for (String peerCertificate : Arrays.asList("isolated-peer-1", "isolated-peer-2")) {
+                WebClient.removePeer(selfCertificate, peerCertificate);
+            }
+        }
+        if (new HashSet<String>(userIds).size() != userIds.size() || userIds.contains("")) {
+            throw new Utils.ApplicationError(LOG_TAG, "unexpected SOCKS user IDs");
+        }
+
+        // And the IDs are what the SOCKS proxy receives
+        String peerCertificate = selfX509KeyMaterial.mCertificate;
+        MockRequestHandler requestHandler = new MockRequestHandler();
+        WebServer webServer = new WebServer(
+                requestHandler,
+                selfX509KeyMaterial,
+                Arrays.asList(friendX509KeyMaterial.mCertificate));
+        MockSocksProxy socksProxy = null;
+        try {
+            webServer.start();
+            socksProxy = new MockSocksProxy(webServer.getListeningPort(), 0);
+            for (boolean isolated : new boolean[] {true, false}) {
+                WebClient.setStreamIsolationEnabled(isolated);
+                socksProxy.mUserIds.clear();
+                // Dropping pooled connections before each request, so each opens a new stream
+                WebClient.shutdown();
+                WebClient.makeGetRequest(
+                        friendX509KeyMaterial,
+                        peerCertificate,
+                        socksProxy.getPort(),
+                        "127.0.0.1",
+                        Protocol.WEB_SERVER_VIRTUAL_PORT,
+                        Protocol.PULL_STATUS_REQUEST_PATH);
+                WebClient.shutdown();
+                WebClient.makePostRequest(
+                        friendX509KeyMaterial,
+                        peerCertificate,
+                        socksProxy.getPort(),
+                        "127.0.0.1",
+                        Protocol.WEB_SERVER_VIRTUAL_PORT,
+                        Protocol.PUSH_STATUS_REQUEST_PATH,
+                        Json.toJson(requestHandler.getMockStatus()));
+                List<String> expectedUserIds = isolated ?
+                        Arrays.asList(
+                                WebClient.getSocksUserId(friendX509KeyMaterial.mCertificate, peerCertificate, true),
+                                WebClient.getSocksUserId(friendX509KeyMaterial.mCertificate, peerCertificate, false)) :
+                        Arrays.asList("", "");
+                if (!socksProxy.mUserIds.equals(expectedUserIds)) {
+                    throw new Utils.ApplicationError(LOG_TAG, "unexpected SOCKS user IDs sent");
+                }
+            }
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            WebClient.setStreamIsolationEnabled(true);
+            WebClient.shutdown();
+            WebClient.removePeer(friendX509KeyMaterial.mCertificate, peerCertificate);
+            if (socksProxy != null) {
+                socksProxy.stop();
+            }
+            webServer.stop();
+            requestHandler.stop();
+        }
+    }
+
+    private static void runHedgedConnectTests(
+            X509.KeyMaterial selfX509KeyMaterial,
+            X509.KeyMaterial friendX509KeyMaterial) throws Utils.ApplicationError {
+        // A connect through a slow circuit is hedged after the friend's 90th percentile SOCKS
+        // connect time, and the hedged attempt wins
+        final long slowConnectMilliseconds = 10000;
+        String peerCertificate = selfX509KeyMaterial.mCertificate;
+        MockRequestHandler requestHandler = new MockRequestHandler();
+        WebServer webServer = new WebServer(
+                requestHandler,
+                selfX509KeyMaterial,
+                Arrays.asList(friendX509KeyMaterial.mCertificate));
+        MockSocksProxy socksProxy = null;
+        ExecutorService hedgeThreadPool = Executors.newCachedThreadPool();
+        try {
+            webServer.start();
+            socksProxy = new MockSocksProxy(webServer.getListeningPort(), slowConnectMilliseconds);
+            WebClient.shutdown();
+            WebClient.removePeer(friendX509KeyMaterial.mCertificate, peerCertificate);
+            RttEstimator socksConnectRtt =
+                    WebClient.getSocksConnectRttEstimator(friendX509KeyMaterial.mCertificate, peerCertificate);
+            for (int i = 0; i < 8; i++) {
+                socksConnectRtt.addSample(100);
+            }
+            WebClient.setHedgeThreadPool(hedgeThreadPool);
+            Metrics.Counter hedgeWins = Metrics.getInstance().getCounter(Metrics.WEB_CLIENT_HEDGE_WINS);
+            long hedgeWinCount = hedgeWins.get();
+            long startTime = System.currentTimeMillis();
+            WebClient.makeGetRequest(
+                    friendX509KeyMaterial,
+                    peerCertificate,
+                    socksProxy.getPort(),
+                    "127.0.0.1",
+                    Protocol.WEB_SERVER_VIRTUAL_PORT,
+                    Protocol.PULL_STATUS_REQUEST_PATH);
+            long elapsedMilliseconds = System.currentTimeMillis() - startTime;
+            if (elapsedMilliseconds >= slowConnectMilliseconds || hedgeWins.get() != hedgeWinCount + 1) {
+                throw new Utils.ApplicationError(LOG_TAG, "hedged connect didn't win");
+            }
+            // The winning SOCKS connect time is sampled without the TLS handshake
+            if (socksConnectRtt.getSnapshot().mSampleCount != 9) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected SOCKS connect samples");
+            }
+            Log.addEntry(LOG_TAG, String.format("hedged request: %d ms.", elapsedMilliseconds));
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            WebClient.setHedgeThreadPool(null);
+            WebClient.shutdown();
+            WebClient.removePeer(friendX509KeyMaterial.mCertificate, peerCertificate);
+            hedgeThreadPool.shutdownNow();
+            if (socksProxy != null) {
+                socksProxy.stop();
+            }
+            webServer.stop();
+            requestHandler.stop();
+        }
+    }
+
+    private static void runAdaptiveTimeoutOccupancyBenchmark(
+            X509.KeyMaterial selfX509KeyMaterial) throws Utils.ApplicationError {
+        // Worker thread time for a round of concurrent WebClient pulls when 20% of friends are
+        // black-holed. Each friend has its own web server and SOCKS proxy; the friends are all
+        // online for warm-up rounds, during which the estimators get samples. With fixed 60
+        // second timeouts, a black-holed pull holds its worker for the whole timeout, which is
+        // charged here rather than waited for.
+        final int friendCount = 5;
+        final int blackHoledFriendCount = friendCount/5;
+        final int warmUpRounds = 4;
+        final long fixedTimeout = 60000;
+        List<X509.KeyMaterial> friendX509KeyMaterials = new ArrayList<X509.KeyMaterial>();
+        List<MockRequestHandler> requestHandlers = new ArrayList<MockRequestHandler>();
+        List<WebServer> webServers = new ArrayList<WebServer>();
+        List<MockSocksProxy> socksProxies = new ArrayList<MockSocksProxy>();
+        ExecutorService workerThreadPool = Executors.newFixedThreadPool(friendCount);
+        try {
+            for (int i = 0; i < friendCount; i++) {
+                X509.KeyMaterial friendX509KeyMaterial = X509.generateKeyMaterial("friend-" + i);
+                friendX509KeyMaterials.add(friendX509KeyMaterial);
+                MockRequestHandler requestHandler = new MockRequestHandler();
+                requestHandlers.add(requestHandler);
+                WebServer webServer = new WebServer(
+                        requestHandler, friendX509KeyMaterial, Arrays.asList(selfX509KeyMaterial.mCertificate));
+                webServers.add(webServer);
+                webServer.start();
+                socksProxies.add(new MockSocksProxy(webServer.getListeningPort(), 0));
+            }
+            for (int round = 0; round < warmUpRounds; round++) {
+                if (runPullRound(workerThreadPool, selfX509KeyMaterial, friendX509KeyMaterials, socksProxies, null) != friendCount) {
+                    throw new Utils.ApplicationError(LOG_TAG, "unexpected warm-up pull failure");
+                }
+            }
+            // Pooled connections are dropped, as their circuits would be
+            WebClient.shutdown();
+            for (int i = 0; i < blackHoledFriendCount; i++) {
+                socksProxies.get(i).mIsBlackHoled = true;
+            }
+            long[] occupancy = new long[friendCount];
+            int successCount = runPullRound(
+                    workerThreadPool, selfX509KeyMaterial, friendX509KeyMaterials, socksProxies, occupancy);
+            // No false timeouts: every online friend's pull succeeds
+            if (successCount != friendCount - blackHoledFriendCount) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected pull failures: " + (friendCount - successCount));
+            }
+            long adaptiveOccupancy = 0;
+            long fixedOccupancy = 0;
+            for (int i = 0; i < friendCount; i++) {
+                adaptiveOccupancy += occupancy[i];
+                fixedOccupancy += (i < blackHoledFriendCount) ? fixedTimeout : occupancy[i];
+            }
+            Log.addEntry(
+                    LOG_TAG,
+                    String.format(
+                            "WebClient worker time per round, %d of %d friends black-holed: %d ms. fixed, %d ms. adaptive; " +
+                            "black-holed pull timed out after %d ms.",
+                            blackHoledFriendCount,
+                            friendCount,
+                            fixedOccupancy,
+                            adaptiveOccupancy,
+                            occupancy[0]));
+            if (adaptiveOccupancy >= fixedOccupancy) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected adaptive timeout occupancy");
+            }
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            WebClient.shutdown();
+            workerThreadPool.shutdownNow();
+            for (X509.KeyMaterial friendX509KeyMaterial : friendX509KeyMaterials) {
+                WebClient.removePeer(selfX509KeyMaterial.mCertificate, friendX509KeyMaterial.mCertificate);
+            }
+            for (MockSocksProxy socksProxy : socksProxies) {
+                socksProxy.stop();
+            }
+            for (WebServer webServer : webServers) {
+                webServer.stop();
+            }
+            for (MockRequestHandler requestHandler : requestHandlers) {
+                requestHandler.stop();
+            }
+        }
+    }
+
+    private static int runPullRound(
+            ExecutorService workerThreadPool,
+            final X509.KeyMaterial selfX509KeyMaterial,
+            List<X509.KeyMaterial> friendX509KeyMaterials,
+            List<MockSocksProxy> socksProxies,
+            long[] occupancy) throws Utils.ApplicationError {
+        // Pulls from every friend concurrently; returns the number of successful pulls and, when
+        // occupancy is given, each pull's worker time
+        List<Future<Long>> pulls = new ArrayList<Future<Long>>();
+        final boolean[] succeeded = new boolean[friendX509KeyMaterials.size()];
+        for (int i = 0; i < friendX509KeyMaterials.size(); i++) {
+            final int index = i;
+            final String friendCertificate = friendX509KeyMaterials.get(i).mCertificate;
+            final int socksProxyPort = socksProxies.get(i).getPort();
+            pulls.add(workerThreadPool.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    long startTime = System.currentTimeMillis();
+                    try {
+                        WebClient.makeGetRequest(
+                                selfX509KeyMaterial,
+                                friendCertificate,
+                                socksProxyPort,
+                                "127.0.0.1",
+                                Protocol.WEB_SERVER_VIRTUAL_PORT,
+                                Protocol.PULL_STATUS_REQUEST_PATH);
+                        succeeded[index] = true;
+                    } catch (Utils.ApplicationError e) {
+                        // A timed out pull
+                    }
+                    return System.currentTimeMillis() - startTime;
+                }
+            }));
+        }
+        int successCount = 0;
+        try {
+            for (int i = 0; i < pulls.size(); i++) {
+                long workerTime = pulls.get(i).get();
+                if (succeeded[i]) {
+                    successCount++;
+                }
+                if (occupancy != null) {
+                    occupancy[i] = workerTime;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } catch (ExecutionException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+        return successCount;
+    }
+
+    private static void runWebServerLoadTest(
+            X509.KeyMaterial selfX509KeyMaterial,
+            X509.KeyMaterial friendX509KeyMaterial) throws Utils.ApplicationError {
+        // Concurrent keep-alive clients, each making a request, idling and making a second request
+        // on the same connection. The server has the Engine's worker pool size. In blocking mode,
+        // each connection holds a worker thread until closed, so most clients are starved until
+        // the deadline; in non-blocking mode, every client should be served.
+        final int clientCount = 200;
+        final int workerThreadCount = 30;
+        final int deadlineMilliseconds = 20000;
+        final int idleMilliseconds = 2000;
+        final javax.net.ssl.SSLSocketFactory socketFactory = TransportSecurity.getSSLContext(
+                friendX509KeyMaterial, Arrays.asList(selfX509KeyMaterial.mCertificate)).getSocketFactory();
+        for (boolean isNonBlocking : new boolean[] {false, true}) {
+            MockRequestHandler requestHandler = new MockRequestHandler(Executors.newFixedThreadPool(workerThreadCount));
+            WebServer webServer = new WebServer(
+                    requestHandler,
+                    selfX509KeyMaterial,
+                    Arrays.asList(friendX509KeyMaterial.mCertificate),
+                    isNonBlocking,
+                    // All clients are the same peer; the default limits would reject most of them
+                    new ConnectionAdmission(clientCount, clientCount, deadlineMilliseconds));
+            ExecutorService clientThreadPool = Executors.newFixedThreadPool(clientCount);
+            try {
+                try {
+                    webServer.start();
+                } catch (IOException e) {
+                    throw new Utils.ApplicationError(LOG_TAG, e);
+                }
+                final int port = webServer.getListeningPort();
+                final long deadline = System.currentTimeMillis() + deadlineMilliseconds;
+                List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+                long startTime = System.currentTimeMillis();
+                for (int i = 0; i < clientCount; i++) {
+                    results.add(clientThreadPool.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws IOException, InterruptedException {
+                            SSLSocket socket =
+                                    (SSLSocket)socketFactory.createSocket("127.0.0.1", port);
+                            try {
+                                for (int request = 0; request < 2; request++) {
+                                    if (request > 0) {
+                                        Thread.sleep(idleMilliseconds);
+                                    }
+                                    socket.setSoTimeout((int)Math.max(1, deadline - System.currentTimeMillis()));
+                                    socket.getOutputStream().write(
+                                            ("GET " + Protocol.PULL_STATUS_REQUEST_PATH + " HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes("UTF-8"));
+                                    socket.getOutputStream().flush();
+                                    readRawResponse(socket.getInputStream());
+                                }
+                                return true;
+                            } finally {
+                                socket.close();
+                            }
+                        }
+                    }));
+                }
+                int servedCount = 0;
+                for (Future<Boolean> result : results) {
+                    try {
+                        result.get();
+                        servedCount++;
+                    } catch (ExecutionException e) {
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new Utils.ApplicationError(LOG_TAG, e);
+                    }
+                }
+                long elapsedMilliseconds = System.currentTimeMillis() - startTime;
+                Log.addEntry(
+                        LOG_TAG,
+                        String.format(
+                                "%d keep-alive clients, %d worker threads, %s server: %d served in %d ms.",
+                                clientCount,
+                                workerThreadCount,
+                                isNonBlocking ? "non-blocking" : "blocking",
+                                servedCount,
+                                elapsedMilliseconds));
+                if (isNonBlocking && servedCount != clientCount) {
+                    throw new Utils.ApplicationError(LOG_TAG, "unexpected unserved keep-alive clients");
+                }
+            } finally {
+                Utils.shutdownExecutorService(clientThreadPool);
+                webServer.stop();
+                requestHandler.stop();
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        public long mByteCount = 0;
+
+        @Override
+        public void write(int b) {
+            mByteCount++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            mByteCount += length;
+        }
+    }
+
+    private static void runResponseWriterBenchmark(
+            X509.KeyMaterial selfX509KeyMaterial,
+            X509.KeyMaterial friendX509KeyMaterial) throws Utils.ApplicationError {
+        // Responses per second writing pull responses, in memory (writer cost alone) and over TLS
+        // to a keep-alive client on the loopback web server
+        final int inMemoryResponseCount = 20000;
+        final int loopbackResponseCount = 200;
+        MockFriendConnection connection = new MockFriendConnection(
+                new MockRequestHandler(), selfX509KeyMaterial, friendX509KeyMaterial, false);
+        try {
+            // A pull response as made by WebServer
+            EncodedStatus status = connection.mRequestHandler.getEncodedMockStatus();
+            CountingOutputStream outputStream = new CountingOutputStream();
+            Debug.startAllocCounting();
+            long startTime = System.nanoTime();
+            int startAllocSize = Debug.getThreadAllocSize();
+            for (int i = 0; i < inMemoryResponseCount; i++) {
+                NanoHTTPD.Response response = new NanoHTTPD.Response(
+                        NanoHTTPD.Response.Status.OK, Protocol.RESPONSE_MIME_TYPE, new ByteArrayInputStream(status.mBody));
+                response.addHeader("ETag", status.mEntityTag);
+                response.addHeader(Compression.ACCEPT_ENCODING_HEADER, Compression.GZIP_ENCODING);
+                response.setRequestMethod(NanoHTTPD.Method.GET);
+                response.writeTo(outputStream);
+            }
+            int allocSize = Debug.getThreadAllocSize() - startAllocSize;
+            long elapsedNanoseconds = System.nanoTime() - startTime;
+            Debug.stopAllocCounting();
+            Log.addEntry(
+                    LOG_TAG,
+                    String.format(
+                            "response writer, in memory: %.0f responses/s., %d bytes allocated per response",
+                            1e9*inMemoryResponseCount/elapsedNanoseconds,
+                            allocSize/inMemoryResponseCount));
+
+            connection.writePullRequest();
+            readRawResponse(connection.mInputStream);
+            startTime = System.nanoTime();
+            for (int i = 0; i < loopbackResponseCount; i++) {
+                connection.writePullRequest();
+                readRawResponse(connection.mInputStream);
+            }
+            elapsedNanoseconds = System.nanoTime() - startTime;
+            Log.addEntry(
+                    LOG_TAG,
+                    String.format(
+                            "response writer, loopback TLS keep-alive: %.0f responses/s.",
+                            1e9*loopbackResponseCount/elapsedNanoseconds));
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static void runPeerIdentityTests(
+            X509.KeyMaterial selfX509KeyMaterial,
+            X509.KeyMaterial friendX509KeyMaterial) throws Utils.ApplicationError {
+        // Each keep-alive request identifies the friend by the same certificate fingerprint, and
+        // per-request cost, hashing the peer certificate vs. the value cached on the TLS session
+        final int requestCount = 3;
+        final int lookupCount = 10000;
+        final List<String> peerFingerprints = Collections.synchronizedList(new ArrayList<String>());
+        MockRequestHandler requestHandler = new MockRequestHandler() {
+            @Override
+            public EncodedStatus handlePullStatusRequest(String friendId) throws ApplicationError {
+                peerFingerprints.add(friendId);
+                return getEncodedMockStatus();
+            }
+        };
+        MockFriendConnection connection = new MockFriendConnection(
+                requestHandler, selfX509KeyMaterial, friendX509KeyMaterial, false);
+        try {
+            for (int i = 0; i < requestCount; i++) {
+                connection.writePullRequest();
+                readRawResponse(connection.mInputStream);
+            }
+            String expectedFingerprint = X509.getCertificateFingerprint(friendX509KeyMaterial.mCertificate);
+            if (peerFingerprints.size() != requestCount ||
+                    Collections.frequency(peerFingerprints, expectedFingerprint) != requestCount) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected peer identity");
+            }
+
+            // The client's session, identifying the server, stands in for the server's
+            SSLSession session = connection.mSocket.getSession();
+            if (!X509.getCertificateFingerprint(selfX509KeyMaterial.mCertificate).equals(
+                    WebServer.getPeerCertificateFingerprint(session))) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected session peer identity");
+            }
+            long startTime = System.nanoTime();
+            for (int i = 0; i < lookupCount; i++) {
+                X509.getCertificateFingerprint(session.getPeerCertificates()[0].getEncoded());
+            }
+            long hashedNanoseconds = System.nanoTime() - startTime;
+            startTime = System.nanoTime();
+            for (int i = 0; i < lookupCount; i++) {
+                WebServer.getPeerCertificateFingerprint(session);
+            }
+            long cachedNanoseconds = System.nanoTime() - startTime;
+            Log.addEntry(
+                    LOG_TAG,
+                    String.format(
+                            "peer identity: %d ns. per request hashed, %d ns. cached on session",
+                            hashedNanoseconds/lookupCount,
+                            cachedNanoseconds/lookupCount));
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } catch (CertificateEncodingException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static void runPrewarmBenchmark(
+            X509.KeyMaterial selfX509KeyMaterial,
+            X509.KeyMaterial friendX509KeyMaterial) throws Utils.ApplicationError {
+        // Pull latency starting with a new connection vs. with a connection opened in advance by
+        // prewarmConnection. Direct, not through Tor, so the difference is only the TCP and TLS
+        // setup; through Tor, it also includes the hidden service rendezvous.
+        final int pullCount = 20;
+        MockRequestHandler requestHandler = new MockRequestHandler();
+        WebServer webServer = new WebServer(
+                requestHandler,
+                selfX509KeyMaterial,
+                Arrays.asList(friendX509KeyMaterial.mCertificate));
+        try {
+            webServer.start();
+            Metrics.Histogram warmLatency =
+                    Metrics.getInstance().getHistogram(Metrics.WEB_CLIENT_WARM_REQUEST_LATENCY_MILLISECONDS);
+            for (boolean isPrewarmed : new boolean[] {false, true}) {
+                long warmPullCount = warmLatency.getCount();
+                long totalNanoseconds = 0;
+                for (int i = 0; i < pullCount; i++) {
+                    WebClient.shutdown();
+                    if (isPrewarmed &&
+                            !WebClient.prewarmConnection(
+                                    friendX509KeyMaterial,
+                                    selfX509KeyMaterial.mCertificate,
+                                    WebClient.UNTUNNELED_REQUEST,
+                                    "127.0.0.1",
+                                    webServer.getListeningPort())) {
+                        throw new Utils.ApplicationError(LOG_TAG, "connection not prewarmed");
+                    }
+                    long startTime = System.nanoTime();
+                    WebClient.makeGetRequest(
+                            friendX509KeyMaterial,
+                            selfX509KeyMaterial.mCertificate,
+                            WebClient.UNTUNNELED_REQUEST,
+                            "127.0.0.1",
+                            webServer.getListeningPort(),
+                            Protocol.PULL_STATUS_REQUEST_PATH);
+                    totalNanoseconds += System.nanoTime() - startTime;
+                }
+                if (warmLatency.getCount() - warmPullCount != (isPrewarmed ? pullCount : 0)) {
+                    throw new Utils.ApplicationError(LOG_TAG, "unexpected prewarmed connection use");
+                }
+                Log.addEntry(
+                        LOG_TAG,
+                        String.format(
+                                "pull latency, %s: %.1f ms.",
+                                isPrewarmed ? "prewarmed connection" : "new connection",
+                                totalNanoseconds/1000000.0/pullCount));
+            }
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            WebClient.shutdown();
+            webServer.stop();
+            requestHandler.stop();
+        }
+    }
+
+    private static void runNioWebServerFailureTests(
+            X509.KeyMaterial selfX509KeyMaterial,
+            X509.KeyMaterial friendX509KeyMaterial) throws Utils.ApplicationError {
+        // A request that fails in its worker, or that can't be given to a worker, gets an error
+        // response and the connection is closed, instead of the connection waiting forever
+        for (final boolean isRejected : new boolean[] {false, true}) {
+            MockRequestHandler requestHandler = new MockRequestHandler() {
+                @Override
+                public void submitTask(Runnable task) {
+                    if (isRejected) {
+                        throw new RejectedExecutionException();
+                    }
+                    super.submitTask(task);
+                }
+
+                @Override
+                public EncodedStatus handlePullStatusRequest(String friendId) throws ApplicationError {
+                    throw new IllegalStateException();
+                }
+            };
+            MockFriendConnection connection = new MockFriendConnection(
+                    requestHandler, selfX509KeyMaterial, friendX509KeyMaterial, true);
+            try {
+                connection.writePullRequest();
+                String response = new String(Utils.readInputStreamToBytes(connection.mInputStream), "UTF-8");
+                if (!response.startsWith("HTTP/1.1 500")) {
+                    throw new Utils.ApplicationError(LOG_TAG, "unexpected response to failed request");
+                }
+            } catch (IOException e) {
+                throw new Utils.ApplicationError(LOG_TAG, e);
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    private static class MockFriendConnection {
+        // A started web server with a mock request handler, and a friend's TLS connection to it,
+        // for tests that send raw requests
+        public final MockRequestHandler mRequestHandler;
+        public final WebServer mWebServer;
+        public final SSLSocket mSocket;
+        public final InputStream mInputStream;
+
+        public MockFriendConnection(
+                MockRequestHandler requestHandler,
+                X509.KeyMaterial selfX509KeyMaterial,
+                X509.KeyMaterial friendX509KeyMaterial,
+                boolean isNonBlocking) throws Utils.ApplicationError {
+            mRequestHandler = requestHandler;
+            mWebServer = new WebServer(
+                    requestHandler,
+                    selfX509KeyMaterial,
+                    Arrays.asList(friendX509KeyMaterial.mCertificate),
+                    isNonBlocking);
+            try {
+                mWebServer.start();
+                mSocket = (SSLSocket)TransportSecurity.getSSLContext(
+                        friendX509KeyMaterial,
+                        Arrays.asList(selfX509KeyMaterial.mCertificate)).getSocketFactory().createSocket(
+                                "127.0.0.1", mWebServer.getListeningPort());
+                mSocket.setSoTimeout(10000);
+                mInputStream = new BufferedInputStream(mSocket.getInputStream());
+            } catch (IOException e) {
+                mWebServer.stop();
+                requestHandler.stop();
+                throw new Utils.ApplicationError(LOG_TAG, e);
+            }
+        }
+
+        public void writePullRequest() throws IOException {
+            mSocket.getOutputStream().write(
+                    ("GET " + Protocol.PULL_STATUS_REQUEST_PATH + " HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes("UTF-8"));
+            mSocket.getOutputStream().flush();
+        }
+
+        public void close() {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+            }
+            mWebServer.stop();
+            mRequestHandler.stop();
+        }
+    }
+
+    private static void readRawResponse(java.io.InputStream inputStream) throws IOException {
+        // Reads one fixed-length HTTP response; the status is checked, the body discarded
+        StringBuilder header = new StringBuilder();
+        while (!header.toString().endsWith("\r\n\r\n")) {
+            int b = inputStream.read();
+            if (b == -1) {
+                throw new IOException("connection closed before end of response");
+            }
+            header.append((char)b);
+        }
+        if (!header.toString().startsWith("HTTP/1.1 200")) {
+            throw new IOException("unexpected response status");
+        }
+        int contentLength = 0;
+        for (String line : header.toString().split("\r\n")) {
+            if (line.toLowerCase(Locale.US).startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        for (int i = 0; i < contentLength; i++) {
+            if (inputStream.read() == -1) {
+                throw new IOException("connection closed before end of response");
+            }
+        }
+    }
+
+    private static class ShortReadInputStream extends FilterInputStream {
+        // Returns at most a few bytes per read, as with partial TLS records
+        private final Random mRandom = new Random();
+
+        ShortReadInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return super.read(buffer, offset, Math.min(length, 1 + mRandom.nextInt(7)));
+        }
+    }
+
+    private static void runRequestBodyTests(
+            X509.KeyMaterial selfX509KeyMaterial,
+            String friendCertificate) throws Utils.ApplicationError {
+        MockRequestHandler requestHandler = new MockRequestHandler();
+        WebServer webServer = new WebServer(requestHandler, selfX509KeyMaterial, Arrays.asList(friendCertificate));
+        try {
+            List<Data.Message> messages = new ArrayList<Data.Message>();
+            for (int i = 0; i < Protocol.MAX_MESSAGE_COUNT; i++) {
+                messages.add(new Data.Message(new Date(), "message " + i));
+            }
+            byte[] body = Json.toJson(new Data.Status(messages, requestHandler.getMockStatus().mLocation)).getBytes("UTF-8");
+            byte[] nextRequest = "GET / HTTP/1.1\r\n\r\n".getBytes("UTF-8");
+            for (boolean isCompressed : new boolean[] {false, true}) {
+                // Short reads are all consumed, and the body ends at its declared length
+                byte[] requestBody = isCompressed ? Compression.compress(body) : body;
+                Map<String, String> headers = new HashMap<String, String>();
+                headers.put("content-length", Integer.toString(requestBody.length));
+                if (isCompressed) {
+                    headers.put("content-encoding", Compression.GZIP_ENCODING);
+                }
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                stream.write(requestBody);
+                stream.write(nextRequest);
+                ByteArrayInputStream inputStream = new ByteArrayInputStream(stream.toByteArray());
+                NanoHTTPD.Response response = webServer.serve(
+                        friendCertificate,
+                        NanoHTTPD.Method.POST,
+                        Protocol.PUSH_STATUS_REQUEST_PATH,
+                        headers,
+                        new ShortReadInputStream(inputStream));
+                if (response.getStatus() != NanoHTTPD.Response.Status.OK ||
+                        !Arrays.equals(nextRequest, Utils.readInputStreamToBytes(inputStream))) {
+                    throw new Utils.ApplicationError(LOG_TAG, "unexpected push with short reads");
+                }
+            }
+
+            // Oversized and truncated bodies are rejected
+            for (long contentLength : new long[] {Protocol.MAX_REQUEST_BODY_BYTES + 1, body.length + 1}) {
+                Map<String, String> headers = new HashMap<String, String>();
+                headers.put("content-length", Long.toString(contentLength));
+                NanoHTTPD.Response response = webServer.serve(
+                        friendCertificate,
+                        NanoHTTPD.Method.POST,
+                        Protocol.PUSH_STATUS_REQUEST_PATH,
+                        headers,
+                        new ByteArrayInputStream(body));
+                if (response.getStatus() != NanoHTTPD.Response.Status.FORBIDDEN) {
+                    throw new Utils.ApplicationError(LOG_TAG, "unexpected push with invalid content length");
+                }
+            }
+
+            // Unknown requests are distinguished from failed ones, so clients can fall back
+            NanoHTTPD.Response response = webServer.serve(
+                    friendCertificate,
+                    NanoHTTPD.Method.GET,
+                    Protocol.EXCHANGE_STATUS_REQUEST_PATH,
+                    new HashMap<String, String>(),
+                    new ByteArrayInputStream(new byte[0]));
+            if (response.getStatus() != NanoHTTPD.Response.Status.NOT_FOUND) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected response to unknown request");
+            }
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            requestHandler.stop();
+        }
+    }
+
+    private static void runPullStatusBenchmark(
+            X509.KeyMaterial selfX509KeyMaterial,
+            String friendCertificate) throws Utils.ApplicationError {
+        // Per-pull CPU time and allocations serving a full size status, encoding the status for
+        // each pull vs. serving the cached encoding
+        final int pullCount = 200;
+        StringBuilder content = new StringBuilder();
+        while (content.length() < Protocol.MAX_MESSAGE_LENGTH) {
+            content.append("message ");
+        }
+        List<Data.Message> messages = new ArrayList<Data.Message>();
+        for (int i = 0; i < Protocol.MAX_MESSAGE_COUNT; i++) {
+            messages.add(new Data.Message(new Date(), content.substring(0, Protocol.MAX_MESSAGE_LENGTH)));
+        }
+        final Data.Status status = new Data.Status(
+                messages,
+                new Data.Location(new Date(), 43.6426, -79.3871, 10, "301 Front St W, Toronto, ON M5V 2T6"));
+        final EncodedStatus encodedStatus = EncodedStatus.encode(status, 1);
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("accept-encoding", Compression.GZIP_ENCODING);
+        for (final boolean isCached : new boolean[] {false, true}) {
+            MockRequestHandler requestHandler = new MockRequestHandler() {
+                @Override
+                public EncodedStatus handlePullStatusRequest(String friendId) throws ApplicationError {
+                    return isCached ? encodedStatus : EncodedStatus.encode(status, 1);
+                }
+            };
+            WebServer webServer = new WebServer(requestHandler, selfX509KeyMaterial, Arrays.asList(friendCertificate));
+            Debug.startAllocCounting();
+            try {
+                long startCpuTime = Debug.threadCpuTimeNanos();
+                int startAllocSize = Debug.getThreadAllocSize();
+                for (int i = 0; i < pullCount; i++) {
+                    NanoHTTPD.Response response = webServer.serve(
+                            friendCertificate, NanoHTTPD.Method.GET, Protocol.PULL_STATUS_REQUEST_PATH, headers, null);
+                    if (response.getStatus() != NanoHTTPD.Response.Status.OK) {
+                        throw new Utils.ApplicationError(LOG_TAG, "unexpected pull status response");
+                    }
+                }
+                long cpuTime = Debug.threadCpuTimeNanos() - startCpuTime;
+                int allocSize = Debug.getThreadAllocSize() - startAllocSize;
+                Log.addEntry(
+                        LOG_TAG,
+                        String.format(
+                                "pull status, %s: %d us. CPU, %d bytes allocated per pull",
+                                isCached ? "cached encoding" : "encoded per pull",
+                                cpuTime/1000/pullCount,
+                                allocSize/pullCount));
+            } finally {
+                Debug.stopAllocCounting();
+                requestHandler.stop();
+            }
+        }
+    }
+
+    private static void runTransportSecurityBenchmark(
+            X509.KeyMaterial x509KeyMaterial,
+            List<String> peerCertificates) throws Utils.ApplicationError {
+        // Per-request TLS setup cost, uncached (as every request used to do) vs. cached
+        final int iterations = 20;
+        TransportSecurity.clearCache();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            TransportSecurity.makeSSLContext(x509KeyMaterial, peerCertificates);
+        }
+        long uncachedNanoseconds = (System.nanoTime() - startTime)/iterations;
+        SSLSocketFactory socketFactory = TransportSecurity.getClientSSLSocketFactory(x509KeyMaterial, peerCertificates);
+        startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (TransportSecurity.getClientSSLSocketFactory(x509KeyMaterial, peerCertificates) != socketFactory) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected uncached socket factory");
+            }
+        }
+        long cachedNanoseconds = (System.nanoTime() - startTime)/iterations;
+        Log.addEntry(
+                LOG_TAG,
+                String.format(
+                        "TLS setup per request: %d us. uncached, %d us. cached",
+                        uncachedNanoseconds/1000,
+                        cachedNanoseconds/1000));
+
+        // Peer set order doesn't matter; clearing the cache does
+        List<String> reversedPeerCertificates = new ArrayList<String>(peerCertificates);
+        Collections.reverse(reversedPeerCertificates);
+        if (TransportSecurity.getClientSSLSocketFactory(x509KeyMaterial, reversedPeerCertificates) != socketFactory) {
+            throw new Utils.ApplicationError(LOG_TAG, "unexpected cache miss for reordered peers");
+        }
+        TransportSecurity.clearCache();
+        if (TransportSecurity.getClientSSLSocketFactory(x509KeyMaterial, peerCertificates) == socketFactory) {
+            throw new Utils.ApplicationError(LOG_TAG, "unexpected cache hit after clear");
+        }
+    }
+
+    private static void runOnMainThread(final Runnable runnable) throws Utils.ApplicationError {
+        // The Engine's handler and event bus registration require the main thread
+        final CountDownLatch completed = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    completed.countDown();
+                }
+            }
+        });
+        try {
+            completed.await();
+        } catch (InterruptedException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    private static void runPersonaBenchmark(int personaCount) throws Utils.ApplicationError {
+        // Engine start up, through scheduled pulls, with personaCount personas: each with its own
+        // Data, preferences, web server and Hidden Service, all served by one Tor process.
+        // Key material generation is excluded from timing.
+        final List<String> personaNames = new ArrayList<String>();
+        for (int i = 0; i < personaCount; i++) {
+            String personaName = "benchmark-" + i;
+            HiddenService.KeyMaterial hiddenServiceKeyMaterial = HiddenService.generateKeyMaterial();
+            X509.KeyMaterial x509KeyMaterial = X509.generateKeyMaterial(hiddenServiceKeyMaterial.mHostname);
+            Data data = Data.getInstance(personaName);
+            data.reset();
+            data.updateSelf(
+                    new Data.Self(
+                            Identity.makeSignedPublicIdentity(personaName, x509KeyMaterial, hiddenServiceKeyMaterial),
+                            Identity.makePrivateIdentity(x509KeyMaterial, hiddenServiceKeyMaterial),
+                            new Date()));
+            personaNames.add(personaName);
+        }
+        Metrics metrics = Metrics.getInstance();
+        metrics.getGauge(Metrics.TOR_BOOTSTRAP_MILLISECONDS).set(-1);
+        metrics.getGauge(Metrics.TOR_FIRST_CIRCUIT_MILLISECONDS).set(-1);
+        final Engine[] engine = new Engine[1];
+        final Utils.ApplicationError[] startError = new Utils.ApplicationError[1];
+        long startTime = System.currentTimeMillis();
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                engine[0] = new Engine(Utils.getApplicationContext(), personaNames);
+                try {
+                    engine[0].start();
+                } catch (Utils.ApplicationError e) {
+                    startError[0] = e;
+                }
+            }
+        });
+        try {
+            if (startError[0] != null) {
+                throw startError[0];
+            }
+            long deadline = startTime + 5*60*1000;
+            while (engine[0].getLastStartupStage() != Engine.StartupStage.PULLS_SCHEDULED) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new Utils.ApplicationError(LOG_TAG, "engine start up timed out");
+                }
+                Thread.sleep(10);
+            }
+            long scheduledTime = System.currentTimeMillis();
+            long firstCircuitMilliseconds = metrics.getGauge(Metrics.TOR_FIRST_CIRCUIT_MILLISECONDS).get();
+            if (firstCircuitMilliseconds == -1) {
+                throw new Utils.ApplicationError(LOG_TAG, "no circuit established");
+            }
+            Log.addEntry(
+                    LOG_TAG,
+                    String.format(
+                            "%d persona(s): engine started in %d ms.; Tor bootstrap %d ms., first circuit at %d ms.",
+                            personaCount,
+                            scheduledTime - startTime,
+                            metrics.getGauge(Metrics.TOR_BOOTSTRAP_MILLISECONDS).get(),
+                            firstCircuitMilliseconds));
+        } catch (InterruptedException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (engine[0] != null) {
+                        engine[0].stop();
+                    }
+                }
+            });
+            for (String personaName : personaNames) {
+                Data.getInstance(personaName).reset();
+            }
+        }
+    }
+
     public static void runComponentTests() {
         WebServer selfWebServer = null;
         MockRequestHandler selfRequestHandler = null;
@@ -116,6 +1898,30 @@ public class Tests {
         TorWrapper friendTor = null;
         try {
 
+            Log.addEntry(LOG_TAG, "Wake window scheduler...");
+            runWakeWindowSchedulerTests();
+
+            Log.addEntry(LOG_TAG, "Simulated pull schedules...");
+            runPullScheduleSimulationTests();
+
+            Log.addEntry(LOG_TAG, "Metrics...");
+            runMetricsTests();
+
+            Log.addEntry(LOG_TAG, "Connection admission...");
+            runConnectionAdmissionTests();
+
+            Log.addEntry(LOG_TAG, "Compression...");
+            runCompressionTests();
+
+            Log.addEntry(LOG_TAG, "Request parser...");
+            runRequestParserTests();
+
+            Log.addEntry(LOG_TAG, "Request body buffering...");
+            runRequestBodyBufferingTests();
+
+            Log.addEntry(LOG_TAG, "Adaptive timeouts...");
+            runAdaptiveTimeoutBenchmark();
+
             Log.addEntry(LOG_TAG, "Make self...");
             String selfNickname = "Me";
             HiddenService.KeyMaterial selfHiddenServiceKeyMaterial = HiddenService.generateKeyMaterial();
@@ -154,6 +1960,41 @@ public class Tests {
             HiddenService.KeyMaterial unfriendlyHiddenServiceKeyMaterial = HiddenService.generateKeyMaterial();
             X509.KeyMaterial unfriendlyX509KeyMaterial = X509.generateKeyMaterial(unfriendlyHiddenServiceKeyMaterial.mHostname);
 
+            Log.addEntry(LOG_TAG, "TLS setup benchmark...");
+            runTransportSecurityBenchmark(
+                    selfX509KeyMaterial,
+                    Arrays.asList(friend.mPublicIdentity.mX509Certificate, otherFriendX509KeyMaterial.mCertificate));
+
+            Log.addEntry(LOG_TAG, "Request body parsing...");
+            runRequestBodyTests(selfX509KeyMaterial, friend.mPublicIdentity.mX509Certificate);
+
+            Log.addEntry(LOG_TAG, "Pull status benchmark...");
+            runPullStatusBenchmark(selfX509KeyMaterial, friend.mPublicIdentity.mX509Certificate);
+
+            Log.addEntry(LOG_TAG, "Response writer benchmark...");
+            runResponseWriterBenchmark(selfX509KeyMaterial, friendX509KeyMaterial);
+
+            Log.addEntry(LOG_TAG, "Non-blocking web server request failures...");
+            runNioWebServerFailureTests(selfX509KeyMaterial, friendX509KeyMaterial);
+
+            Log.addEntry(LOG_TAG, "Peer identity...");
+            runPeerIdentityTests(selfX509KeyMaterial, friendX509KeyMaterial);
+
+            Log.addEntry(LOG_TAG, "Prewarm benchmark...");
+            runPrewarmBenchmark(selfX509KeyMaterial, friendX509KeyMaterial);
+
+            Log.addEntry(LOG_TAG, "Stream isolation...");
+            runStreamIsolationTests(selfX509KeyMaterial, friendX509KeyMaterial);
+
+            Log.addEntry(LOG_TAG, "Hedged connect...");
+            runHedgedConnectTests(selfX509KeyMaterial, friendX509KeyMaterial);
+
+            Log.addEntry(LOG_TAG, "Adaptive timeout worker occupancy...");
+            runAdaptiveTimeoutOccupancyBenchmark(selfX509KeyMaterial);
+
+            Log.addEntry(LOG_TAG, "Web server keep-alive load test...");
+            runWebServerLoadTest(selfX509KeyMaterial, friendX509KeyMaterial);
+
             Log.addEntry(LOG_TAG, "Start self web server...");
             List<String> selfPeerCertificates = new ArrayList<String>();
             selfPeerCertificates.add(friend.mPublicIdentity.mX509Certificate);
@@ -182,6 +2023,9 @@ public class Tests {
             // Repeat multiple times to exercise keep-alive connection
             String response;
             String expectedResponse = Json.toJson(selfRequestHandler.getMockStatus());
+            Metrics.Counter clientHandshakes = Metrics.getInstance().getCounter(Metrics.TLS_CLIENT_HANDSHAKES);
+            WebClient.shutdown();
+            long clientHandshakeCount = clientHandshakes.get();
             for (int i = 0; i < 4; i++) {
                 Log.addEntry(LOG_TAG, "Direct GET request from valid friend...");
                 response = WebClient.makeGetRequest(
@@ -204,6 +2048,164 @@ public class Tests {
                         selfWebServer.getListeningPort(),
                         Protocol.PUSH_STATUS_REQUEST_PATH,
                         expectedResponse);
+                // The other friend shares this friend, as two personas may; its requests use
+                // their own pooled connection, without retiring the first friend's
+                Log.addEntry(LOG_TAG, "Direct GET request from other valid friend...");
+                WebClient.makeGetRequest(
+                        otherFriendX509KeyMaterial,
+                        self.mPublicIdentity.mX509Certificate,
+                        WebClient.UNTUNNELED_REQUEST,
+                        "127.0.0.1",
+                        selfWebServer.getListeningPort(),
+                        Protocol.PULL_STATUS_REQUEST_PATH);
+            }
+            // Client certificate authenticated connections must be reused from the pool, one
+            // for each client identity
+            if (clientHandshakes.get() - clientHandshakeCount != 2) {
+                throw new Utils.ApplicationError(LOG_TAG, "keep-alive connection not reused");
+            }
+
+            // Drop pooled connections, so the next request makes a new connection and
+            // should resume the TLS session from the previous requests
+            Log.addEntry(LOG_TAG, "Direct GET request with resumed TLS session...");
+            WebClient.shutdown();
+            Metrics.Counter resumedHandshakes = Metrics.getInstance().getCounter(Metrics.TLS_CLIENT_RESUMED_HANDSHAKES);
+            long resumedHandshakeCount = resumedHandshakes.get();
+            response = WebClient.makeGetRequest(
+                    friendX509KeyMaterial,
+                    self.mPublicIdentity.mX509Certificate,
+                    WebClient.UNTUNNELED_REQUEST,
+                    "127.0.0.1",
+                    selfWebServer.getListeningPort(),
+                    Protocol.PULL_STATUS_REQUEST_PATH);
+            if (!response.equals(expectedResponse)) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected status response value");
+            }
+            if (resumedHandshakes.get() != resumedHandshakeCount + 1) {
+                throw new Utils.ApplicationError(LOG_TAG, "TLS session not resumed");
+            }
+
+            Log.addEntry(LOG_TAG, "Direct GET request with streaming status decoding...");
+            Data.Status status = WebClient.makeGetRequest(
+                    friendX509KeyMaterial,
+                    self.mPublicIdentity.mX509Certificate,
+                    WebClient.UNTUNNELED_REQUEST,
+                    "127.0.0.1",
+                    selfWebServer.getListeningPort(),
+                    Protocol.PULL_STATUS_REQUEST_PATH,
+                    new WebClient.JsonResponseHandler<Data.Status>(Data.Status.class, Protocol.MAX_RESPONSE_BODY_BYTES));
+            if (!Json.toJson(status).equals(expectedResponse)) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected status response value");
+            }
+
+            Log.addEntry(LOG_TAG, "Direct conditional GET requests...");
+            WebClient.ConditionalResponse<String> conditionalResponse = null;
+            for (int i = 0; i < 2; i++) {
+                conditionalResponse = WebClient.makeConditionalGetRequest(
+                        friendX509KeyMaterial,
+                        self.mPublicIdentity.mX509Certificate,
+                        WebClient.UNTUNNELED_REQUEST,
+                        "127.0.0.1",
+                        selfWebServer.getListeningPort(),
+                        Protocol.PULL_STATUS_REQUEST_PATH,
+                        conditionalResponse != null ? conditionalResponse.mEntityTag : null,
+                        new WebClient.StringResponseHandler(Protocol.MAX_RESPONSE_BODY_BYTES));
+                // First request gets the full status; second, with the entity tag, gets not modified
+                if (conditionalResponse.mNotModified != (i == 1) ||
+                        conditionalResponse.mEntityTag == null ||
+                        (i == 0 && !conditionalResponse.mBody.equals(expectedResponse))) {
+                    throw new Utils.ApplicationError(LOG_TAG, "unexpected conditional response");
+                }
+            }
+
+            Log.addEntry(LOG_TAG, "Direct non-blocking conditional GET requests...");
+            for (int i = 0; i < 2; i++) {
+                NioWebClient.ResponseFuture<String> future = NioWebClient.makeConditionalGetRequest(
+                        friendX509KeyMaterial,
+                        self.mPublicIdentity.mX509Certificate,
+                        WebClient.UNTUNNELED_REQUEST,
+                        "127.0.0.1",
+                        selfWebServer.getListeningPort(),
+                        Protocol.PULL_STATUS_REQUEST_PATH,
+                        i == 1 ? conditionalResponse.mEntityTag : null,
+                        new WebClient.StringResponseHandler(Protocol.MAX_RESPONSE_BODY_BYTES));
+                WebClient.ConditionalResponse<String> nonBlockingResponse = future.getResponse();
+                if (nonBlockingResponse.mNotModified != (i == 1) ||
+                        (i == 0 && !nonBlockingResponse.mBody.equals(expectedResponse))) {
+                    throw new Utils.ApplicationError(LOG_TAG, "unexpected non-blocking conditional response");
+                }
+            }
+
+            // Requests complete even when their listener's executor is shut down, or when the
+            // client shuts down; and the client restarts for the next request
+            Log.addEntry(LOG_TAG, "Direct non-blocking requests around client shutdown...");
+            ExecutorService stoppedThreadPool = Executors.newSingleThreadExecutor();
+            stoppedThreadPool.shutdown();
+            for (int i = 0; i < 2; i++) {
+                NioWebClient.ResponseFuture<String> future = NioWebClient.makeConditionalGetRequest(
+                        friendX509KeyMaterial,
+                        self.mPublicIdentity.mX509Certificate,
+                        WebClient.UNTUNNELED_REQUEST,
+                        "127.0.0.1",
+                        selfWebServer.getListeningPort(),
+                        Protocol.PULL_STATUS_REQUEST_PATH,
+                        null,
+                        new WebClient.StringResponseHandler(Protocol.MAX_RESPONSE_BODY_BYTES));
+                future.addListener(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                            }
+                        },
+                        stoppedThreadPool);
+                if (i == 0) {
+                    NioWebClient.shutdown();
+                }
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                } catch (TimeoutException e) {
+                    throw new Utils.ApplicationError(LOG_TAG, "non-blocking request didn't complete");
+                } catch (ExecutionException e) {
+                    if (i == 1) {
+                        throw new Utils.ApplicationError(LOG_TAG, e);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new Utils.ApplicationError(LOG_TAG, e);
+                }
+            }
+
+            Log.addEntry(LOG_TAG, "Direct exchange request...");
+            WebClient.ConditionalResponse<String> exchangeResponse = WebClient.makeConditionalPostRequest(
+                    friendX509KeyMaterial,
+                    self.mPublicIdentity.mX509Certificate,
+                    WebClient.UNTUNNELED_REQUEST,
+                    "127.0.0.1",
+                    selfWebServer.getListeningPort(),
+                    Protocol.EXCHANGE_STATUS_REQUEST_PATH,
+                    Json.toJson(friendRequestHandler.getMockStatus()),
+                    null,
+                    new WebClient.StringResponseHandler(Protocol.MAX_RESPONSE_BODY_BYTES));
+            if (exchangeResponse.mNotModified || !exchangeResponse.mBody.equals(expectedResponse)) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected exchange response");
+            }
+
+            Log.addEntry(LOG_TAG, "Direct GET request exceeding maximum response size...");
+            boolean oversizeFailed = false;
+            try {
+                WebClient.makeGetRequest(
+                        friendX509KeyMaterial,
+                        self.mPublicIdentity.mX509Certificate,
+                        WebClient.UNTUNNELED_REQUEST,
+                        "127.0.0.1",
+                        selfWebServer.getListeningPort(),
+                        Protocol.PULL_STATUS_REQUEST_PATH,
+                        new WebClient.JsonResponseHandler<Data.Status>(Data.Status.class, 16));
+            } catch (Utils.ApplicationError e) {
+                oversizeFailed = true;
+            }
+            if (!oversizeFailed) {
+                throw new Utils.ApplicationError(LOG_TAG, "unexpected success");
             }
 
             Log.addEntry(LOG_TAG, "Run self Tor...");
@@ -236,6 +2238,8 @@ public class Tests {
             selfTor.start();
             selfTor.awaitStarted();
             friendTor.awaitStarted();
+            selfTor.awaitCircuitEstablished();
+            friendTor.awaitCircuitEstablished();
 
             // TODO: monitor publication state via Tor control interface?
             int publishWaitMilliseconds = 30000;
@@ -298,6 +2302,7 @@ public class Tests {
                     friendWebServer.getListeningPort());
             friendTor.start();
             friendTor.awaitStarted();
+            friendTor.awaitCircuitEstablished();
             failed = false;
             try {
                 response = WebClient.makeGetRequest(
@@ -316,6 +2321,10 @@ public class Tests {
             if (!failed) {
                 throw new Utils.ApplicationError(LOG_TAG, "unexpected success");
             }
+
+            Log.addEntry(LOG_TAG, "Persona benchmark...");
+            runPersonaBenchmark(1);
+            runPersonaBenchmark(3);
             
             Log.addEntry(LOG_TAG, "Component test run success");
         } catch (Utils.ApplicationError e) {
@@ -44,6 +44,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
@@ -70,6 +71,8 @@ import android.os.Build;
  * progress. 
  * Supports multiple simultaneous Tor instances (for testing). Use distinct instance names for
  * simultaneous distinct, Tor instances, each with its own persistent data.
+ * In run services mode, one Tor instance may serve several Hidden Services (one per persona), each
+ * with its own HiddenServiceDir, instead of running a Tor process per persona.
  */
 public class TorWrapper implements net.freehaven.tor.control.EventHandler {
     
@@ -90,12 +93,24 @@ public class TorWrapper implements net.freehaven.tor.control.EventHandler {
             mAuthCookie = authCookie;
         }
     }
+
+    // A Hidden Service run by this Tor instance, in front of a local web server
+    public static class HiddenServiceConfig {
+        public final HiddenService.KeyMaterial mKeyMaterial;
+        public final int mWebServerPort;
+
+        public HiddenServiceConfig(HiddenService.KeyMaterial keyMaterial, int webServerPort) {
+            mKeyMaterial = keyMaterial;
+            mWebServerPort = webServerPort;
+        }
+    }
     
     private Mode mMode;
     private String mInstanceName;
     private List<HiddenServiceAuth> mHiddenServiceAuth;
+    // Output of MODE_GENERATE_KEY_MATERIAL
     private HiddenService.KeyMaterial mKeyMaterial;
-    private int mWebServerPort = -1;
+    private List<HiddenServiceConfig> mHiddenServiceConfigs;
     private File mRootDirectory;
     private File mDataDirectory;
     private File mHiddenServiceDirectory;
@@ -139,14 +154,27 @@ public class TorWrapper implements net.freehaven.tor.control.EventHandler {
             List<HiddenServiceAuth> hiddenServiceAuth,
             HiddenService.KeyMaterial keyMaterial,
             int webServerPort) {
+        this(
+            mode,
+            instanceName,
+            hiddenServiceAuth,
+            (keyMaterial == null) ?
+                new ArrayList<HiddenServiceConfig>() :
+                Arrays.asList(new HiddenServiceConfig(keyMaterial, webServerPort)));
+    }
+
+    public TorWrapper(
+            Mode mode,
+            String instanceName,
+            List<HiddenServiceAuth> hiddenServiceAuth,
+            List<HiddenServiceConfig> hiddenServiceConfigs) {
         mMode = mode;
         mInstanceName = instanceName;
         if (mInstanceName == null) {
             mInstanceName = mMode.toString();
         }
         mHiddenServiceAuth = hiddenServiceAuth;
-        mKeyMaterial = keyMaterial;
-        mWebServerPort = webServerPort;
+        mHiddenServiceConfigs = hiddenServiceConfigs;
         Context context = Utils.getApplicationContext();
         String rootDirectory = String.format((Locale)null, "tor-%s", mInstanceName);
         mRootDirectory = context.getDir(rootDirectory, Context.MODE_PRIVATE);
@@ -223,7 +251,7 @@ public class TorWrapper implements net.freehaven.tor.control.EventHandler {
                             mHiddenServicePrivateKeyFile.getName(),
                             mHiddenServiceClientKeysFile.getName());
             hiddenServiceInitializedObserver.startWatching();
-            startDaemon(false);
+            startDaemon();
             if (!hiddenServiceInitializedObserver.await(HIDDEN_SERVICE_INITIALIZED_TIMEOUT_MILLISECONDS)) {
                 throw new Utils.ApplicationError(logTag(), "timeout waiting for Tor hidden service initialization");
             }
@@ -247,7 +275,9 @@ public class TorWrapper implements net.freehaven.tor.control.EventHandler {
             writeExecutableFile();
             writeRunServicesConfigFile();
             writeHiddenServiceFiles();
-            startDaemon(true);
+            // Don't wait for the first circuit here; callers may await it separately with
+            // awaitCircuitEstablished() and, meanwhile, proceed with other start up work
+            startDaemon();
             mSocksProxyPort = getPortValue(mControlConnection.getInfo("net/listeners/socks").replaceAll("\"", ""));
             startCompleted = true;
         } catch (IOException e) {
@@ -262,7 +292,7 @@ public class TorWrapper implements net.freehaven.tor.control.EventHandler {
         }
     }
     
-    private void startDaemon(boolean awaitFirstCircuit) throws Utils.ApplicationError, IOException, InterruptedException {
+    private void startDaemon() throws Utils.ApplicationError, IOException, InterruptedException {
         try {
             mDataDirectory.mkdirs();
             mCircuitEstablishedLatch = new CountDownLatch(1);
@@ -307,10 +337,6 @@ public class TorWrapper implements net.freehaven.tor.control.EventHandler {
             mControlConnection.authenticate(Utils.readFileToBytes(mControlAuthCookieFile));
             mControlConnection.setEventHandler(this);
             mControlConnection.setEvents(Arrays.asList("STATUS_CLIENT", "WARN", "ERR"));
-
-            if (awaitFirstCircuit) {
-                mCircuitEstablishedLatch.await(CIRCUIT_ESTABLISHED_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS);
-            }
         } finally {
             if (mProcess != null) {
                 try {
@@ -377,7 +403,35 @@ public class TorWrapper implements net.freehaven.tor.control.EventHandler {
     public int getSocksProxyPort() {
         return mSocksProxyPort;
     }
+
+    public long getResidentMemoryKilobytes() {
+        // Tor process resident set size (VmRSS), or -1 when not running or unavailable
+        if (mPid == -1) {
+            return -1;
+        }
+        try {
+            String status = Utils.readFileToString(new File(String.format((Locale)null, "/proc/%d/status", mPid)));
+            Matcher matcher = Pattern.compile("VmRSS:\\s+(\\d+)\\s+kB").matcher(status);
+            if (matcher.find()) {
+                return Long.parseLong(matcher.group(1));
+            }
+        } catch (IOException e) {
+        }
+        return -1;
+    }
     
+    public boolean awaitCircuitEstablished() {
+        // Call after awaitStarted(); returns false on timeout or when Tor is stopped
+        CountDownLatch circuitEstablishedLatch = mCircuitEstablishedLatch;
+        try {
+            return circuitEstablishedLatch != null &&
+                    circuitEstablishedLatch.await(CIRCUIT_ESTABLISHED_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
     public boolean isCircuitEstablished() {
         try {
             return mCircuitEstablishedLatch != null && mCircuitEstablishedLatch.await(0, TimeUnit.MILLISECONDS);
@@ -431,7 +485,27 @@ public class TorWrapper implements net.freehaven.tor.control.EventHandler {
                 new FileOutputStream(mConfigFile));
     }
     
+    private File getHiddenServiceDirectory(int index) {
+        // The first Hidden Service uses the original directory, retaining existing Tor state
+        if (index == 0) {
+            return mHiddenServiceDirectory;
+        }
+        return new File(mRootDirectory, String.format((Locale)null, "hidden_service-%d", index));
+    }
+
     private void writeRunServicesConfigFile() throws IOException {
+        StringBuilder hiddenServiceLines = new StringBuilder();
+        for (int i = 0; i < mHiddenServiceConfigs.size(); i++) {
+            hiddenServiceLines.append(
+                String.format(
+                    (Locale)null,
+                    "HiddenServiceDir %s\n" +
+                    "HiddenServicePort 443 localhost:%d\n" +
+                    "HiddenServiceAuthorizeClient basic friend\n",
+                    getHiddenServiceDirectory(i).getAbsolutePath(),
+                    mHiddenServiceConfigs.get(i).mWebServerPort));
+        }
+
         StringBuilder hiddenServiceAuthLines = new StringBuilder();
         for (HiddenServiceAuth hiddenServiceAuth : mHiddenServiceAuth) {
             hiddenServiceAuthLines.append(
@@ -452,17 +526,15 @@ public class TorWrapper implements net.freehaven.tor.control.EventHandler {
                         "ControlPortWriteToFile %s\n" +
                         "CookieAuthentication 1\n" +
                         "CookieAuthFile %s\n" +
-                        "SocksPort auto\n" +
-                        "HiddenServiceDir %s\n" +
-                        "HiddenServicePort 443 localhost:%d\n" +
-                        "HiddenServiceAuthorizeClient basic friend\n" +
+                        // Streams with distinct SOCKS user IDs use distinct circuits; see WebClient
+                        "SocksPort auto IsolateSOCKSAuth\n" +
+                        "%s" +
                         "%s",
                     mDataDirectory.getAbsolutePath(),
                     mPidFile.getAbsolutePath(),
                     mControlPortFile.getAbsolutePath(),
                     mControlAuthCookieFile.getAbsolutePath(),
-                    mHiddenServiceDirectory.getAbsolutePath(),
-                    mWebServerPort,
+                    hiddenServiceLines.toString(),
                     hiddenServiceAuthLines.toString());
         
         Utils.copyStream(
@@ -487,21 +559,25 @@ public class TorWrapper implements net.freehaven.tor.control.EventHandler {
     }
     
     private void writeHiddenServiceFiles() throws Utils.ApplicationError, IOException {
-        mHiddenServiceDirectory.mkdirs();
-        String hostnameFileContent = mKeyMaterial.mHostname + " " + mKeyMaterial.mAuthCookie + "\n"; 
-        Utils.writeStringToFile(
-                hostnameFileContent,
-                mHiddenServiceHostnameFile);
-        Utils.writeStringToFile(
-                new String(Utils.decodeBase64(mKeyMaterial.mPrivateKey)),
-                mHiddenServicePrivateKeyFile);
-        // Format (as per rend_service_load_auth_keys in Tor's rendservice.c): 
-        // client-name friend
-        // descriptor-cookie WSdmfwVn8ewrCLKAwVyhCT==
-        String clientKeysFileContent = "client-name friend\ndescriptor-cookie " + mKeyMaterial.mAuthCookie + "==\n"; 
-        Utils.writeStringToFile(
-                clientKeysFileContent,
-                mHiddenServiceClientKeysFile);
+        for (int i = 0; i < mHiddenServiceConfigs.size(); i++) {
+            HiddenService.KeyMaterial keyMaterial = mHiddenServiceConfigs.get(i).mKeyMaterial;
+            File hiddenServiceDirectory = getHiddenServiceDirectory(i);
+            hiddenServiceDirectory.mkdirs();
+            String hostnameFileContent = keyMaterial.mHostname + " " + keyMaterial.mAuthCookie + "\n"; 
+            Utils.writeStringToFile(
+                    hostnameFileContent,
+                    new File(hiddenServiceDirectory, mHiddenServiceHostnameFile.getName()));
+            Utils.writeStringToFile(
+                    new String(Utils.decodeBase64(keyMaterial.mPrivateKey)),
+                    new File(hiddenServiceDirectory, mHiddenServicePrivateKeyFile.getName()));
+            // Format (as per rend_service_load_auth_keys in Tor's rendservice.c): 
+            // client-name friend
+            // descriptor-cookie WSdmfwVn8ewrCLKAwVyhCT==
+            String clientKeysFileContent = "client-name friend\ndescriptor-cookie " + keyMaterial.mAuthCookie + "==\n"; 
+            Utils.writeStringToFile(
+                    clientKeysFileContent,
+                    new File(hiddenServiceDirectory, mHiddenServiceClientKeysFile.getName()));
+        }
     }
 
     private int getPortValue(String data) throws Utils.ApplicationError {
@@ -24,17 +24,31 @@ import java.net.ServerSocket;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
 import ch.boye.httpclientandroidlib.conn.ssl.SSLSocketFactory;
+import ch.boye.httpclientandroidlib.conn.ssl.X509HostnameVerifier;
 
 /**
  * Helpers for building custom TLS connections.
@@ -44,6 +58,9 @@ import ch.boye.httpclientandroidlib.conn.ssl.SSLSocketFactory;
  * - Requires a strong CipherSuite (limited by what's commonly available on Android 4.1+)
  *   which includes perfect forward secrecy
  * - Requires mutual authentication using self key material and friend certificates 
+ *
+ * Initialized SSLContexts and client socket factories are cached per (self key, peer set).
+ * TLS sessions may be resumed; the peer certificate is checked on every connection.
  */
 public class TransportSecurity {
 
@@ -66,13 +83,29 @@ public class TransportSecurity {
         }
     }
     
+    public static SSLEngine makeServerSSLEngine(
+            X509.KeyMaterial transportKeyMaterial,
+            List<String> friendCertificates) throws Utils.ApplicationError {
+        // For non-blocking servers; configured as for server sockets
+        try {
+            SSLEngine sslEngine = getSSLContext(transportKeyMaterial, friendCertificates).createSSLEngine();
+            sslEngine.setUseClientMode(false);
+            sslEngine.setNeedClientAuth(true);
+            sslEngine.setEnabledCipherSuites(TLS_REQUIRED_CIPHER_SUITES);
+            sslEngine.setEnabledProtocols(TLS_REQUIRED_PROTOCOLS);
+            return sslEngine;
+        } catch (IllegalArgumentException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
     private static class ClientSSLSocketFactory extends SSLSocketFactory {
 
-        public ClientSSLSocketFactory(SSLContext sslContext) {
-            // Using ALLOW_ALL effectively disables hostname verification. Ploggy
+        public ClientSSLSocketFactory(SSLContext sslContext, List<String> peerCertificates) {
+            // Hostname verification is replaced with PeerCertificateVerifier: Ploggy
             // simply checks that the peer is authenticating with the sole friend
             // certificate expected for this connection.
-            super(sslContext, SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+            super(sslContext, new PeerCertificateVerifier(peerCertificates));
         }
 
         @Override
@@ -81,12 +114,183 @@ public class TransportSecurity {
             socket.setEnabledProtocols(TLS_REQUIRED_PROTOCOLS);
         }
     }
-    
-    public static ClientSSLSocketFactory getClientSSLSocketFactory(SSLContext sslContext) {
-        return new ClientSSLSocketFactory(sslContext);
+
+    private static class PeerCertificateVerifier implements X509HostnameVerifier {
+
+        private final HashSet<String> mPeerCertificates;
+
+        public PeerCertificateVerifier(List<String> peerCertificates) {
+            mPeerCertificates = new HashSet<String>(peerCertificates);
+        }
+
+        @Override
+        public void verify(String host, SSLSocket socket) throws IOException {
+            // The trust manager only checks the peer certificate on a full handshake. A resumed
+            // session is only in the cache after passing that check, but the peer certificate
+            // is checked again here so the same check is made on every connection.
+            long startTime = System.currentTimeMillis();
+            socket.startHandshake();
+            long handshakeTime = System.currentTimeMillis();
+            SSLSession session = socket.getSession();
+            if (!verify(host, session)) {
+                throw new SSLException("unexpected peer certificate");
+            }
+            // A resumed session keeps its original creation time
+            recordClientHandshake(session.getCreationTime() < startTime, handshakeTime - startTime);
+        }
+
+        @Override
+        public boolean verify(String host, SSLSession session) {
+            try {
+                Certificate[] certificates = session.getPeerCertificates();
+                return certificates.length == 1 &&
+                        mPeerCertificates.contains(Utils.encodeBase64(certificates[0].getEncoded()));
+            } catch (SSLPeerUnverifiedException e) {
+                return false;
+            } catch (CertificateEncodingException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void verify(String host, X509Certificate certificate) throws SSLException {
+            throw new SSLException("operation not supported");
+        }
+
+        @Override
+        public void verify(String host, String[] commonNames, String[] subjectAlternativeNames) throws SSLException {
+            throw new SSLException("operation not supported");
+        }
+    }
+
+    public static SSLEngine makeClientSSLEngine(
+            X509.KeyMaterial x509KeyMaterial,
+            List<String> peerCertificates,
+            String host,
+            int port) throws Utils.ApplicationError {
+        // For non-blocking clients; the handshake must be completed with verifyClientSession.
+        // Created with the peer host and port, so TLS sessions are resumed as with sockets.
+        try {
+            SSLEngine sslEngine = getSSLContext(x509KeyMaterial, peerCertificates).createSSLEngine(host, port);
+            sslEngine.setUseClientMode(true);
+            sslEngine.setEnabledCipherSuites(TLS_REQUIRED_CIPHER_SUITES);
+            sslEngine.setEnabledProtocols(TLS_REQUIRED_PROTOCOLS);
+            return sslEngine;
+        } catch (IllegalArgumentException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    public static void verifyClientSession(
+            SSLSession session,
+            List<String> peerCertificates,
+            long handshakeStartTime,
+            long handshakeMilliseconds) throws SSLException {
+        // The same peer certificate check as for client sockets; see PeerCertificateVerifier
+        if (!new PeerCertificateVerifier(peerCertificates).verify(null, session)) {
+            throw new SSLException("unexpected peer certificate");
+        }
+        recordClientHandshake(session.getCreationTime() < handshakeStartTime, handshakeMilliseconds);
+    }
+
+    private static void recordClientHandshake(boolean resumed, long handshakeMilliseconds) {
+        Metrics metrics = Metrics.getInstance();
+        Metrics.Counter handshakes = metrics.getCounter(Metrics.TLS_CLIENT_HANDSHAKES);
+        Metrics.Counter resumedHandshakes = metrics.getCounter(Metrics.TLS_CLIENT_RESUMED_HANDSHAKES);
+        Metrics.Histogram fullLatency = metrics.getHistogram(Metrics.TLS_FULL_HANDSHAKE_MILLISECONDS);
+        Metrics.Histogram resumedLatency = metrics.getHistogram(Metrics.TLS_RESUMED_HANDSHAKE_MILLISECONDS);
+        handshakes.increment();
+        if (resumed) {
+            resumedHandshakes.increment();
+            resumedLatency.record(handshakeMilliseconds);
+        } else {
+            fullLatency.record(handshakeMilliseconds);
+        }
+        metrics.getGauge(Metrics.TLS_CLIENT_RESUMED_PERCENT).set(100*resumedHandshakes.get()/handshakes.get());
+        // Estimated from mean latencies; only meaningful once both kinds of handshake were recorded
+        if (fullLatency.getCount() > 0 && resumedLatency.getCount() > 0) {
+            metrics.getGauge(Metrics.TLS_RESUMPTION_SAVED_MILLISECONDS).set(
+                    resumedLatency.getCount()*Math.max(0, fullLatency.getMean() - resumedLatency.getMean()));
+        }
     }
 
-    public static SSLContext getSSLContext(
+    private static class CachedContext {
+        public final SSLContext mSSLContext;
+        public ClientSSLSocketFactory mClientSSLSocketFactory;
+
+        public CachedContext(SSLContext sslContext) {
+            mSSLContext = sslContext;
+            mClientSSLSocketFactory = null;
+        }
+    }
+
+    // Initialized contexts, keyed by self key and peer certificate set fingerprints. Building a
+    // context decodes the key material, builds two key stores and seeds a SecureRandom; with the
+    // cache, this is done once per friend instead of once per request. Least recently used
+    // contexts are dropped when the cache is full.
+    private static final int MAX_CACHED_CONTEXTS = 64;
+    private static final LinkedHashMap<String, CachedContext> mCachedContexts =
+            new LinkedHashMap<String, CachedContext>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedContext> eldest) {
+                    return size() > MAX_CACHED_CONTEXTS;
+                }
+            };
+
+    public static synchronized SSLContext getSSLContext(
+            X509.KeyMaterial x509KeyMaterial,
+            List<String> friendCertificates) throws Utils.ApplicationError {
+        return getCachedContext(x509KeyMaterial, friendCertificates).mSSLContext;
+    }
+
+    public static synchronized SSLSocketFactory getClientSSLSocketFactory(
+            X509.KeyMaterial x509KeyMaterial,
+            List<String> friendCertificates) throws Utils.ApplicationError {
+        CachedContext cachedContext = getCachedContext(x509KeyMaterial, friendCertificates);
+        if (cachedContext.mClientSSLSocketFactory == null) {
+            cachedContext.mClientSSLSocketFactory =
+                    new ClientSSLSocketFactory(cachedContext.mSSLContext, friendCertificates);
+        }
+        return cachedContext.mClientSSLSocketFactory;
+    }
+
+    public static synchronized void clearCache() {
+        // Called when self or friends change, so replaced key material isn't retained
+        mCachedContexts.clear();
+    }
+
+    private static CachedContext getCachedContext(
+            X509.KeyMaterial x509KeyMaterial,
+            List<String> friendCertificates) throws Utils.ApplicationError {
+        String key = getCacheKey(x509KeyMaterial, friendCertificates);
+        CachedContext cachedContext = mCachedContexts.get(key);
+        if (cachedContext == null) {
+            cachedContext = new CachedContext(makeSSLContext(x509KeyMaterial, friendCertificates));
+            mCachedContexts.put(key, cachedContext);
+        }
+        return cachedContext;
+    }
+
+    private static String getCacheKey(
+            X509.KeyMaterial x509KeyMaterial,
+            List<String> friendCertificates) throws Utils.ApplicationError {
+        // The peer set is order independent, so peer fingerprints are sorted
+        List<String> peerFingerprints = new ArrayList<String>();
+        for (String friendCertificate : friendCertificates) {
+            peerFingerprints.add(Utils.formatFingerprint(X509.getFingerprint(friendCertificate)));
+        }
+        Collections.sort(peerFingerprints);
+        StringBuilder key = new StringBuilder();
+        key.append(Utils.formatFingerprint(X509.getFingerprint(x509KeyMaterial.mCertificate, x509KeyMaterial.mPrivateKey)));
+        for (String peerFingerprint : peerFingerprints) {
+            key.append(",");
+            key.append(peerFingerprint);
+        }
+        return key.toString();
+    }
+
+    public static SSLContext makeSSLContext(
             X509.KeyMaterial x509KeyMaterial,
             List<String> friendCertificates) throws Utils.ApplicationError {
         try {
@@ -106,6 +310,13 @@ public class TransportSecurity {
 
             SSLContext sslContext = SSLContext.getInstance(TLS_REQUIRED_PROTOCOL);
             sslContext.init(keyManagers, trustManagers, new SecureRandom());
+
+            // Enable session resumption (session IDs) on both sides. Session caches are bounded
+            // per peer. Resumed sessions reuse the master secret from the full handshake, so the
+            // timeout also bounds how long a session's keys remain in use.
+            int sessionCacheSize = Math.max(1, friendCertificates.size()*SESSION_CACHE_SIZE_PER_PEER);
+            configureSessionContext(sslContext.getClientSessionContext(), sessionCacheSize);
+            configureSessionContext(sslContext.getServerSessionContext(), sessionCacheSize);
             return sslContext;
         } catch (IllegalArgumentException e) {
             throw new Utils.ApplicationError(LOG_TAG, e);
@@ -114,6 +325,13 @@ public class TransportSecurity {
         }
     }
     
+    private static void configureSessionContext(SSLSessionContext sessionContext, int sessionCacheSize) {
+        if (sessionContext != null) {
+            sessionContext.setSessionCacheSize(sessionCacheSize);
+            sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        }
+    }
+
     // Protocol specification
 
     // TODO: ECC disabled -- key generation works, but TLS fails in ClientHello
@@ -127,4 +345,7 @@ public class TransportSecurity {
     private static final String TLS_REQUIRED_PROTOCOL = "TLSv1.2";
 
     private static final String[] TLS_REQUIRED_PROTOCOLS = new String [] { TLS_REQUIRED_PROTOCOL };
+
+    private static final int SESSION_CACHE_SIZE_PER_PEER = 2;
+    private static final int SESSION_TIMEOUT_SECONDS = 60*60;
 }
@@ -20,9 +20,11 @@
 package ca.psiphon.ploggy;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -144,6 +146,128 @@ public class Utils {
         }
     }
     
+    public static class BoundedInputStream extends FilterInputStream {
+        // Fails reads once more than the maximum number of bytes has been read, so untrusted
+        // input can't exhaust memory or storage
+
+        private final long mMaxBytes;
+        private long mByteCount;
+
+        public BoundedInputStream(InputStream inputStream, long maxBytes) {
+            super(inputStream);
+            mMaxBytes = maxBytes;
+            mByteCount = 0;
+        }
+
+        public long getByteCount() {
+            return mByteCount;
+        }
+
+        private void count(long readCount) throws IOException {
+            if (readCount > 0) {
+                mByteCount += readCount;
+                if (mByteCount > mMaxBytes) {
+                    throw new IOException(String.format("stream exceeds %d bytes", mMaxBytes));
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            count(value == -1 ? 0 : 1);
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int readCount = super.read(buffer, offset, length);
+            count(readCount);
+            return readCount;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipCount = super.skip(count);
+            count(skipCount);
+            return skipCount;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    public static class ContentLengthInputStream extends FilterInputStream {
+        // Reads exactly the declared number of bytes of a request or response body, across as
+        // many short reads as the underlying stream returns. Reports end of stream once the
+        // body is consumed, and fails if the underlying stream ends first. The underlying
+        // stream isn't closed, so a kept-alive connection can read its next message.
+
+        private long mRemainingBytes;
+
+        public ContentLengthInputStream(InputStream inputStream, long contentLength) {
+            super(inputStream);
+            mRemainingBytes = contentLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemainingBytes <= 0) {
+                return -1;
+            }
+            int value = super.read();
+            if (value == -1) {
+                throw new EOFException(String.format("stream ended %d bytes short of content length", mRemainingBytes));
+            }
+            mRemainingBytes--;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mRemainingBytes <= 0) {
+                return -1;
+            }
+            int readCount = super.read(buffer, offset, (int)Math.min(length, mRemainingBytes));
+            if (readCount == -1) {
+                throw new EOFException(String.format("stream ended %d bytes short of content length", mRemainingBytes));
+            }
+            mRemainingBytes -= readCount;
+            return readCount;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipCount = super.skip(Math.min(count, mRemainingBytes));
+            mRemainingBytes -= skipCount;
+            return skipCount;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int)Math.min(super.available(), mRemainingBytes);
+        }
+
+        @Override
+        public void close() {
+            // Leaves the underlying stream open; see skipRemaining
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        public void skipRemaining() throws IOException {
+            // Consumes any part of the body not read, so it isn't taken as the next message
+            byte[] buffer = new byte[4096];
+            while (read(buffer, 0, buffer.length) != -1) {
+            }
+        }
+    }
+
     public static class FileInitializedObserver extends FileObserver {
         private final CountDownLatch mLatch;
         private ArrayList<String> mTargetFilenames;
@@ -222,7 +346,7 @@ public class Utils {
     public static String formatSameDayTime(Date date) {
         return DateUtils.formatSameDayTime(
                 date.getTime(),
-                (new Date()).getTime(),
+                Clock.getInstance().currentTimeMillis(),
                 DateFormat.DEFAULT,
                 DateFormat.DEFAULT).toString();
     }
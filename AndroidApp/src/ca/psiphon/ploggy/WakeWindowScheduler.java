@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2013, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.ploggy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Groups friend pulls and pending pushes into shared wake windows.
+ *
+ * With one fixed-delay timer per friend, N friends wake the device N times per pull period.
+ * In alignment mode, the Engine instead wakes once per window and runs all due work together.
+ * A friend is due unless its status was received within the last half period, as when the friend
+ * pushed recently; a skipped friend is due in the following window, so no friend waits more than
+ * one extra window for an update.
+ *
+ * Also tracks wakeups per hour and per-friend freshness (time since status was last received).
+ * All time is read through the current Clock, so scheduling behavior may be tested in virtual time.
+ */
+public class WakeWindowScheduler {
+
+    public static class Window {
+        public final long mTimestamp;
+        public final List<String> mPullFriendIds;
+        public final List<String> mPushFriendIds;
+
+        public Window(
+                long timestamp,
+                List<String> pullFriendIds,
+                List<String> pushFriendIds) {
+            mTimestamp = timestamp;
+            mPullFriendIds = pullFriendIds;
+            mPushFriendIds = pushFriendIds;
+        }
+    }
+
+    private static final long ONE_HOUR_MILLISECONDS = 60*60*1000;
+    private static final long NEVER_RECEIVED = -1;
+
+    private final long mPeriodMilliseconds;
+    private final HashMap<String, Long> mLastReceivedTimestamps;
+    private final Set<String> mInFlightPullFriendIds;
+    private final Set<String> mPendingPushFriendIds;
+    private final LinkedList<Long> mWakeupTimestamps;
+
+    public WakeWindowScheduler(long periodMilliseconds) {
+        mPeriodMilliseconds = periodMilliseconds;
+        mLastReceivedTimestamps = new HashMap<String, Long>();
+        mInFlightPullFriendIds = new HashSet<String>();
+        mPendingPushFriendIds = new LinkedHashSet<String>();
+        mWakeupTimestamps = new LinkedList<Long>();
+    }
+
+    public long getPeriodMilliseconds() {
+        return mPeriodMilliseconds;
+    }
+
+    public synchronized void setFriends(Collection<String> friendIds) {
+        // New friends are due in the next window; removed friends are dropped
+        mLastReceivedTimestamps.keySet().retainAll(friendIds);
+        mInFlightPullFriendIds.retainAll(friendIds);
+        mPendingPushFriendIds.retainAll(friendIds);
+        for (String friendId : friendIds) {
+            if (!mLastReceivedTimestamps.containsKey(friendId)) {
+                mLastReceivedTimestamps.put(friendId, NEVER_RECEIVED);
+            }
+        }
+    }
+
+    public synchronized void addPendingPush(String friendId) {
+        if (mLastReceivedTimestamps.containsKey(friendId)) {
+            mPendingPushFriendIds.add(friendId);
+        }
+    }
+
+    public synchronized void markReceived(String friendId) {
+        // Called on a successful pull or when the friend pushed; either way, the status is fresh
+        if (mLastReceivedTimestamps.containsKey(friendId)) {
+            mLastReceivedTimestamps.put(friendId, Clock.getInstance().currentTimeMillis());
+        }
+    }
+
+    public synchronized void endPull(String friendId) {
+        mInFlightPullFriendIds.remove(friendId);
+    }
+
+    public synchronized Window beginWindow() {
+        long now = Clock.getInstance().currentTimeMillis();
+        mWakeupTimestamps.add(now);
+        expireWakeupTimestamps(now);
+        List<String> pullFriendIds = new ArrayList<String>();
+        for (String friendId : mLastReceivedTimestamps.keySet()) {
+            if (!mInFlightPullFriendIds.contains(friendId) && isDue(friendId, now)) {
+                pullFriendIds.add(friendId);
+                mInFlightPullFriendIds.add(friendId);
+            }
+        }
+        List<String> pushFriendIds = new ArrayList<String>(mPendingPushFriendIds);
+        mPendingPushFriendIds.clear();
+        return new Window(now, pullFriendIds, pushFriendIds);
+    }
+
+    public synchronized List<String> getFriendIdsDueAt(long time) {
+        // Friends that would be pulled by a window beginning at the given time
+        List<String> friendIds = new ArrayList<String>();
+        for (String friendId : mLastReceivedTimestamps.keySet()) {
+            if (!mInFlightPullFriendIds.contains(friendId) && isDue(friendId, time)) {
+                friendIds.add(friendId);
+            }
+        }
+        return friendIds;
+    }
+
+    private boolean isDue(String friendId, long now) {
+        long lastReceived = mLastReceivedTimestamps.get(friendId);
+        if (lastReceived == NEVER_RECEIVED) {
+            return true;
+        }
+        // Due once the status is at least half a period old. A friend who pushed more recently is
+        // skipped until the following window, when its status is at most one and a half periods old.
+        return now - lastReceived >= mPeriodMilliseconds/2;
+    }
+
+    private void expireWakeupTimestamps(long now) {
+        while (mWakeupTimestamps.size() > 0 && mWakeupTimestamps.getFirst() <= now - ONE_HOUR_MILLISECONDS) {
+            mWakeupTimestamps.removeFirst();
+        }
+    }
+
+    public synchronized int getWakeupsPerHour() {
+        // Count of wakeups within the trailing hour
+        expireWakeupTimestamps(Clock.getInstance().currentTimeMillis());
+        return mWakeupTimestamps.size();
+    }
+
+    public synchronized long getFreshnessMilliseconds(String friendId) {
+        // Returns age of the friend's last received status, or -1 if no status received yet
+        Long lastReceived = mLastReceivedTimestamps.get(friendId);
+        if (lastReceived == null || lastReceived == NEVER_RECEIVED) {
+            return -1;
+        }
+        return Clock.getInstance().currentTimeMillis() - lastReceived;
+    }
+}
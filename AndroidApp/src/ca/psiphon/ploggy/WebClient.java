@@ -19,40 +19,64 @@
 
 package ca.psiphon.ploggy;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.net.ssl.SSLContext;
-
+import ch.boye.httpclientandroidlib.Header;
 import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.HttpException;
 import ch.boye.httpclientandroidlib.HttpHost;
 import ch.boye.httpclientandroidlib.HttpResponse;
 import ch.boye.httpclientandroidlib.HttpStatus;
+import ch.boye.httpclientandroidlib.client.UserTokenHandler;
 import ch.boye.httpclientandroidlib.client.methods.HttpGet;
 import ch.boye.httpclientandroidlib.client.methods.HttpPost;
 import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
-import ch.boye.httpclientandroidlib.conn.ClientConnectionManager;
 import ch.boye.httpclientandroidlib.conn.ClientConnectionOperator;
+import ch.boye.httpclientandroidlib.conn.ManagedClientConnection;
 import ch.boye.httpclientandroidlib.conn.OperatedClientConnection;
+import ch.boye.httpclientandroidlib.conn.routing.HttpRoute;
 import ch.boye.httpclientandroidlib.conn.scheme.Scheme;
 import ch.boye.httpclientandroidlib.conn.scheme.SchemeRegistry;
 import ch.boye.httpclientandroidlib.conn.ssl.SSLSocketFactory;
-import ch.boye.httpclientandroidlib.entity.StringEntity;
+import ch.boye.httpclientandroidlib.entity.ByteArrayEntity;
 import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
 import ch.boye.httpclientandroidlib.impl.conn.DefaultClientConnectionOperator;
 import ch.boye.httpclientandroidlib.impl.conn.PoolingClientConnectionManager;
 import ch.boye.httpclientandroidlib.params.BasicHttpParams;
+import ch.boye.httpclientandroidlib.params.DefaultedHttpParams;
 import ch.boye.httpclientandroidlib.params.HttpConnectionParams;
 import ch.boye.httpclientandroidlib.params.HttpParams;
-import ch.boye.httpclientandroidlib.protocol.HTTP;
+import ch.boye.httpclientandroidlib.protocol.BasicHttpContext;
 import ch.boye.httpclientandroidlib.protocol.HttpContext;
 
 /**
@@ -68,9 +92,79 @@ public class WebClient {
     public static final int UNTUNNELED_REQUEST = -1;
     
     private static final String LOCAL_SOCKS_PROXY_PORT_PARAM_NAME = "localSocksProxyPort";
-    private static final int CONNECT_TIMEOUT_MILLISECONDS = 60000;
-    private static final int READ_TIMEOUT_MILLISECONDS = 60000;
+    // Connect and read timeouts are adapted to each friend's measured round trip times; see
+    // RttEstimator. The connect timeout covers the SOCKS connect, which waits on Tor's hidden
+    // service rendezvous, and the TLS handshake. The ceilings are the former fixed timeouts.
+    private static final int MIN_CONNECT_TIMEOUT_MILLISECONDS = 15000;
+    private static final int MAX_CONNECT_TIMEOUT_MILLISECONDS = 60000;
+    private static final int MIN_READ_TIMEOUT_MILLISECONDS = 10000;
+    private static final int MAX_READ_TIMEOUT_MILLISECONDS = 60000;
+    private static final String HEDGE_DELAY_PARAM_NAME = "hedgeDelayMilliseconds";
+    // Sent as the SOCKS4a user ID. Tor is configured with IsolateSOCKSAuth, so streams with
+    // different user IDs never share a circuit, and one slow circuit stalls only its own streams.
+    private static final String SOCKS_USER_ID_PARAM_NAME = "socksUserId";
+    private static final String PULL_REQUEST_CLASS = "pull";
+    private static final String PUSH_REQUEST_CLASS = "push";
+    private static final String CONNECT_MILLISECONDS_ATTRIBUTE = "ca.psiphon.ploggy.connect-milliseconds";
+    private static final String SOCKS_CONNECT_MILLISECONDS_ATTRIBUTE = "ca.psiphon.ploggy.socks-connect-milliseconds";
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 2;
+    // Below the WebServer's 60 second keep-alive read timeout, so a pooled connection
+    // is not reused just as the server closes it
+    private static final long CONNECTION_IDLE_TIMEOUT_MILLISECONDS = 30000;
+    private static final long CLIENT_IDLE_TIMEOUT_MILLISECONDS = 10*60*1000;
     
+    private static final long SPILL_TO_FILE_THRESHOLD_BYTES = 64*1024;
+    private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+    private static final String ETAG_HEADER = "ETag";
+
+    /**
+     * Consumes a response body. handleResponse reads from a stream that fails once more than
+     * getMaxResponseBytes() bytes are read, so a misbehaving peer can't exhaust memory.
+     */
+    public interface ResponseHandler<T> {
+        public long getMaxResponseBytes();
+        public T handleResponse(InputStream responseBody) throws IOException, Utils.ApplicationError;
+    }
+
+    public static class StringResponseHandler implements ResponseHandler<String> {
+        private final long mMaxResponseBytes;
+
+        public StringResponseHandler(long maxResponseBytes) {
+            mMaxResponseBytes = maxResponseBytes;
+        }
+
+        @Override
+        public long getMaxResponseBytes() {
+            return mMaxResponseBytes;
+        }
+
+        @Override
+        public String handleResponse(InputStream responseBody) throws IOException {
+            return Utils.readInputStreamToString(responseBody);
+        }
+    }
+
+    public static class JsonResponseHandler<T> implements ResponseHandler<T> {
+        private final Class<T> mType;
+        private final long mMaxResponseBytes;
+
+        public JsonResponseHandler(Class<T> type, long maxResponseBytes) {
+            mType = type;
+            mMaxResponseBytes = maxResponseBytes;
+        }
+
+        @Override
+        public long getMaxResponseBytes() {
+            return mMaxResponseBytes;
+        }
+
+        @Override
+        public T handleResponse(InputStream responseBody) throws Utils.ApplicationError {
+            // Decodes incrementally; the body is never held as a string
+            return Json.fromJson(responseBody, mType);
+        }
+    }
+
     public static String makeGetRequest(
             X509.KeyMaterial x509KeyMaterial,
             String peerCertificate,
@@ -85,7 +179,106 @@ public class WebClient {
                 hostname,
                 port,
                 requestPath,
-                null);
+                null,
+                null,
+                new StringResponseHandler(Protocol.MAX_RESPONSE_BODY_BYTES)).mBody;
+    }
+
+    public static <T> T makeGetRequest(
+            X509.KeyMaterial x509KeyMaterial,
+            String peerCertificate,
+            int localSocksProxyPort,
+            String hostname,
+            int port,
+            String requestPath,
+            ResponseHandler<T> responseHandler) throws Utils.ApplicationError {
+        return makeRequest(
+                x509KeyMaterial,
+                peerCertificate,
+                localSocksProxyPort,
+                hostname,
+                port,
+                requestPath,
+                null,
+                null,
+                responseHandler).mBody;
+    }
+
+    public static <T> ConditionalResponse<T> makeConditionalPostRequest(
+            X509.KeyMaterial x509KeyMaterial,
+            String peerCertificate,
+            int localSocksProxyPort,
+            String hostname,
+            int port,
+            String requestPath,
+            String requestBody,
+            String entityTag,
+            ResponseHandler<T> responseHandler) throws Utils.ApplicationError {
+        // As makeConditionalGetRequest, for requests such as Protocol.EXCHANGE_STATUS_REQUEST_PATH
+        // which both send and receive a body. A 204 response has no body and is not "not modified".
+        return makeRequest(
+                x509KeyMaterial,
+                peerCertificate,
+                localSocksProxyPort,
+                hostname,
+                port,
+                requestPath,
+                requestBody,
+                entityTag,
+                responseHandler);
+    }
+
+    public static class HttpStatusError extends Utils.ApplicationError {
+        private static final long serialVersionUID = -2817046306744178913L;
+
+        public final int mStatusCode;
+
+        public HttpStatusError(int statusCode) {
+            super(LOG_TAG, String.format("HTTP request failed with %d", statusCode));
+            mStatusCode = statusCode;
+        }
+
+        public boolean isRequestRejected() {
+            // Refused or unsupported; older web servers answer requests they don't know with 403
+            return mStatusCode == HttpStatus.SC_FORBIDDEN ||
+                    mStatusCode == HttpStatus.SC_NOT_FOUND ||
+                    mStatusCode == HttpStatus.SC_METHOD_NOT_ALLOWED;
+        }
+    }
+
+    public static class ConditionalResponse<T> {
+        public final boolean mNotModified;
+        public final T mBody;
+        public final String mEntityTag;
+
+        public ConditionalResponse(boolean notModified, T body, String entityTag) {
+            mNotModified = notModified;
+            mBody = body;
+            mEntityTag = entityTag;
+        }
+    }
+
+    public static <T> ConditionalResponse<T> makeConditionalGetRequest(
+            X509.KeyMaterial x509KeyMaterial,
+            String peerCertificate,
+            int localSocksProxyPort,
+            String hostname,
+            int port,
+            String requestPath,
+            String entityTag,
+            ResponseHandler<T> responseHandler) throws Utils.ApplicationError {
+        // Sends If-None-Match with the entity tag from the previous response, when there is one.
+        // When the resource is unchanged, the result is not modified and has no body.
+        return makeRequest(
+                x509KeyMaterial,
+                peerCertificate,
+                localSocksProxyPort,
+                hostname,
+                port,
+                requestPath,
+                null,
+                entityTag,
+                responseHandler);
     }
 
     public static String makePostRequest(
@@ -103,53 +296,120 @@ public class WebClient {
                 hostname,
                 port,
                 requestPath,
-                requestBody);
+                requestBody,
+                null,
+                new StringResponseHandler(Protocol.MAX_RESPONSE_BODY_BYTES)).mBody;
     }
 
-    private static String makeRequest(
+    private static <T> ConditionalResponse<T> makeRequest(
             X509.KeyMaterial x509KeyMaterial,
             String peerCertificate,
             int localSocksProxyPort,
             String hostname,
             int port,
             String requestPath,
-            String requestBody) throws Utils.ApplicationError {
+            String requestBody,
+            String entityTag,
+            ResponseHandler<T> responseHandler) throws Utils.ApplicationError {
         HttpRequestBase request = null;
-        ClientConnectionManager connectionManager = null;
+        PooledClient pooledClient = null;
+        Metrics metrics = Metrics.getInstance();
+        long startTime = Clock.getInstance().currentTimeMillis();
+        boolean succeeded = false;
+        boolean isWarm = false;
+        RttEstimator connectRtt = getConnectRttEstimator(x509KeyMaterial.mCertificate, peerCertificate);
+        RttEstimator responseRtt = getResponseRttEstimator(x509KeyMaterial.mCertificate, peerCertificate);
+        RttEstimator socksConnectRtt = getSocksConnectRttEstimator(x509KeyMaterial.mCertificate, peerCertificate);
         try {
             URI uri = new URI(Protocol.WEB_SERVER_PROTOCOL, null, hostname, port, requestPath, null, null);
-            SSLContext sslContext = TransportSecurity.getSSLContext(x509KeyMaterial, Arrays.asList(peerCertificate));
-            SSLSocketFactory sslSocketFactory = TransportSecurity.getClientSSLSocketFactory(sslContext);
-            // TODO: keep a persistent PoolingClientConnectionManager across makeRequest calls for connection reuse?
-            SchemeRegistry registry = new SchemeRegistry();
-            registry.register(new Scheme(Protocol.WEB_SERVER_PROTOCOL, Protocol.WEB_SERVER_VIRTUAL_PORT, sslSocketFactory));
-            if (localSocksProxyPort == UNTUNNELED_REQUEST) {
-                connectionManager = new PoolingClientConnectionManager(registry);
-            } else {
-                connectionManager = new SocksProxyPoolingClientConnectionManager(registry);                
-            }
-            HttpParams params = new BasicHttpParams();
-            HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT_MILLISECONDS);
-            HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT_MILLISECONDS);
-            params.setIntParameter(LOCAL_SOCKS_PROXY_PORT_PARAM_NAME, localSocksProxyPort);
-            DefaultHttpClient client = new DefaultHttpClient(connectionManager, params);
+            pooledClient = acquirePooledClient(x509KeyMaterial, peerCertificate, localSocksProxyPort);
             if (requestBody == null) {
                 request = new HttpGet(uri);
             } else {
                 HttpPost postRequest = new HttpPost(uri);
-                StringEntity entity = new StringEntity(requestBody.toString(), HTTP.UTF_8);
+                byte[] requestBodyBytes = requestBody.getBytes("UTF-8");
+                ByteArrayEntity entity;
+                // Only compress once the peer has advertised support for compressed request bodies
+                if (pooledClient.mPeerAcceptsGzip && Compression.shouldCompress(requestBodyBytes)) {
+                    entity = new ByteArrayEntity(Compression.compress(requestBodyBytes));
+                    entity.setContentEncoding(Compression.GZIP_ENCODING);
+                } else {
+                    entity = new ByteArrayEntity(requestBodyBytes);
+                }
                 entity.setContentType("application/json");
                 postRequest.setEntity(entity);
                 request = postRequest;
+                metrics.getCounter(Metrics.WEB_CLIENT_BYTES_SENT).add(entity.getContentLength());
+            }
+            request.addHeader(Compression.ACCEPT_ENCODING_HEADER, Compression.GZIP_ENCODING);
+            if (entityTag != null) {
+                request.addHeader(IF_NONE_MATCH_HEADER, entityTag);
+            }
+            HttpConnectionParams.setConnectionTimeout(request.getParams(), connectRtt.getTimeoutMilliseconds());
+            HttpConnectionParams.setSoTimeout(request.getParams(), responseRtt.getTimeoutMilliseconds());
+            request.getParams().setParameter(
+                    SOCKS_USER_ID_PARAM_NAME,
+                    getSocksUserId(x509KeyMaterial.mCertificate, peerCertificate, requestBody == null));
+            if (mHedgeThreadPool != null) {
+                // Hedge new connections whose SOCKS connect takes longer than the friend's 90th
+                // percentile; -1 (not hedged) until there are enough samples
+                request.getParams().setLongParameter(HEDGE_DELAY_PARAM_NAME, socksConnectRtt.getPercentileMilliseconds(90));
+            }
+            HttpContext context = new BasicHttpContext();
+            // Requests that start with an idle pooled connection (kept alive, or opened by
+            // prewarmConnection) skip the Tor rendezvous and TLS handshake
+            isWarm = pooledClient.mConnectionManager.getTotalStats().getAvailable() > 0;
+            long executeStartTime = Clock.getInstance().currentTimeMillis();
+            HttpResponse response;
+            try {
+                response = pooledClient.mClient.execute(request, context);
+            } catch (IOException e) {
+                // Attribute the failure to connection setup unless a connection was established
+                if (!isWarm && context.getAttribute(CONNECT_MILLISECONDS_ATTRIBUTE) == null) {
+                    connectRtt.addFailure();
+                } else {
+                    responseRtt.addFailure();
+                }
+                throw e;
+            }
+            // Samples: the connection setup time, when a new connection was opened, and the
+            // time from sending the request to receiving the response headers
+            long connectMilliseconds = 0;
+            Long connectAttribute = (Long)context.getAttribute(CONNECT_MILLISECONDS_ATTRIBUTE);
+            if (connectAttribute != null) {
+                connectMilliseconds = connectAttribute;
+                connectRtt.addSample(connectMilliseconds);
+                socksConnectRtt.addSample((Long)context.getAttribute(SOCKS_CONNECT_MILLISECONDS_ATTRIBUTE));
+            }
+            responseRtt.addSample(
+                    Clock.getInstance().currentTimeMillis() - executeStartTime - connectMilliseconds);
+            if (Compression.isGzip(getHeaderValue(response, Compression.ACCEPT_ENCODING_HEADER))) {
+                pooledClient.mPeerAcceptsGzip = true;
             }
-            HttpResponse response = client.execute(request);
             int statusCode = response.getStatusLine().getStatusCode();
+            if (entityTag != null && statusCode == HttpStatus.SC_NOT_MODIFIED) {
+                // A 304 response has no body, so the connection may be reused as is
+                metrics.getCounter(Metrics.WEB_CLIENT_NOT_MODIFIED_RESPONSES).increment();
+                succeeded = true;
+                return new ConditionalResponse<T>(true, null, entityTag);
+            }
+            if (statusCode == HttpStatus.SC_NO_CONTENT) {
+                succeeded = true;
+                return new ConditionalResponse<T>(false, null, null);
+            }
             if (statusCode != HttpStatus.SC_OK) {
-                throw new Utils.ApplicationError(LOG_TAG, String.format("HTTP request failed with %d", statusCode));
+                throw new HttpStatusError(statusCode);
             }
             HttpEntity responseEntity = response.getEntity();
-            // TODO: stream larger responses to files, etc.
-            return Utils.readInputStreamToString(responseEntity.getContent());
+            T result = handleResponseEntity(
+                    responseEntity,
+                    Compression.isGzip(getHeaderValue(response, Compression.CONTENT_ENCODING_HEADER)),
+                    responseHandler);
+            if (entityTag != null) {
+                metrics.getCounter(Metrics.WEB_CLIENT_MODIFIED_RESPONSES).increment();
+            }
+            succeeded = true;
+            return new ConditionalResponse<T>(false, result, getHeaderValue(response, ETAG_HEADER));
         } catch (URISyntaxException e) {
             throw new Utils.ApplicationError(LOG_TAG, e);
         } catch (UnsupportedOperationException e) {
@@ -163,15 +423,478 @@ public class WebClient {
         } catch (IOException e) {
             throw new Utils.ApplicationError(LOG_TAG, e);
         } finally {
-            if (request != null && !request.isAborted()) {
+            // On failure, abort so that the connection, which may be in an unknown state,
+            // is closed instead of being returned to the pool
+            if (!succeeded && request != null && !request.isAborted()) {
                 request.abort();
             }
-            if (connectionManager != null) {
-                connectionManager.shutdown();
+            if (pooledClient != null) {
+                releasePooledClient(pooledClient);
+            }
+            if (succeeded) {
+                long latency = Clock.getInstance().currentTimeMillis() - startTime;
+                metrics.getHistogram(Metrics.WEB_CLIENT_REQUEST_LATENCY_MILLISECONDS).record(latency);
+                metrics.getHistogram(
+                        isWarm ? Metrics.WEB_CLIENT_WARM_REQUEST_LATENCY_MILLISECONDS
+                               : Metrics.WEB_CLIENT_COLD_REQUEST_LATENCY_MILLISECONDS).record(latency);
+            } else {
+                metrics.getCounter(Metrics.WEB_CLIENT_REQUEST_FAILURES).increment();
             }
         }
     }
 
+    private static String getHeaderValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    private static <T> T handleResponseEntity(
+            HttpEntity responseEntity,
+            boolean isCompressed,
+            ResponseHandler<T> responseHandler) throws IOException, Utils.ApplicationError {
+        long maxResponseBytes = responseHandler.getMaxResponseBytes();
+        long contentLength = responseEntity != null ? responseEntity.getContentLength() : 0;
+        if (contentLength > maxResponseBytes) {
+            throw new Utils.ApplicationError(
+                    LOG_TAG, String.format("response body length %d exceeds %d bytes", contentLength, maxResponseBytes));
+        }
+        Utils.BoundedInputStream responseBody = new Utils.BoundedInputStream(
+                responseEntity != null ? responseEntity.getContent() : new ByteArrayInputStream(new byte[0]),
+                maxResponseBytes);
+        File spillFile = null;
+        try {
+            T result;
+            if (contentLength < 0 || contentLength > SPILL_TO_FILE_THRESHOLD_BYTES) {
+                // Large (or unknown length) bodies are first copied to a temporary file, which
+                // frees the connection for reuse before decoding and keeps large bodies out of
+                // memory. The default temporary directory is the application cache directory.
+                spillFile = File.createTempFile("response", null);
+                // Not Utils.copyStream: as below, the response body isn't closed on failure
+                OutputStream spillOutputStream = new FileOutputStream(spillFile);
+                try {
+                    byte[] buffer = new byte[16384];
+                    int length;
+                    while ((length = responseBody.read(buffer)) != -1) {
+                        spillOutputStream.write(buffer, 0, length);
+                    }
+                } finally {
+                    spillOutputStream.close();
+                }
+                responseBody.close();
+                InputStream spillInputStream = new BufferedInputStream(new FileInputStream(spillFile));
+                try {
+                    result = responseHandler.handleResponse(
+                            isCompressed ? Compression.decompress(spillInputStream, maxResponseBytes) : spillInputStream);
+                } finally {
+                    spillInputStream.close();
+                }
+            } else {
+                result = responseHandler.handleResponse(
+                        isCompressed ? Compression.decompress(responseBody, maxResponseBytes) : responseBody);
+                // Read to the end (still bounded), which releases the connection back to the pool.
+                // Not closed on failure: closing would read any remaining content unbounded; the
+                // failed request is aborted instead.
+                byte[] buffer = new byte[1024];
+                while (responseBody.read(buffer) != -1) {
+                }
+                responseBody.close();
+            }
+            return result;
+        } finally {
+            Metrics.getInstance().getCounter(Metrics.WEB_CLIENT_BYTES_RECEIVED).add(responseBody.getByteCount());
+            if (spillFile != null) {
+                spillFile.delete();
+            }
+        }
+    }
+
+    public static boolean prewarmConnection(
+            X509.KeyMaterial x509KeyMaterial,
+            String peerCertificate,
+            int localSocksProxyPort,
+            String hostname,
+            int port) throws Utils.ApplicationError {
+        // Opens a connection -- SOCKS connect through Tor, hidden service rendezvous and TLS
+        // handshake -- and leaves it idle in the friend's pool for the next request. Returns
+        // false when the pool already has an idle connection.
+        PooledClient pooledClient = null;
+        ManagedClientConnection connection = null;
+        boolean opened = false;
+        RttEstimator connectRtt = getConnectRttEstimator(x509KeyMaterial.mCertificate, peerCertificate);
+        try {
+            pooledClient = acquirePooledClient(x509KeyMaterial, peerCertificate, localSocksProxyPort);
+            HttpHost target = new HttpHost(hostname, port, Protocol.WEB_SERVER_PROTOCOL);
+            HttpContext context = new BasicHttpContext();
+            HttpParams params = new DefaultedHttpParams(new BasicHttpParams(), pooledClient.mClient.getParams());
+            HttpConnectionParams.setConnectionTimeout(params, connectRtt.getTimeoutMilliseconds());
+            HttpConnectionParams.setSoTimeout(params, getResponseRttEstimator(x509KeyMaterial.mCertificate, peerCertificate).getTimeoutMilliseconds());
+            // Prewarmed connections are for pulls
+            params.setParameter(SOCKS_USER_ID_PARAM_NAME, getSocksUserId(x509KeyMaterial.mCertificate, peerCertificate, true));
+            HttpRoute route = pooledClient.mClient.getRoutePlanner().determineRoute(target, new HttpGet("/"), context);
+            if (pooledClient.mConnectionManager.getStats(route).getAvailable() > 0) {
+                return false;
+            }
+            connection = pooledClient.mConnectionManager.requestConnection(route, null).getConnection(
+                    MAX_CONNECT_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS);
+            if (connection.isOpen()) {
+                opened = true;
+                return false;
+            }
+            long startTime = Clock.getInstance().currentTimeMillis();
+            connection.open(route, context, params);
+            connection.markReusable();
+            opened = true;
+            Long connectMilliseconds = (Long)context.getAttribute(CONNECT_MILLISECONDS_ATTRIBUTE);
+            if (connectMilliseconds != null) {
+                connectRtt.addSample(connectMilliseconds);
+                getSocksConnectRttEstimator(x509KeyMaterial.mCertificate, peerCertificate).addSample(
+                        (Long)context.getAttribute(SOCKS_CONNECT_MILLISECONDS_ATTRIBUTE));
+            }
+            Metrics metrics = Metrics.getInstance();
+            metrics.getCounter(Metrics.WEB_CLIENT_PREWARMED_CONNECTIONS).increment();
+            metrics.getHistogram(Metrics.WEB_CLIENT_PREWARM_LATENCY_MILLISECONDS).record(
+                    Clock.getInstance().currentTimeMillis() - startTime);
+            return true;
+        } catch (HttpException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } catch (InterruptedException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } catch (IOException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        } finally {
+            if (connection != null) {
+                if (!opened) {
+                    try {
+                        connection.shutdown();
+                    } catch (IOException e) {
+                    }
+                }
+                // Not marked reusable on failure, so the pool discards the connection
+                pooledClient.mConnectionManager.releaseConnection(
+                        connection, CONNECTION_IDLE_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS);
+            }
+            if (pooledClient != null) {
+                releasePooledClient(pooledClient);
+            }
+            if (!opened) {
+                connectRtt.addFailure();
+                Metrics.getInstance().getCounter(Metrics.WEB_CLIENT_PREWARM_FAILURES).increment();
+            }
+        }
+    }
+
+    private static class PooledClient {
+        public final String mPeerCertificate;
+        public final String mSelfCertificate;
+        public final int mLocalSocksProxyPort;
+        public final PoolingClientConnectionManager mConnectionManager;
+        public final DefaultHttpClient mClient;
+        public int mActiveRequestCount;
+        public long mLastUsedTimestamp;
+        public boolean mIsRetired;
+        public volatile boolean mPeerAcceptsGzip;
+
+        public PooledClient(
+                String peerCertificate,
+                String selfCertificate,
+                int localSocksProxyPort,
+                PoolingClientConnectionManager connectionManager,
+                DefaultHttpClient client) {
+            mPeerCertificate = peerCertificate;
+            mSelfCertificate = selfCertificate;
+            mLocalSocksProxyPort = localSocksProxyPort;
+            mConnectionManager = connectionManager;
+            mClient = client;
+            mActiveRequestCount = 0;
+            mLastUsedTimestamp = 0;
+            mIsRetired = false;
+            mPeerAcceptsGzip = false;
+        }
+    }
+
+    // One long-lived client and connection pool per persona and friend (see getPeerKey), so
+    // that keep-alive connections -- each a Tor stream with a completed TLS handshake -- are
+    // reused across pushes and pulls.
+    private static final HashMap<String, PooledClient> mPooledClients = new HashMap<String, PooledClient>();
+
+    // Arbitrary and distinct for each persona and friend; see SOCKS_USER_ID_PARAM_NAME
+    private static final HashMap<String, String> mSocksIsolationTokens = new HashMap<String, String>();
+    private static long mNextSocksIsolationToken = 0;
+    private static volatile boolean mIsStreamIsolationEnabled = true;
+
+    public static void setStreamIsolationEnabled(boolean isStreamIsolationEnabled) {
+        // For tests; with isolation disabled, connections to all friends may share circuits
+        mIsStreamIsolationEnabled = isStreamIsolationEnabled;
+    }
+
+    private static String getPeerKey(String selfCertificate, String peerCertificate) {
+        // Personas may share a friend; each persona's requests to that friend are kept apart,
+        // so the friend can't link the personas by a shared connection or Tor circuit.
+        // Certificates contain no spaces.
+        return selfCertificate + " " + peerCertificate;
+    }
+
+    static synchronized String getSocksUserId(String selfCertificate, String peerCertificate, boolean isPull) {
+        // New connections for pulls and for pushes to a friend each get their own Tor circuit,
+        // apart from other friends' and other personas' circuits
+        if (!mIsStreamIsolationEnabled) {
+            return "";
+        }
+        String peerKey = getPeerKey(selfCertificate, peerCertificate);
+        String token = mSocksIsolationTokens.get(peerKey);
+        if (token == null) {
+            token = "friend-" + mNextSocksIsolationToken++;
+            mSocksIsolationTokens.put(peerKey, token);
+        }
+        return token + "-" + (isPull ? PULL_REQUEST_CLASS : PUSH_REQUEST_CLASS);
+    }
+
+    private static synchronized PooledClient acquirePooledClient(
+            X509.KeyMaterial x509KeyMaterial,
+            String peerCertificate,
+            int localSocksProxyPort) throws Utils.ApplicationError {
+        long now = Clock.getInstance().currentTimeMillis();
+        evictIdlePooledClients(now);
+        String peerKey = getPeerKey(x509KeyMaterial.mCertificate, peerCertificate);
+        PooledClient pooledClient = mPooledClients.get(peerKey);
+        if (pooledClient != null && pooledClient.mLocalSocksProxyPort != localSocksProxyPort) {
+            // Tor instance changed: pooled connections are no longer valid
+            retirePooledClient(pooledClient);
+            pooledClient = null;
+        }
+        if (pooledClient == null) {
+            pooledClient = createPooledClient(x509KeyMaterial, peerCertificate, localSocksProxyPort);
+            mPooledClients.put(peerKey, pooledClient);
+        }
+        pooledClient.mConnectionManager.closeExpiredConnections();
+        pooledClient.mConnectionManager.closeIdleConnections(
+                CONNECTION_IDLE_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS);
+        pooledClient.mActiveRequestCount++;
+        pooledClient.mLastUsedTimestamp = now;
+        return pooledClient;
+    }
+
+    private static synchronized void releasePooledClient(PooledClient pooledClient) {
+        pooledClient.mActiveRequestCount--;
+        pooledClient.mLastUsedTimestamp = Clock.getInstance().currentTimeMillis();
+        if (pooledClient.mIsRetired && pooledClient.mActiveRequestCount == 0) {
+            pooledClient.mConnectionManager.shutdown();
+        }
+    }
+
+    private static PooledClient createPooledClient(
+            X509.KeyMaterial x509KeyMaterial,
+            String peerCertificate,
+            int localSocksProxyPort) throws Utils.ApplicationError {
+        SSLSocketFactory sslSocketFactory =
+                TransportSecurity.getClientSSLSocketFactory(x509KeyMaterial, Arrays.asList(peerCertificate));
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme(Protocol.WEB_SERVER_PROTOCOL, Protocol.WEB_SERVER_VIRTUAL_PORT, sslSocketFactory));
+        PoolingClientConnectionManager connectionManager;
+        if (localSocksProxyPort == UNTUNNELED_REQUEST) {
+            connectionManager = new PoolingClientConnectionManager(registry);
+        } else {
+            connectionManager = new SocksProxyPoolingClientConnectionManager(registry);
+        }
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        connectionManager.setMaxTotal(MAX_CONNECTIONS_PER_ROUTE);
+        HttpParams params = new BasicHttpParams();
+        // Defaults; each request sets the friend's adaptive timeouts
+        HttpConnectionParams.setConnectionTimeout(params, MAX_CONNECT_TIMEOUT_MILLISECONDS);
+        HttpConnectionParams.setSoTimeout(params, MAX_READ_TIMEOUT_MILLISECONDS);
+        params.setIntParameter(LOCAL_SOCKS_PROXY_PORT_PARAM_NAME, localSocksProxyPort);
+        DefaultHttpClient client = new DefaultHttpClient(connectionManager, params);
+        // By default, connections authenticated with a client certificate are tagged with the
+        // local principal and only reused by requests presenting that tag. Each pooled client
+        // has a single identity, so connections are untagged and always reusable.
+        client.setUserTokenHandler(new UserTokenHandler() {
+            @Override
+            public Object getUserToken(HttpContext context) {
+                return null;
+            }
+        });
+        return new PooledClient(
+                peerCertificate, x509KeyMaterial.mCertificate, localSocksProxyPort, connectionManager, client);
+    }
+
+    private static void retirePooledClient(PooledClient pooledClient) {
+        // In-flight requests complete before the pool is shut down; see releasePooledClient
+        mPooledClients.remove(getPeerKey(pooledClient.mSelfCertificate, pooledClient.mPeerCertificate));
+        pooledClient.mIsRetired = true;
+        if (pooledClient.mActiveRequestCount == 0) {
+            pooledClient.mConnectionManager.shutdown();
+        }
+    }
+
+    private static void evictIdlePooledClients(long now) {
+        for (PooledClient pooledClient : new ArrayList<PooledClient>(mPooledClients.values())) {
+            if (pooledClient.mActiveRequestCount == 0 &&
+                    now - pooledClient.mLastUsedTimestamp > CLIENT_IDLE_TIMEOUT_MILLISECONDS) {
+                retirePooledClient(pooledClient);
+            }
+        }
+    }
+
+    public static synchronized void shutdown() {
+        // Closes all pooled connections, e.g., when the Engine stops and its Tor instance goes away
+        for (PooledClient pooledClient : new ArrayList<PooledClient>(mPooledClients.values())) {
+            retirePooledClient(pooledClient);
+        }
+    }
+
+    public static synchronized void removePeer(String selfCertificate, String peerCertificate) {
+        // Discards everything kept for a persona's removed friend: pooled connections and estimates
+        String peerKey = getPeerKey(selfCertificate, peerCertificate);
+        PooledClient pooledClient = mPooledClients.get(peerKey);
+        if (pooledClient != null) {
+            retirePooledClient(pooledClient);
+        }
+        mSocksIsolationTokens.remove(peerKey);
+        mConnectRttEstimators.remove(peerKey);
+        mResponseRttEstimators.remove(peerKey);
+        mSocksConnectRttEstimators.remove(peerKey);
+    }
+
+    // Per-friend estimates, keyed by persona and friend (see getPeerKey). Unlike pooled clients,
+    // these are retained across idle periods and Engine restarts, until the friend is removed.
+    private static final HashMap<String, RttEstimator> mConnectRttEstimators = new HashMap<String, RttEstimator>();
+    private static final HashMap<String, RttEstimator> mResponseRttEstimators = new HashMap<String, RttEstimator>();
+    // The SOCKS connect alone, excluding the TLS handshake; for the hedged connect delay
+    private static final HashMap<String, RttEstimator> mSocksConnectRttEstimators = new HashMap<String, RttEstimator>();
+
+    public static synchronized RttEstimator getConnectRttEstimator(String selfCertificate, String peerCertificate) {
+        String peerKey = getPeerKey(selfCertificate, peerCertificate);
+        RttEstimator estimator = mConnectRttEstimators.get(peerKey);
+        if (estimator == null) {
+            estimator = new RttEstimator(MIN_CONNECT_TIMEOUT_MILLISECONDS, MAX_CONNECT_TIMEOUT_MILLISECONDS);
+            mConnectRttEstimators.put(peerKey, estimator);
+        }
+        return estimator;
+    }
+
+    public static synchronized RttEstimator getSocksConnectRttEstimator(String selfCertificate, String peerCertificate) {
+        String peerKey = getPeerKey(selfCertificate, peerCertificate);
+        RttEstimator estimator = mSocksConnectRttEstimators.get(peerKey);
+        if (estimator == null) {
+            estimator = new RttEstimator(MIN_CONNECT_TIMEOUT_MILLISECONDS, MAX_CONNECT_TIMEOUT_MILLISECONDS);
+            mSocksConnectRttEstimators.put(peerKey, estimator);
+        }
+        return estimator;
+    }
+
+    public static synchronized RttEstimator getResponseRttEstimator(String selfCertificate, String peerCertificate) {
+        String peerKey = getPeerKey(selfCertificate, peerCertificate);
+        RttEstimator estimator = mResponseRttEstimators.get(peerKey);
+        if (estimator == null) {
+            estimator = new RttEstimator(MIN_READ_TIMEOUT_MILLISECONDS, MAX_READ_TIMEOUT_MILLISECONDS);
+            mResponseRttEstimators.put(peerKey, estimator);
+        }
+        return estimator;
+    }
+
+    // Hedged connects are optional (see setHedgingEnabled) and bounded by a global budget of
+    // concurrent second attempts, so hedging adds at most a few streams of load to Tor
+    private static final int MAX_CONCURRENT_HEDGES = 4;
+    private static final String HEDGE_SOCKS_USER_ID_SUFFIX = "-hedge-";
+    private static final Semaphore mHedgePermits = new Semaphore(MAX_CONCURRENT_HEDGES);
+    private static final AtomicLong mNextHedgeId = new AtomicLong(0);
+    private static volatile ExecutorService mHedgeThreadPool = null;
+
+    public static void setHedgeThreadPool(ExecutorService hedgeThreadPool) {
+        // Hedged connect attempts run in the Engine's worker pool; null disables hedging
+        mHedgeThreadPool = hedgeThreadPool;
+    }
+
+    private static class SocksConnectAttempt implements Callable<Socket> {
+        private final int mLocalSocksProxyPort;
+        private final String mHost;
+        private final int mPort;
+        private final String mUserId;
+        private final int mConnectTimeout;
+        private final Semaphore mPermit;
+        private Socket mSocket;
+        private boolean mIsCancelled;
+
+        public SocksConnectAttempt(
+                int localSocksProxyPort,
+                String host,
+                int port,
+                String userId,
+                int connectTimeout,
+                Semaphore permit) {
+            mLocalSocksProxyPort = localSocksProxyPort;
+            mHost = host;
+            mPort = port;
+            mUserId = userId;
+            mConnectTimeout = connectTimeout;
+            mPermit = permit;
+            mSocket = null;
+            mIsCancelled = false;
+        }
+
+        @Override
+        public Socket call() throws IOException {
+            try {
+                Socket socket = new Socket();
+                synchronized(this) {
+                    if (mIsCancelled) {
+                        throw new IOException("SOCKS connect cancelled");
+                    }
+                    mSocket = socket;
+                }
+                try {
+                    SocksProxyClientConnectionOperator.connectSocks(
+                            socket, mLocalSocksProxyPort, mHost, mPort, mUserId, mConnectTimeout);
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+                return socket;
+            } finally {
+                if (mPermit != null) {
+                    mPermit.release();
+                }
+            }
+        }
+
+        public synchronized void cancel() {
+            // Closing the socket interrupts a blocked connect or SOCKS reply read; a losing
+            // attempt that already completed is closed too
+            mIsCancelled = true;
+            if (mSocket != null) {
+                try {
+                    mSocket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static class HedgedSocksConnect extends Socket {
+        // Stands in for the connection's socket while its hedged connect attempts run;
+        // closing it cancels all attempts, including any started afterwards
+        private final ArrayList<SocksConnectAttempt> mAttempts = new ArrayList<SocksConnectAttempt>();
+        private boolean mIsClosed = false;
+
+        public synchronized void add(SocksConnectAttempt attempt) {
+            mAttempts.add(attempt);
+            if (mIsClosed) {
+                attempt.cancel();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized(this) {
+                mIsClosed = true;
+                for (SocksConnectAttempt attempt : mAttempts) {
+                    attempt.cancel();
+                }
+            }
+            super.close();
+        }
+    }
+
     private static class SocksProxyPoolingClientConnectionManager extends PoolingClientConnectionManager {
 
         public SocksProxyPoolingClientConnectionManager(SchemeRegistry registry) {
@@ -231,17 +954,60 @@ public class WebClient {
             // field 6: the domain name of the host we want to contact, variable length, terminated with a null (0x00)
             
             int localSocksProxyPort = params.getIntParameter(LOCAL_SOCKS_PROXY_PORT_PARAM_NAME, -1);
+            int connectTimeout = HttpConnectionParams.getConnectionTimeout(params);
+            long hedgeDelay = params.getLongParameter(HEDGE_DELAY_PARAM_NAME, -1);
+            String socksUserId = (String)params.getParameter(SOCKS_USER_ID_PARAM_NAME);
+            if (socksUserId == null) {
+                socksUserId = "";
+            }
+            long startTime = Clock.getInstance().currentTimeMillis();
 
-            Socket socket = new Socket();
-            conn.opening(socket, target);
-            socket.setSoTimeout(READ_TIMEOUT_MILLISECONDS);
-            socket.connect(new InetSocketAddress("127.0.0.1", localSocksProxyPort), CONNECT_TIMEOUT_MILLISECONDS);
+            Socket socket;
+            ExecutorService hedgeThreadPool = mHedgeThreadPool;
+            if (hedgeDelay < 0 || hedgeThreadPool == null) {
+                socket = new Socket();
+                conn.opening(socket, target);
+                connectSocks(socket, localSocksProxyPort, host, port, socksUserId, connectTimeout);
+            } else {
+                // Registered before connecting, so that shutting down the connection, e.g. when
+                // the pool shuts down, cancels the attempts
+                HedgedSocksConnect hedgedConnect = new HedgedSocksConnect();
+                conn.opening(hedgedConnect, target);
+                socket = connectSocksHedged(
+                        hedgedConnect, hedgeThreadPool, localSocksProxyPort, host, port, socksUserId, connectTimeout, hedgeDelay);
+                // Closes the socket when the connection was shut down just as an attempt completed
+                conn.opening(socket, target);
+            }
+            context.setAttribute(SOCKS_CONNECT_MILLISECONDS_ATTRIBUTE, Clock.getInstance().currentTimeMillis() - startTime);
+
+            Socket sslsocket = sslSocketFactory.createLayeredSocket(socket, host, port, params);
+            conn.opening(sslsocket, target);
+            sslsocket.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+            prepareSocket(sslsocket, context, params);
+            conn.openCompleted(sslSocketFactory.isSecure(sslsocket), params);
+            context.setAttribute(CONNECT_MILLISECONDS_ATTRIBUTE, Clock.getInstance().currentTimeMillis() - startTime);
+            
+            // TODO: clarify which connection throws java.net.SocketTimeoutException?
+        }
+
+        private static void connectSocks(
+                Socket socket,
+                int localSocksProxyPort,
+                String host,
+                int port,
+                String userId,
+                int connectTimeout) throws IOException {
+            // The connect timeout also bounds the wait for the SOCKS reply, which arrives once Tor
+            // has reached the hidden service, and the following TLS handshake
+            socket.setSoTimeout(connectTimeout);
+            socket.connect(new InetSocketAddress("127.0.0.1", localSocksProxyPort), connectTimeout);
             
             DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
             outputStream.write((byte)0x04);
             outputStream.write((byte)0x01);
             outputStream.writeShort((short)port);
             outputStream.writeInt(0x01);
+            outputStream.write(userId.getBytes());
             outputStream.write((byte)0x00);
             outputStream.write(host.getBytes());
             outputStream.write((byte)0x00);
@@ -252,14 +1018,111 @@ public class WebClient {
             }
             inputStream.readShort();
             inputStream.readInt();
+        }
 
-            Socket sslsocket = sslSocketFactory.createLayeredSocket(socket, host, port, params);
-            conn.opening(sslsocket, target);
-            sslsocket.setSoTimeout(READ_TIMEOUT_MILLISECONDS);
-            prepareSocket(sslsocket, context, params);
-            conn.openCompleted(sslSocketFactory.isSecure(sslsocket), params);
-            
-            // TODO: clarify which connection throws java.net.SocketTimeoutException?
+        private static Socket connectSocksHedged(
+                HedgedSocksConnect hedgedConnect,
+                ExecutorService hedgeThreadPool,
+                int localSocksProxyPort,
+                String host,
+                int port,
+                String socksUserId,
+                int connectTimeout,
+                long hedgeDelay) throws IOException {
+            // Hidden service connect times are heavy-tailed: a rendezvous through a slow circuit
+            // may take many times longer than usual. When the first attempt hasn't completed
+            // after hedgeDelay, a second attempt is started with a distinct SOCKS user ID, which
+            // Tor isolates onto a different circuit. The first to complete is used and the other
+            // is cancelled.
+            // Attempts wait in the pool's queue at most until the connect deadline.
+            CompletionService<Socket> completionService = new ExecutorCompletionService<Socket>(hedgeThreadPool);
+            HashMap<Future<Socket>, SocksConnectAttempt> attempts = new HashMap<Future<Socket>, SocksConnectAttempt>();
+            SocksConnectAttempt primaryAttempt =
+                    new SocksConnectAttempt(localSocksProxyPort, host, port, socksUserId, connectTimeout, null);
+            hedgedConnect.add(primaryAttempt);
+            try {
+                attempts.put(completionService.submit(primaryAttempt), primaryAttempt);
+            } catch (RejectedExecutionException e) {
+                // The Engine is stopping
+                throw new IOException("SOCKS connect cancelled");
+            }
+            SocksConnectAttempt hedgeAttempt = null;
+            SocksConnectAttempt winningAttempt = null;
+            Metrics metrics = Metrics.getInstance();
+            long deadline = Clock.getInstance().currentTimeMillis() + connectTimeout;
+            int pendingCount = 1;
+            IOException lastError = null;
+            try {
+                while (pendingCount > 0) {
+                    long now = Clock.getInstance().currentTimeMillis();
+                    long wait = deadline - now;
+                    boolean canHedge = (hedgeAttempt == null && lastError == null);
+                    if (canHedge) {
+                        wait = Math.min(wait, hedgeDelay);
+                    }
+                    Future<Socket> future = completionService.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                    if (future == null) {
+                        if (canHedge && now + wait < deadline) {
+                            if (!mHedgePermits.tryAcquire()) {
+                                // Over the global hedge budget: keep waiting on the first attempt
+                                metrics.getCounter(Metrics.WEB_CLIENT_HEDGES_SKIPPED).increment();
+                                hedgeDelay = Long.MAX_VALUE;
+                                continue;
+                            }
+                            hedgeAttempt = new SocksConnectAttempt(
+                                    localSocksProxyPort,
+                                    host,
+                                    port,
+                                    socksUserId + HEDGE_SOCKS_USER_ID_SUFFIX + mNextHedgeId.getAndIncrement(),
+                                    (int)(deadline - now),
+                                    mHedgePermits);
+                            hedgedConnect.add(hedgeAttempt);
+                            try {
+                                attempts.put(completionService.submit(hedgeAttempt), hedgeAttempt);
+                            } catch (RejectedExecutionException e) {
+                                mHedgePermits.release();
+                                hedgeDelay = Long.MAX_VALUE;
+                                continue;
+                            }
+                            pendingCount++;
+                            metrics.getCounter(Metrics.WEB_CLIENT_HEDGED_CONNECTS).increment();
+                            continue;
+                        }
+                        throw new SocketTimeoutException("SOCKS connect timed out");
+                    }
+                    pendingCount--;
+                    try {
+                        Socket socket = future.get();
+                        winningAttempt = attempts.get(future);
+                        if (hedgeAttempt != null) {
+                            Metrics.Counter hedgeWins = metrics.getCounter(Metrics.WEB_CLIENT_HEDGE_WINS);
+                            if (winningAttempt == hedgeAttempt) {
+                                hedgeWins.increment();
+                            }
+                            metrics.getGauge(Metrics.WEB_CLIENT_HEDGE_WIN_PERCENT).set(
+                                    100*hedgeWins.get()/metrics.getCounter(Metrics.WEB_CLIENT_HEDGED_CONNECTS).get());
+                        }
+                        return socket;
+                    } catch (ExecutionException e) {
+                        // Wait for any other attempt before failing
+                        if (e.getCause() instanceof IOException) {
+                            lastError = (IOException)e.getCause();
+                        } else {
+                            lastError = new IOException(e.getCause());
+                        }
+                    }
+                }
+                throw lastError;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                for (SocksConnectAttempt attempt : attempts.values()) {
+                    if (attempt != winningAttempt) {
+                        attempt.cancel();
+                    }
+                }
+            }
         }
 
         @Override
@@ -19,12 +19,18 @@
 
 package ca.psiphon.ploggy;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLServerSocket;
@@ -39,6 +45,11 @@ import fi.iki.elonen.NanoHTTPD;
  *
  * Uses TLS configured with TransportSecurity specs and mutual authentication. Web clients must present a
  * valid friend certificate. Uses the Engine thread pool to service web requests.
+ *
+ * In non-blocking mode, connections are handled by NioWebServer instead of NanoHTTPD's
+ * thread-per-connection loop, and a pool thread is used only while serving a parsed request.
+ *
+ * In either mode, connections are limited and idle connections reaped; see ConnectionAdmission.
  */
 public class WebServer extends NanoHTTPD implements NanoHTTPD.ServerSocketFactory, NanoHTTPD.AsyncRunner {
 
@@ -46,30 +57,192 @@ public class WebServer extends NanoHTTPD implements NanoHTTPD.ServerSocketFactor
 
     private static final int READ_TIMEOUT_MILLISECONDS = 60000;
 
+    // In blocking mode, each connection holds an Engine pool thread, so the limit leaves
+    // threads for the Engine's own requests
+    private static final int MAX_BLOCKING_CONNECTIONS = 20;
+    private static final int MAX_NON_BLOCKING_CONNECTIONS = 256;
+    private static final int MAX_CONNECTIONS_PER_PEER = 4;
+    private static final long IDLE_CONNECTION_TIMEOUT_MILLISECONDS = 45000;
+    private static final long IDLE_CONNECTION_REAP_PERIOD_MILLISECONDS = 5000;
+
+    // NanoHTTPD stores request header names in lower case
+    private static final String ACCEPT_ENCODING_REQUEST_HEADER = "accept-encoding";
+    private static final String CONTENT_ENCODING_REQUEST_HEADER = "content-encoding";
+    private static final String IF_NONE_MATCH_REQUEST_HEADER = "if-none-match";
+    private static final String CONTENT_LENGTH_REQUEST_HEADER = "content-length";
+    private static final String PEER_CERTIFICATE_FINGERPRINT_SESSION_KEY = "ca.psiphon.ploggy.peer_certificate_fingerprint";
+
+    // The only request headers decoded; the non-blocking server also reads the connection and
+    // transfer encoding headers
+    static final String[] REQUEST_HEADER_NAMES = {
+        CONTENT_LENGTH_REQUEST_HEADER,
+        CONTENT_ENCODING_REQUEST_HEADER,
+        ACCEPT_ENCODING_REQUEST_HEADER,
+        IF_NONE_MATCH_REQUEST_HEADER,
+        "connection",
+        "transfer-encoding"
+    };
+    private static final String ETAG_RESPONSE_HEADER = "ETag";
+
     public interface RequestHandler {
         public void submitTask(Runnable task);
-        public Data.Status handlePullStatusRequest(String friendId) throws Utils.ApplicationError;
+        public EncodedStatus handlePullStatusRequest(String friendId) throws Utils.ApplicationError;
         public void handlePushStatusRequest(String friendId, Data.Status status) throws Utils.ApplicationError;        
+        public EncodedStatus handleExchangeStatusRequest(String friendId, Data.Status status) throws Utils.ApplicationError;
     }
     
     private RequestHandler mRequestHandler;
     private X509.KeyMaterial mX509KeyMaterial;
     private List<String> mFriendCertificates;
+    private boolean mIsNonBlocking;
+    private NioWebServer mNioWebServer;
+    private ConnectionAdmission mConnectionAdmission;
+    private Map<Socket, SocketConnection> mSocketConnections;
+    private Timer mReaperTimer;
+
+    private class SocketConnection implements ConnectionAdmission.Connection {
+        private final Socket mSocket;
+
+        public SocketConnection(Socket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public void close() {
+            // Unblocks the thread reading from the socket, which then ends the connection
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
     
     public WebServer(
             RequestHandler requestHandler,
             X509.KeyMaterial x509KeyMaterial,
             List<String> friendCertificates) throws Utils.ApplicationError {
+        this(requestHandler, x509KeyMaterial, friendCertificates, false);
+    }
+
+    public WebServer(
+            RequestHandler requestHandler,
+            X509.KeyMaterial x509KeyMaterial,
+            List<String> friendCertificates,
+            boolean isNonBlocking) throws Utils.ApplicationError {
+        this(
+            requestHandler,
+            x509KeyMaterial,
+            friendCertificates,
+            isNonBlocking,
+            new ConnectionAdmission(
+                    isNonBlocking ? MAX_NON_BLOCKING_CONNECTIONS : MAX_BLOCKING_CONNECTIONS,
+                    MAX_CONNECTIONS_PER_PEER,
+                    IDLE_CONNECTION_TIMEOUT_MILLISECONDS));
+    }
+
+    WebServer(
+            RequestHandler requestHandler,
+            X509.KeyMaterial x509KeyMaterial,
+            List<String> friendCertificates,
+            boolean isNonBlocking,
+            ConnectionAdmission connectionAdmission) throws Utils.ApplicationError {
         // Bind to loopback only -- not a public web server. Also, specify port 0 to let
         // the system pick any available port for listening.
         super("127.0.0.1", 0);
         mRequestHandler = requestHandler;
         mX509KeyMaterial = x509KeyMaterial;
         mFriendCertificates = friendCertificates;
+        mIsNonBlocking = isNonBlocking;
+        mConnectionAdmission = connectionAdmission;
+        mSocketConnections = new ConcurrentHashMap<Socket, SocketConnection>();
         setServerSocketFactory(this);
         setAsyncRunner(this);
     }
 
+    @Override
+    public void start() throws IOException {
+        if (!mIsNonBlocking) {
+            super.start();
+            // The non-blocking server reaps from its selector thread
+            mReaperTimer = new Timer(true);
+            mReaperTimer.schedule(
+                    new TimerTask() {
+                        @Override
+                        public void run() {
+                            mConnectionAdmission.reapIdleConnections();
+                        }
+                    },
+                    IDLE_CONNECTION_REAP_PERIOD_MILLISECONDS,
+                    IDLE_CONNECTION_REAP_PERIOD_MILLISECONDS);
+            return;
+        }
+        try {
+            mNioWebServer = new NioWebServer(
+                    this, mX509KeyMaterial, mFriendCertificates, mConnectionAdmission, READ_TIMEOUT_MILLISECONDS);
+            mNioWebServer.start();
+        } catch (Utils.ApplicationError e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (mNioWebServer != null) {
+            mNioWebServer.stop();
+            mNioWebServer = null;
+            return;
+        }
+        if (mReaperTimer != null) {
+            mReaperTimer.cancel();
+            mReaperTimer = null;
+        }
+        super.stop();
+        // Kept-alive connections would otherwise remain open until the read timeout
+        mConnectionAdmission.closeAllConnections();
+    }
+
+    @Override
+    protected String[] getRequestHeaderNames() {
+        return REQUEST_HEADER_NAMES;
+    }
+
+    @Override
+    protected boolean acceptConnection(Socket socket) {
+        // The TLS handshake is only started by the first read, so a rejected connection costs
+        // no handshake
+        SocketConnection connection = new SocketConnection(socket);
+        if (!mConnectionAdmission.admitConnection(connection)) {
+            Log.addEntry(LOG_TAG, "rejected connection: too many connections");
+            return false;
+        }
+        mSocketConnections.put(socket, connection);
+        return true;
+    }
+
+    @Override
+    protected void completedRequest(Socket socket) {
+        SocketConnection connection = mSocketConnections.get(socket);
+        if (connection != null) {
+            mConnectionAdmission.markIdle(connection);
+        }
+    }
+
+    @Override
+    protected void closedConnection(Socket socket) {
+        SocketConnection connection = mSocketConnections.remove(socket);
+        if (connection != null) {
+            mConnectionAdmission.removeConnection(connection);
+        }
+    }
+
+    @Override
+    public int getListeningPort() {
+        if (mNioWebServer != null) {
+            return mNioWebServer.getListeningPort();
+        }
+        return super.getListeningPort();
+    }
+
     @Override
     public ServerSocket createServerSocket() throws IOException {
         try {
@@ -92,16 +265,26 @@ public class WebServer extends NanoHTTPD implements NanoHTTPD.ServerSocketFactor
         mRequestHandler.submitTask(webRequestTask);
     }
 
-    private String getPeerCertificate(Socket socket) throws Utils.ApplicationError {
-        // Determine friend id by peer TLS certificate
+    private String getPeerCertificateFingerprint(Socket socket) throws Utils.ApplicationError {
+        return getPeerCertificateFingerprint(((SSLSocket)socket).getSession());
+    }
+
+    static String getPeerCertificateFingerprint(SSLSession sslSession) throws Utils.ApplicationError {
+        // Friends are identified by the fingerprint of their TLS certificate. It's computed once
+        // per TLS session and kept on the session, so later requests on a keep-alive or resumed
+        // connection don't hash the certificate again.
+        String fingerprint = (String)sslSession.getValue(PEER_CERTIFICATE_FINGERPRINT_SESSION_KEY);
+        if (fingerprint != null) {
+            return fingerprint;
+        }
         try {
-            SSLSocket sslSocket = (SSLSocket)socket;
-            SSLSession sslSession = sslSocket.getSession();
             Certificate[] certificates = sslSession.getPeerCertificates();
             if (certificates.length != 1) {
                 throw new Utils.ApplicationError(LOG_TAG, "unexpected peer certificate count");
             }
-            return Utils.encodeBase64(certificates[0].getEncoded());
+            fingerprint = X509.getCertificateFingerprint(certificates[0].getEncoded());
+            sslSession.putValue(PEER_CERTIFICATE_FINGERPRINT_SESSION_KEY, fingerprint);
+            return fingerprint;
         } catch (SSLPeerUnverifiedException e) {
             throw new Utils.ApplicationError(LOG_TAG, e);
         } catch (CertificateEncodingException e) {
@@ -109,31 +292,130 @@ public class WebServer extends NanoHTTPD implements NanoHTTPD.ServerSocketFactor
         }
     }
     
+    private Response advertiseCompression(Response response) {
+        // Tells the client it may compress request bodies sent to this server
+        response.addHeader(Compression.ACCEPT_ENCODING_HEADER, Compression.GZIP_ENCODING);
+        return response;
+    }
+
+    private Data.Status readStatusRequestBody(
+            Map<String, String> headers, InputStream inputStream) throws IOException, Utils.ApplicationError {
+        if (!headers.containsKey(CONTENT_LENGTH_REQUEST_HEADER)) {
+            throw new Utils.ApplicationError(LOG_TAG, "failed to get POST request content length");
+        }
+        long contentLength;
+        try {
+            contentLength = Long.parseLong(headers.get(CONTENT_LENGTH_REQUEST_HEADER));
+        } catch (NumberFormatException e) {
+            throw new Utils.ApplicationError(LOG_TAG, "invalid POST request content length");
+        }
+        if (contentLength < 0 || contentLength > Protocol.MAX_REQUEST_BODY_BYTES) {
+            throw new Utils.ApplicationError(LOG_TAG, "invalid POST request content length");
+        }
+        // The body is decoded as it's read, in constant memory; the declared length is only a
+        // bound, and nothing is allocated from it
+        Utils.ContentLengthInputStream requestBody = new Utils.ContentLengthInputStream(inputStream, contentLength);
+        try {
+            InputStream decodedBody = requestBody;
+            if (Compression.isGzip(headers.get(CONTENT_ENCODING_REQUEST_HEADER))) {
+                decodedBody = Compression.decompress(requestBody, Protocol.MAX_REQUEST_BODY_BYTES);
+            }
+            return Json.fromJson(decodedBody, Data.Status.class);
+        } finally {
+            // Any unread remainder would otherwise be taken as the connection's next request
+            try {
+                requestBody.skipRemaining();
+            } catch (IOException e) {
+                // The connection has failed; the next read on it will fail too
+            }
+            Metrics.getInstance().getCounter(Metrics.WEB_SERVER_BYTES_RECEIVED).add(contentLength);
+        }
+    }
+
+    private Response makeStatusResponse(Map<String, String> headers, EncodedStatus status) {
+        // The status is already encoded and compressed; the response only wraps its bytes
+        Metrics metrics = Metrics.getInstance();
+        String entityTag = status.mEntityTag;
+        if (entityTag.equals(headers.get(IF_NONE_MATCH_REQUEST_HEADER))) {
+            // The client already has this status
+            metrics.getCounter(Metrics.WEB_SERVER_NOT_MODIFIED_RESPONSES).increment();
+            Response response = new Response(NanoHTTPD.Response.Status.NOT_MODIFIED, null, (InputStream)null);
+            response.addHeader(ETAG_RESPONSE_HEADER, entityTag);
+            return advertiseCompression(response);
+        }
+        boolean compressResponse =
+                status.mCompressedBody != null &&
+                Compression.isGzip(headers.get(ACCEPT_ENCODING_REQUEST_HEADER));
+        byte[] responseBody = compressResponse ? status.mCompressedBody : status.mBody;
+        metrics.getCounter(Metrics.WEB_SERVER_BYTES_SENT).add(responseBody.length);
+        Response response = new Response(
+                NanoHTTPD.Response.Status.OK,
+                Protocol.RESPONSE_MIME_TYPE,
+                new ByteArrayInputStream(responseBody));
+        if (compressResponse) {
+            response.addHeader(Compression.CONTENT_ENCODING_HEADER, Compression.GZIP_ENCODING);
+        }
+        response.addHeader(ETAG_RESPONSE_HEADER, entityTag);
+        return advertiseCompression(response);
+    }
+
     @Override
     public Response serve(IHTTPSession session) {
+        String certificateFingerprint = null;
+        try {
+            certificateFingerprint = getPeerCertificateFingerprint(session.getSocket());
+        } catch (Utils.ApplicationError e) {
+            // Rejected below, as a failed request
+        }
+        SocketConnection connection = mSocketConnections.get(session.getSocket());
+        if (connection != null && certificateFingerprint != null) {
+            mConnectionAdmission.markBusy(connection);
+            if (!mConnectionAdmission.admitPeer(connection, certificateFingerprint)) {
+                Log.addEntry(LOG_TAG, "rejected connection: too many connections from peer");
+                connection.close();
+                return new Response(NanoHTTPD.Response.Status.FORBIDDEN, null, "");
+            }
+        }
+        return serve(certificateFingerprint, session.getMethod(), session.getUri(), session.getHeaders(), session.getInputStream());
+    }
+
+    Response serve(
+            String certificateFingerprint,
+            Method method,
+            String uri,
+            Map<String, String> headers,
+            InputStream inputStream) {
+        // Shared by both modes; header names are in lower case
+        Metrics metrics = Metrics.getInstance();
+        metrics.getCounter(Metrics.WEB_SERVER_REQUESTS).increment();
         try {
-            String certificate = getPeerCertificate(session.getSocket());
-            String uri = session.getUri();
-            Method method = session.getMethod();
+            if (certificateFingerprint == null) {
+                throw new Utils.ApplicationError(LOG_TAG, "no peer certificate");
+            }
             if (Method.GET.equals(method) && uri.equals(Protocol.PULL_STATUS_REQUEST_PATH)) {
-                Data.Status status = mRequestHandler.handlePullStatusRequest(certificate);
+                EncodedStatus status = mRequestHandler.handlePullStatusRequest(certificateFingerprint);
                 if (status == null) {
                     // TODO: not currently sharing; serve old status?
                     return new Response(NanoHTTPD.Response.Status.FORBIDDEN, null, "");
                 }
-                return new Response(NanoHTTPD.Response.Status.OK, Protocol.RESPONSE_MIME_TYPE, Json.toJson(status));
+                return makeStatusResponse(headers, status);
             } else if (Method.POST.equals(method) && uri.equals(Protocol.PUSH_STATUS_REQUEST_PATH)) {
-                if (!session.getHeaders().containsKey("content-length")) {
-                    throw new Utils.ApplicationError(LOG_TAG, "failed to get POST request content length");
-                }
-                int contentLength = Integer.parseInt(session.getHeaders().get("content-length"));
-                byte[] buffer = new byte[contentLength];
-                if (contentLength != session.getInputStream().read(buffer, 0, contentLength)) {
-                    throw new Utils.ApplicationError(LOG_TAG, "failed to read POST content");
+                Data.Status status = readStatusRequestBody(headers, inputStream);
+                mRequestHandler.handlePushStatusRequest(certificateFingerprint, status);
+                return advertiseCompression(new Response(NanoHTTPD.Response.Status.OK, null, ""));
+            } else if (Method.POST.equals(method) && uri.equals(Protocol.EXCHANGE_STATUS_REQUEST_PATH)) {
+                Data.Status status = readStatusRequestBody(headers, inputStream);
+                EncodedStatus selfStatus = mRequestHandler.handleExchangeStatusRequest(certificateFingerprint, status);
+                if (selfStatus == null) {
+                    // Pushed status was accepted, but there's no status to return (not currently sharing)
+                    return advertiseCompression(new Response(NanoHTTPD.Response.Status.NO_CONTENT, null, (InputStream)null));
                 }
-                Data.Status status = Json.fromJson(new String(buffer), Data.Status.class);
-                mRequestHandler.handlePushStatusRequest(certificate, status);
-                return new Response(NanoHTTPD.Response.Status.OK, null, "");
+                return makeStatusResponse(headers, selfStatus);
+            } else {
+                // Distinct from the 403 for a failed request, so a peer can tell the request
+                // isn't supported
+                metrics.getCounter(Metrics.WEB_SERVER_REQUEST_FAILURES).increment();
+                return new Response(NanoHTTPD.Response.Status.NOT_FOUND, null, "");
             }
         } catch (IOException e) {
             Log.addEntry(LOG_TAG, e.getMessage());
@@ -141,6 +423,7 @@ public class WebServer extends NanoHTTPD implements NanoHTTPD.ServerSocketFactor
         } catch (Utils.ApplicationError e) {
             Log.addEntry(LOG_TAG, "failed to serve request");
         }
+        metrics.getCounter(Metrics.WEB_SERVER_REQUEST_FAILURES).increment();
         return new Response(NanoHTTPD.Response.Status.FORBIDDEN, null, "");
     }
 }
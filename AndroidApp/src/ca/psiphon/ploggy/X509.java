@@ -148,6 +148,19 @@ public class X509 {
         }
     }
 
+    public static String getCertificateFingerprint(byte[] encodedCertificate) throws Utils.ApplicationError {
+        // Identifies a TLS peer by its certificate, without comparing whole certificates
+        try {
+            return Utils.formatFingerprint(MessageDigest.getInstance(FINGERPRINT_ALGORITHM).digest(encodedCertificate));
+        } catch (GeneralSecurityException e) {
+            throw new Utils.ApplicationError(LOG_TAG, e);
+        }
+    }
+
+    public static String getCertificateFingerprint(String certificate) throws Utils.ApplicationError {
+        return getCertificateFingerprint(Utils.decodeBase64(certificate));
+    }
+
     public static KeyStore makeKeyStore() throws Utils.ApplicationError {
         try {
             KeyStore keyStore;
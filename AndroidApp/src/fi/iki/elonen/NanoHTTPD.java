@@ -7,6 +7,7 @@ import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
+import ca.psiphon.ploggy.HttpRequestParser;
 import ca.psiphon.ploggy.Log;
 
 /**
@@ -84,6 +85,13 @@ public abstract class NanoHTTPD {
      * Pluggable strategy for creating and cleaning up temporary files.
      */
     private TempFileManagerFactory tempFileManagerFactory;
+    // ==== ploggy ====
+    /**
+     * Request bodies up to this size are parsed in memory, from the session's body buffer; larger
+     * bodies are written to a temp file.
+     */
+    public static final int MAX_IN_MEMORY_BODY_SIZE = 64*1024;
+    // ================
 
     /**
      * Constructs an HTTP server on given port.
@@ -143,6 +151,35 @@ public abstract class NanoHTTPD {
     }
     // ================
 
+    // ==== ploggy ====
+    /**
+     * Called for each accepted socket, before any reads (and so before any TLS handshake).
+     * Returns false to close the socket without handling it.
+     */
+    protected boolean acceptConnection(Socket socket) {
+        return true;
+    }
+
+    /**
+     * Called after each request is handled on a kept-alive socket.
+     */
+    protected void completedRequest(Socket socket) {
+    }
+
+    /**
+     * Called once an accepted socket is closed.
+     */
+    protected void closedConnection(Socket socket) {
+    }
+
+    /**
+     * The request headers to decode, in lower case; others are skipped. Null for all headers.
+     */
+    protected String[] getRequestHeaderNames() {
+        return null;
+    }
+    // ================
+
     /**
      * Start the server.
      *
@@ -160,10 +197,19 @@ public abstract class NanoHTTPD {
                 do {
                     try {
                         final Socket finalAccept = myServerSocket.accept();
+                        // ==== ploggy ====
+                        if (!acceptConnection(finalAccept)) {
+                            safeClose(finalAccept);
+                            continue;
+                        }
+                        // ================
                         finalAccept.setSoTimeout(getReadTimeout());
                         final InputStream inputStream = finalAccept.getInputStream();
                         if (inputStream == null) {
                             safeClose(finalAccept);
+                            // ==== ploggy ====
+                            closedConnection(finalAccept);
+                            // ================
                         } else {
                             asyncRunner.exec(new Runnable() {
                                 @Override
@@ -171,10 +217,15 @@ public abstract class NanoHTTPD {
                                     OutputStream outputStream = null;
                                     try {
                                         outputStream = finalAccept.getOutputStream();
-                                        TempFileManager tempFileManager = tempFileManagerFactory.create();
-                                        HTTPSession session = new HTTPSession(finalAccept, tempFileManager, inputStream, outputStream);
+                                        // ==== ploggy ====
+                                        // The session makes its temp file manager on first use
+                                        HTTPSession session = new HTTPSession(finalAccept, null, inputStream, outputStream);
+                                        // ================
                                         while (!finalAccept.isClosed()) {
                                             session.execute();
+                                            // ==== ploggy ====
+                                            completedRequest(finalAccept);
+                                            // ================
                                         }
                                     } catch (Exception e) {
                                         // When the socket is closed by the client, we throw our own SocketException
@@ -188,6 +239,9 @@ public abstract class NanoHTTPD {
                                         safeClose(outputStream);
                                         safeClose(inputStream);
                                         safeClose(finalAccept);
+                                        // ==== ploggy ====
+                                        closedConnection(finalAccept);
+                                        // ================
                                     }
                                 }
                             });
@@ -222,9 +276,12 @@ public abstract class NanoHTTPD {
         }
     }
 
-    public final int getListeningPort() {
+    // ==== ploggy ====
+    // Not final: overridden by servers that don't listen on myServerSocket
+    public int getListeningPort() {
         return myServerSocket == null ? -1 : myServerSocket.getLocalPort();
     }
+    // ================
 
     public final boolean wasStarted() {
         return myServerSocket != null && myThread != null;
@@ -597,87 +654,238 @@ public abstract class NanoHTTPD {
             header.put(name, value);
         }
 
+        // ==== ploggy ====
         /**
-         * Sends given response to the socket.
+         * Writes the response, as sent to a socket, to the given stream.
          */
-        private void send(OutputStream outputStream) {
-            String mime = mimeType;
-            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+        public void writeTo(OutputStream outputStream) {
+            send(outputStream);
+        }
+        // ================
+
+        // ==== ploggy ====
+        // Replaces NanoHTTPD's PrintWriter based writer, which made a SimpleDateFormat, a
+        // PrintWriter and a 16K buffer, and concatenated strings, for every response.
+        // Responses are now formatted into a reusable per-thread buffer, and the Date header is
+        // formatted at most once per second. The body follows the headers in the same buffer,
+        // so a small response is one write: over TLS, one record, which also avoids a stall
+        // between Nagle's algorithm and the client's delayed ACK on kept-alive connections.
+
+        private static final int RESPONSE_BUFFER_SIZE = 16 * 1024;
+
+        private static final byte[] CRLF = {'\r', '\n'};
+
+        private static final ThreadLocal<ResponseBuffer> responseBuffer = new ThreadLocal<ResponseBuffer>() {
+            @Override
+            protected ResponseBuffer initialValue() {
+                return new ResponseBuffer();
+            }
+        };
+
+        private static class DateHeader {
+            public final long second;
+            public final byte[] bytes;
+
+            public DateHeader(long second, byte[] bytes) {
+                this.second = second;
+                this.bytes = bytes;
+            }
+        }
+
+        private static volatile DateHeader dateHeader = new DateHeader(-1, null);
+
+        private static byte[] getDateHeader() {
+            long second = System.currentTimeMillis() / 1000;
+            DateHeader current = dateHeader;
+            if (current.second != second) {
+                // Concurrent senders may each format the header once; either result is correct
+                SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+                gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+                current = new DateHeader(second, asciiBytes("Date: " + gmtFrmt.format(new Date(second * 1000)) + "\r\n"));
+                dateHeader = current;
+            }
+            return current.bytes;
+        }
 
+        private static byte[] asciiBytes(String value) {
             try {
-                if (status == null) {
-                    throw new Error("sendResponse(): Status can't be null.");
-                }
-                PrintWriter pw = new PrintWriter(outputStream);
-                pw.print("HTTP/1.1 " + status.getDescription() + " \r\n");
+                return value.getBytes("US-ASCII");
+            } catch (UnsupportedEncodingException e) {
+                throw new Error(e);
+            }
+        }
+
+        private static class ResponseBuffer {
+            private final byte[] bytes = new byte[RESPONSE_BUFFER_SIZE];
+            private byte[] chunk;
+            private int length;
+            private OutputStream outputStream;
 
-                if (mime != null) {
-                    pw.print("Content-Type: " + mime + "\r\n");
+            public void open(OutputStream outputStream) {
+                this.outputStream = outputStream;
+                length = 0;
+            }
+
+            public void close() throws IOException {
+                try {
+                    flush();
+                    outputStream.flush();
+                } finally {
+                    outputStream = null;
                 }
+            }
 
-                if (header == null || header.get("Date") == null) {
-                    pw.print("Date: " + gmtFrmt.format(new Date()) + "\r\n");
+            public void append(byte[] value, int offset, int count) throws IOException {
+                while (count > 0) {
+                    if (length == bytes.length) {
+                        flush();
+                    }
+                    int copyCount = Math.min(count, bytes.length - length);
+                    System.arraycopy(value, offset, bytes, length, copyCount);
+                    length += copyCount;
+                    offset += copyCount;
+                    count -= copyCount;
                 }
+            }
+
+            public void append(byte[] value) throws IOException {
+                append(value, 0, value.length);
+            }
 
-                if (header != null) {
-                    for (String key : header.keySet()) {
-                        String value = header.get(key);
-                        pw.print(key + ": " + value + "\r\n");
+            public void append(String value) throws IOException {
+                // Header names and values are ASCII
+                for (int i = 0; i < value.length(); i++) {
+                    if (length == bytes.length) {
+                        flush();
                     }
+                    bytes[length++] = (byte) value.charAt(i);
                 }
+            }
 
-                pw.print("Connection: keep-alive\r\n");
+            public void append(long value, int radix) throws IOException {
+                if (bytes.length - length < 20) {
+                    flush();
+                }
+                if (value == 0) {
+                    bytes[length++] = '0';
+                    return;
+                }
+                int start = length;
+                for (; value > 0; value /= radix) {
+                    bytes[length++] = (byte) Character.forDigit((int) (value % radix), radix);
+                }
+                for (int i = start, j = length - 1; i < j; i++, j--) {
+                    byte digit = bytes[i];
+                    bytes[i] = bytes[j];
+                    bytes[j] = digit;
+                }
+            }
 
-                if (requestMethod != Method.HEAD && chunkedTransfer) {
-                    sendAsChunked(outputStream, pw);
-                } else {
-                    sendAsFixedLength(outputStream, pw);
+            public int appendFrom(InputStream inputStream, int maxCount) throws IOException {
+                // Reads directly into the buffer, following what's already buffered
+                if (length == bytes.length) {
+                    flush();
+                }
+                int readCount = inputStream.read(bytes, length, Math.min(maxCount, bytes.length - length));
+                if (readCount > 0) {
+                    length += readCount;
+                }
+                return readCount;
+            }
+
+            public byte[] getChunk() {
+                if (chunk == null) {
+                    chunk = new byte[RESPONSE_BUFFER_SIZE];
+                }
+                return chunk;
+            }
+
+            private void flush() throws IOException {
+                if (length > 0) {
+                    outputStream.write(bytes, 0, length);
+                    length = 0;
+                }
+            }
+        }
+
+        /**
+         * Sends given response to the socket.
+         */
+        private void send(OutputStream outputStream) {
+            if (status == null) {
+                throw new Error("sendResponse(): Status can't be null.");
+            }
+            ResponseBuffer buffer = responseBuffer.get();
+            buffer.open(outputStream);
+            try {
+                try {
+                    buffer.append(status.getStatusLine());
+
+                    if (mimeType != null) {
+                        buffer.append("Content-Type: ");
+                        buffer.append(mimeType);
+                        buffer.append(CRLF);
+                    }
+
+                    if (header == null || header.get("Date") == null) {
+                        buffer.append(getDateHeader());
+                    }
+
+                    if (header != null) {
+                        for (Map.Entry<String, String> entry : header.entrySet()) {
+                            buffer.append(entry.getKey());
+                            buffer.append(": ");
+                            buffer.append(entry.getValue());
+                            buffer.append(CRLF);
+                        }
+                    }
+
+                    buffer.append("Connection: keep-alive\r\n");
+
+                    if (requestMethod != Method.HEAD && chunkedTransfer) {
+                        sendAsChunked(buffer);
+                    } else {
+                        sendAsFixedLength(buffer);
+                    }
+                } finally {
+                    buffer.close();
                 }
-                outputStream.flush();
                 safeClose(data);
             } catch (IOException ioe) {
                 // Couldn't write? No can do.
             }
         }
 
-        private void sendAsChunked(OutputStream outputStream, PrintWriter pw) throws IOException {
-            pw.print("Transfer-Encoding: chunked\r\n");
-            pw.print("\r\n");
-            pw.flush();
-            int BUFFER_SIZE = 16 * 1024;
-            byte[] CRLF = "\r\n".getBytes();
-            byte[] buff = new byte[BUFFER_SIZE];
+        private void sendAsChunked(ResponseBuffer buffer) throws IOException {
+            buffer.append("Transfer-Encoding: chunked\r\n\r\n");
+            byte[] chunk = buffer.getChunk();
             int read;
-            while ((read = data.read(buff)) > 0) {
-                outputStream.write(String.format("%x\r\n", read).getBytes());
-                outputStream.write(buff, 0, read);
-                outputStream.write(CRLF);
+            while ((read = data.read(chunk)) > 0) {
+                buffer.append(read, 16);
+                buffer.append(CRLF);
+                buffer.append(chunk, 0, read);
+                buffer.append(CRLF);
             }
-            outputStream.write(String.format("0\r\n\r\n").getBytes());
+            buffer.append("0\r\n\r\n");
         }
 
-        private void sendAsFixedLength(OutputStream outputStream, PrintWriter pw) throws IOException {
+        private void sendAsFixedLength(ResponseBuffer buffer) throws IOException {
             int pending = data != null ? data.available() : 0; // This is to support partial sends, see serveFile()
-            pw.print("Content-Length: "+pending+"\r\n");
-
-            pw.print("\r\n");
-            pw.flush();
+            buffer.append("Content-Length: ");
+            buffer.append(pending, 10);
+            buffer.append("\r\n\r\n");
 
             if (requestMethod != Method.HEAD && data != null) {
-                int BUFFER_SIZE = 16 * 1024;
-                byte[] buff = new byte[BUFFER_SIZE];
                 while (pending > 0) {
-                    int read = data.read(buff, 0, ((pending > BUFFER_SIZE) ? BUFFER_SIZE : pending));
+                    int read = buffer.appendFrom(data, pending);
                     if (read <= 0) {
                         break;
                     }
-                    outputStream.write(buff, 0, read);
-
                     pending -= read;
                 }
             }
         }
+        // ================
 
         public Status getStatus() {
             return status;
@@ -725,12 +933,24 @@ public abstract class NanoHTTPD {
                 "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error");
             private final int requestStatus;
             private final String description;
+            // ==== ploggy ====
+            private final byte[] statusLine;
+            // ================
 
             Status(int requestStatus, String description) {
                 this.requestStatus = requestStatus;
                 this.description = description;
+                // ==== ploggy ====
+                this.statusLine = asciiBytes("HTTP/1.1 " + requestStatus + " " + description + " \r\n");
+                // ================
             }
 
+            // ==== ploggy ====
+            byte[] getStatusLine() {
+                return statusLine;
+            }
+            // ================
+
             public int getRequestStatus() {
                 return this.requestStatus;
             }
@@ -804,7 +1024,10 @@ public abstract class NanoHTTPD {
 
     protected class HTTPSession implements IHTTPSession {
         public static final int BUFSIZE = 8192;
-        private final TempFileManager tempFileManager;
+        // ==== ploggy ====
+        private TempFileManager tempFileManager;
+        private byte[] bodyBuf;
+        // ================
         private final OutputStream outputStream;
         private InputStream inputStream;
         private int splitbyte;
@@ -817,76 +1040,117 @@ public abstract class NanoHTTPD {
 
         // ==== ploggy ====
         private final Socket socket;
+        // The session's buffer is kept for all of the connection's requests. Bytes received
+        // after a request's header, its body and any pipelined request, are read from the
+        // buffer before the socket.
+        private final byte[] buf;
+        private int bufferedStart;
+        private int bufferedEnd;
+        private final InputStream socketInputStream;
+        private final HttpRequestParser parser;
 
         @Override
         public Socket getSocket() {
             return socket;
         }
+
+        private class SessionInputStream extends InputStream {
+            @Override
+            public int read() throws IOException {
+                if (bufferedStart < bufferedEnd) {
+                    return buf[bufferedStart++] & 0xff;
+                }
+                return socketInputStream.read();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (bufferedStart < bufferedEnd) {
+                    int count = Math.min(length, bufferedEnd - bufferedStart);
+                    System.arraycopy(buf, bufferedStart, buffer, offset, count);
+                    bufferedStart += count;
+                    return count;
+                }
+                return socketInputStream.read(buffer, offset, length);
+            }
+
+            @Override
+            public int available() throws IOException {
+                return (bufferedEnd - bufferedStart) + socketInputStream.available();
+            }
+        }
         // ================
 
         public HTTPSession(Socket socket, TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
             this.socket = socket;
             this.tempFileManager = tempFileManager;
-            this.inputStream = inputStream;
+            // ==== ploggy ====
+            this.socketInputStream = inputStream;
+            this.inputStream = new SessionInputStream();
+            this.buf = new byte[BUFSIZE];
+            this.parser = new HttpRequestParser(getRequestHeaderNames(), BUFSIZE);
+            this.parms = new HashMap<String, String>();
+            // ================
             this.outputStream = outputStream;
         }
 
         @Override
         public void execute() throws IOException {
             try {
-                // Read the first 8192 bytes.
-                // The full header should fit in here.
-                // Apache's default header limit is 8KB.
-                // Do NOT assume that a single read will get the entire header at once!
-                byte[] buf = new byte[BUFSIZE];
-                splitbyte = 0;
-                rlen = 0;
-                {
-                    int read = inputStream.read(buf, 0, BUFSIZE);
+                // ==== ploggy ====
+                // Replaces reading into a new 8K buffer and decoding it through a BufferedReader
+                // and StringTokenizer. The header is parsed in place in the session's buffer as
+                // it's read; see HttpRequestParser. The full header must fit in the buffer.
+                rlen = bufferedEnd - bufferedStart;
+                if (rlen > 0 && bufferedStart > 0) {
+                    System.arraycopy(buf, bufferedStart, buf, 0, rlen);
+                }
+                bufferedStart = 0;
+                bufferedEnd = 0;
+                parser.reset();
+                splitbyte = parseHeader();
+                while (splitbyte == 0) {
+                    if (rlen == BUFSIZE) {
+                        throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Request header too large.");
+                    }
+                    int read = socketInputStream.read(buf, rlen, BUFSIZE - rlen);
                     if (read == -1) {
                         // socket was been closed
                         throw new SocketException("NanoHttpd Shutdown");
                     }
-                    while (read > 0) {
-                        rlen += read;
-                        splitbyte = findHeaderEnd(buf, rlen);
-                        if (splitbyte > 0)
-                            break;
-                        read = inputStream.read(buf, rlen, BUFSIZE - rlen);
-                    }
+                    rlen += read;
+                    splitbyte = parseHeader();
                 }
+                bufferedStart = splitbyte;
+                bufferedEnd = rlen;
 
-                if (splitbyte < rlen) {
-                    ByteArrayInputStream splitInputStream = new ByteArrayInputStream(buf, splitbyte, rlen - splitbyte);
-                    SequenceInputStream sequenceInputStream = new SequenceInputStream(splitInputStream, inputStream);
-                    inputStream = sequenceInputStream;
+                method = parser.getMethod();
+                headers = parser.getHeaders();
+                parms.clear();
+                uri = parser.getUri();
+                int qmi = uri.indexOf('?');
+                if (qmi >= 0) {
+                    decodeParms(uri.substring(qmi + 1), parms);
+                    uri = uri.substring(0, qmi);
                 }
-
-                parms = new HashMap<String, String>();
-                headers = new HashMap<String, String>();
-
-                // Create a BufferedReader for parsing the header.
-                BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, rlen)));
-
-                // Decode the header into parms and header java properties
-                Map<String, String> pre = new HashMap<String, String>();
-                decodeHeader(hin, pre, parms, headers);
-
-                method = Method.lookup(pre.get("method"));
-                if (method == null) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
+                if (uri.indexOf('%') >= 0 || uri.indexOf('+') >= 0) {
+                    uri = decodePercent(uri);
                 }
 
-                uri = pre.get("uri");
-
-                cookies = new CookieHandler(headers);
+                // Made on first use; Ploggy doesn't use cookies
+                cookies = null;
+                // ================
 
                 // Ok, now do the serve()
                 Response r = serve(this);
                 if (r == null) {
                     throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
                 } else {
-                    cookies.unloadQueue(r);
+                    // ==== ploggy ====
+                    if (cookies != null) {
+                        cookies.unloadQueue(r);
+                    }
+                    // ================
                     r.setRequestMethod(method);
                     r.send(outputStream);
                 }
@@ -902,7 +1166,11 @@ public abstract class NanoHTTPD {
                 r.send(outputStream);
                 safeClose(outputStream);
             } finally {
-                tempFileManager.clear();
+                // ==== ploggy ====
+                if (tempFileManager != null) {
+                    tempFileManager.clear();
+                }
+                // ================
             }
         }
 
@@ -911,9 +1179,6 @@ public abstract class NanoHTTPD {
             RandomAccessFile randomAccessFile = null;
             BufferedReader in = null;
             try {
-
-                randomAccessFile = getTmpBucket();
-
                 long size;
                 if (headers.containsKey("content-length")) {
                     size = Integer.parseInt(headers.get("content-length"));
@@ -923,22 +1188,47 @@ public abstract class NanoHTTPD {
                     size = 0;
                 }
 
-                // Now read all the body and write it to f
-                byte[] buf = new byte[512];
-                while (rlen >= 0 && size > 0) {
-                    rlen = inputStream.read(buf, 0, 512);
-                    size -= rlen;
-                    if (rlen > 0) {
-                        randomAccessFile.write(buf, 0, rlen);
+                // ==== ploggy ====
+                // Small bodies are read into the session's body buffer, which is kept for the
+                // connection's later requests; larger bodies are still written to a temp file.
+                ByteBuffer fbuf;
+                InputStream bin;
+                if (size <= MAX_IN_MEMORY_BODY_SIZE) {
+                    if (bodyBuf == null || bodyBuf.length < size) {
+                        bodyBuf = new byte[(int)Math.min(MAX_IN_MEMORY_BODY_SIZE, Math.max(BUFSIZE, 2*size))];
                     }
-                }
+                    int length = 0;
+                    while (length < size) {
+                        int read = inputStream.read(bodyBuf, length, (int)size - length);
+                        if (read == -1) {
+                            break;
+                        }
+                        length += read;
+                    }
+                    fbuf = ByteBuffer.wrap(bodyBuf, 0, length);
+                    bin = new ByteArrayInputStream(bodyBuf, 0, length);
+                } else {
+                    randomAccessFile = getTmpBucket();
 
-                // Get the raw body as a byte []
-                ByteBuffer fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
-                randomAccessFile.seek(0);
+                    // Now read all the body and write it to f
+                    byte[] buf = new byte[512];
+                    while (size > 0) {
+                        int read = inputStream.read(buf, 0, 512);
+                        if (read == -1) {
+                            break;
+                        }
+                        size -= read;
+                        randomAccessFile.write(buf, 0, read);
+                    }
+
+                    // Get the raw body as a byte []
+                    fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+                    randomAccessFile.seek(0);
+                    bin = new FileInputStream(randomAccessFile.getFD());
+                }
+                // ================
 
                 // Create a BufferedReader for easily reading it as string.
-                InputStream bin = new FileInputStream(randomAccessFile.getFD());
                 in = new BufferedReader(new InputStreamReader(bin));
 
                 // If the method is POST, there may be parameters
@@ -990,59 +1280,7 @@ public abstract class NanoHTTPD {
             }
         }
 
-        /**
-         * Decodes the sent headers and loads the data into Key/value pairs
-         */
-        private void decodeHeader(BufferedReader in, Map<String, String> pre, Map<String, String> parms, Map<String, String> headers)
-            throws ResponseException {
-            try {
-                // Read the request line
-                String inLine = in.readLine();
-                if (inLine == null) {
-                    return;
-                }
-
-                StringTokenizer st = new StringTokenizer(inLine);
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
-                }
-
-                pre.put("method", st.nextToken());
-
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
-                }
-
-                String uri = st.nextToken();
-
-                // Decode parameters from the URI
-                int qmi = uri.indexOf('?');
-                if (qmi >= 0) {
-                    decodeParms(uri.substring(qmi + 1), parms);
-                    uri = decodePercent(uri.substring(0, qmi));
-                } else {
-                    uri = decodePercent(uri);
-                }
-
-                // If there's another token, it's protocol version,
-                // followed by HTTP headers. Ignore version but parse headers.
-                // NOTE: this now forces header names lowercase since they are
-                // case insensitive and vary by client.
-                if (st.hasMoreTokens()) {
-                    String line = in.readLine();
-                    while (line != null && line.trim().length() > 0) {
-                        int p = line.indexOf(':');
-                        if (p >= 0)
-                            headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
-                        line = in.readLine();
-                    }
-                }
-
-                pre.put("uri", uri);
-            } catch (IOException ioe) {
-                throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
-            }
-        }
+        // ==== ploggy: decodeHeader replaced by HttpRequestParser ====
 
         /**
          * Decodes the Multipart Body data and put it into Key/Value pairs.
@@ -1118,19 +1356,7 @@ public abstract class NanoHTTPD {
             }
         }
 
-        /**
-         * Find byte index separating header from body. It must be the last byte of the first two sequential new lines.
-         */
-        private int findHeaderEnd(final byte[] buf, int rlen) {
-            int splitbyte = 0;
-            while (splitbyte + 3 < rlen) {
-                if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n') {
-                    return splitbyte + 4;
-                }
-                splitbyte++;
-            }
-            return 0;
-        }
+        // ==== ploggy: findHeaderEnd replaced by HttpRequestParser ====
 
         /**
          * Find the byte positions where multipart boundaries start.
@@ -1170,7 +1396,9 @@ public abstract class NanoHTTPD {
             if (len > 0) {
                 FileOutputStream fileOutputStream = null;
                 try {
-                    TempFile tempFile = tempFileManager.createTempFile();
+                    // ==== ploggy ====
+                    TempFile tempFile = getTempFileManager().createTempFile();
+                    // ================
                     ByteBuffer src = b.duplicate();
                     fileOutputStream = new FileOutputStream(tempFile.getName());
                     FileChannel dest = fileOutputStream.getChannel();
@@ -1186,9 +1414,21 @@ public abstract class NanoHTTPD {
             return path;
         }
 
+        // ==== ploggy ====
+        private TempFileManager getTempFileManager() {
+            // Made on first use and kept, and cleared after each request, for the connection
+            if (tempFileManager == null) {
+                tempFileManager = tempFileManagerFactory.create();
+            }
+            return tempFileManager;
+        }
+        // ================
+
         private RandomAccessFile getTmpBucket() {
             try {
-                TempFile tempFile = tempFileManager.createTempFile();
+                // ==== ploggy ====
+                TempFile tempFile = getTempFileManager().createTempFile();
+                // ================
                 return new RandomAccessFile(tempFile.getName(), "rw");
             } catch (Exception e) {
                 System.err.println("Error: " + e.getMessage());
@@ -1260,8 +1500,26 @@ public abstract class NanoHTTPD {
 
         @Override
         public CookieHandler getCookies() {
+            // ==== ploggy ====
+            if (cookies == null) {
+                cookies = new CookieHandler(headers);
+            }
+            // ================
             return cookies;
         }
+
+        // ==== ploggy ====
+        private int parseHeader() throws ResponseException {
+            if (rlen == 0) {
+                return 0;
+            }
+            try {
+                return parser.parse(buf, rlen);
+            } catch (IOException e) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: " + e.getMessage());
+            }
+        }
+        // ================
     }
 
     public static class Cookie {